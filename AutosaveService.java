@@ -0,0 +1,173 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+// Keeps a recovery copy of the drawing while it has unsaved changes, so that the work
+// survives a crash. At every interval a Swing timer captures on the event thread what has
+// changed since the last autosave: the journal records since then and snapshots of the
+// layers, which share their tiles and cost a reference per tile. The autosave thread then
+// appends them to the recovery file, a document journal, with a checkpoint of the tiles
+// modified since the last one, at no more than the I/O budget. Once the drawing has no
+// unsaved changes the recovery file is deleted, so one found at startup holds work a
+// previous run never saved.
+//
+// Reset cannot be undone, so the drawing is first copied in full to a second file next to
+// the recovery file, which can be opened like any other document.
+//
+// The files are kept in one directory per user, locked by the pad using it; a second pad
+// started meanwhile does not autosave.
+public class AutosaveService {
+    public static final String RECOVERY_NAME = "recovery." + DocumentJournal.EXTENSION;
+    public static final String BEFORE_RESET_NAME = "before-reset." + DocumentJournal.EXTENSION;
+
+    // Seconds between autosaves, e.g. -Dsketchpad.autosave.seconds=10; 0 turns autosave off
+    private static final int INTERVAL_SECONDS = Integer.getInteger("sketchpad.autosave.seconds", 30);
+    // Write budget in KB per second, e.g. -Dsketchpad.autosave.ioKBps=1024; 0 for none
+    private static final long IO_BYTES_PER_SECOND = Long.getLong("sketchpad.autosave.ioKBps", 4096) << 10;
+
+    private final Supplier<DocumentJournal> journal;
+    private final Supplier<LayerStack> layers;
+    private final File directory;
+    private final File recoveryFile;
+    private final File beforeResetFile;
+    private final Timer timer;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "autosave");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private FileLock lock; // held while this pad autosaves to the directory
+    private boolean writing; // an autosave is being written or the recovery file deleted
+    private boolean recoveryWritten; // the recovery file holds this run's drawing
+
+    // The journal and layers are read at each autosave, so they may be replaced meanwhile
+    public AutosaveService(Supplier<DocumentJournal> journal, Supplier<LayerStack> layers) {
+        this.journal = journal;
+        this.layers = layers;
+        // e.g. -Dsketchpad.autosave.dir=/tmp/sketchpad
+        this.directory = new File(System.getProperty("sketchpad.autosave.dir",
+                new File(System.getProperty("user.home"), ".sketchpad/autosave").getPath()));
+        this.recoveryFile = new File(directory, RECOVERY_NAME);
+        this.beforeResetFile = new File(directory, BEFORE_RESET_NAME);
+        this.timer = new Timer(Math.max(1, INTERVAL_SECONDS) * 1000, e -> autosave());
+        if (INTERVAL_SECONDS > 0) {
+            lock = acquireLock();
+        }
+    }
+
+    private FileLock acquireLock() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.err.println("Autosave is off: cannot create " + directory);
+            return null;
+        }
+        try {
+            FileChannel channel = new RandomAccessFile(new File(directory, "autosave.lock"), "rw").getChannel();
+            FileLock acquired = channel.tryLock();
+            if (acquired == null) {
+                channel.close();
+                System.err.println("Autosave is off: another sketchpad is autosaving to " + directory);
+            }
+            return acquired;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return lock != null;
+    }
+
+    // Recovery file left by a run that ended with unsaved changes, or null. Ask before
+    // start(), which would replace it.
+    public File getRecoveryFile() {
+        return isEnabled() && recoveryFile.isFile() ? recoveryFile : null;
+    }
+
+    // Deletes a recovery file the user chose not to restore
+    public void discardRecovery() {
+        recoveryFile.delete();
+    }
+
+    public void start() {
+        if (isEnabled()) {
+            timer.start();
+        }
+    }
+
+    // Runs on the event thread. Captures what changed since the last autosave and writes
+    // it in the background; skipped while the previous one is still being written.
+    private void autosave() {
+        if (writing) {
+            return;
+        }
+        DocumentJournal current = journal.get();
+        if (!current.isModified()) {
+            if (recoveryWritten) {
+                // Saved, or replaced by a drawing that needs no recovery
+                recoveryWritten = false;
+                current.autosaveDiscarded();
+                writing = true;
+                writer.execute(() -> {
+                    recoveryFile.delete();
+                    SwingUtilities.invokeLater(() -> writing = false);
+                });
+            }
+            return;
+        }
+        DocumentJournal.Save save = current.prepareAutosave(recoveryFile, layers.get());
+        if (save == null) {
+            return;
+        }
+        save.setRateLimit(IO_BYTES_PER_SECOND);
+        writing = true;
+        writer.execute(() -> {
+            DrawingEvents.Save event = new DrawingEvents.Save();
+            event.begin();
+            event.format = "autosave";
+            event.path = recoveryFile.getPath();
+            try {
+                save.write();
+                event.completed = true;
+                SwingUtilities.invokeLater(() -> {
+                    current.autosaved(save);
+                    recoveryWritten = true;
+                    writing = false;
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+                SwingUtilities.invokeLater(() -> {
+                    current.autosaveDiscarded();
+                    writing = false;
+                });
+            }
+            event.bytes = recoveryFile.length();
+            event.commit();
+        });
+    }
+
+    // Copies the whole drawing aside before Reset clears it. Called on the event thread;
+    // the copy is written in the background from snapshots.
+    public void saveBeforeReset() {
+        if (!isEnabled()) {
+            return;
+        }
+        DocumentJournal.Save copy = journal.get().prepareCopy(beforeResetFile, layers.get());
+        copy.setRateLimit(IO_BYTES_PER_SECOND);
+        writer.execute(() -> {
+            try {
+                copy.write();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+}
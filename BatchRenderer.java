@@ -0,0 +1,222 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+// Command-line renderer that replays sketch documents without a display and writes each
+// one as PNGs at several sizes, e.g.
+//
+//   java BatchRenderer -sizes 128,512,full -out thumbs drawings/*.skj
+//
+// writes thumbs/<name>-128.png, <name>-512.png and <name>-full.png for every document.
+// Sizes are maximum widths; the height follows the aspect ratio. Documents are rendered by
+// a pool with one worker per core. Every render first reserves the worst-case footprint of
+// its canvas and outputs from a budget of -memoryMB per worker, so a document too large for
+// one worker's share waits for others to finish instead of running the heap out.
+public class BatchRenderer {
+    private final int[] sizes; // 0 for full size
+    private final File outputDir;
+    private final int threads;
+    private final int budgetMB;
+    private final Semaphore memory;
+
+    public BatchRenderer(int[] sizes, File outputDir, int threads, int memoryPerWorkerMB) {
+        this.sizes = sizes;
+        this.outputDir = outputDir;
+        this.threads = threads;
+        this.budgetMB = Math.max(1, memoryPerWorkerMB) * threads;
+        this.memory = new Semaphore(budgetMB, true);
+    }
+
+    // Renders every document, returning the number that failed
+    public int renderAll(ArrayList<File> documents) throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "batch-render");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ArrayList<Future<String>> results = new ArrayList<>();
+        for (File document : documents) {
+            results.add(workers.submit(() -> render(document)));
+        }
+        int failed = 0;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                System.out.println(results.get(i).get());
+            } catch (ExecutionException e) {
+                failed++;
+                System.err.println(documents.get(i) + ": " + e.getCause());
+            }
+        }
+        workers.shutdown();
+        return failed;
+    }
+
+    private String render(File document) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        DocumentJournal journal = DocumentJournal.open(document);
+        int width = journal.getWidth();
+        int height = journal.getHeight();
+        int permits = (int) Math.min(budgetMB, (estimateBytes(width, height) >> 20) + 1);
+        memory.acquire(permits);
+        try {
+            LayerStack layers = new LayerStack(width, height, journal.getBackground(), null);
+            journal.replay(layers);
+            TiledCanvas canvas = layers.flatten();
+
+            String name = document.getName();
+            if (name.endsWith("." + DocumentJournal.EXTENSION)) {
+                name = name.substring(0, name.length() - DocumentJournal.EXTENSION.length() - 1);
+            }
+            StringBuilder report = new StringBuilder(document.getPath());
+            for (int size : sizes) {
+                String label = size == 0 ? "full" : Integer.toString(size);
+                TiledCanvas output = canvas;
+                if (size != 0 && size < width) {
+                    int h = Math.max(1, (int) ((long) height * size / width));
+                    output = new TiledCanvas(size, h, canvas.getBackground());
+                    output.setRect(0, 0, size, h, downsample(canvas, size, h), 0, size);
+                }
+                File file = new File(outputDir, name + "-" + label + ".png");
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+                    new ParallelPngEncoder().encode(output, out, rows -> {
+                    }, () -> false);
+                }
+                report.append(' ').append(label).append('=').append(output.getWidth()).append('x')
+                        .append(output.getHeight());
+            }
+            report.append(String.format(" in %.0f ms", (System.nanoTime() - start) / 1e6));
+            return report.toString();
+        } finally {
+            memory.release(permits);
+        }
+    }
+
+    // Worst case held while rendering a single-layer document: every tile of the layer and
+    // of its flattened copy allocated, plus the largest scaled copy. The layer count is only
+    // known once the document is replayed, so documents with more layers may go over.
+    private long estimateBytes(int width, int height) {
+        int cols = (width + TiledCanvas.TILE_SIZE - 1) / TiledCanvas.TILE_SIZE;
+        int rows = (height + TiledCanvas.TILE_SIZE - 1) / TiledCanvas.TILE_SIZE;
+        long canvasBytes = 2L * cols * rows * TiledCanvas.TILE_SIZE * TiledCanvas.TILE_SIZE * 4;
+        long scaledBytes = 0;
+        for (int size : sizes) {
+            if (size != 0 && size < width) {
+                long h = Math.max(1, (long) height * size / width);
+                // The pixels, and the tiled copy they are encoded from
+                scaledBytes = Math.max(scaledBytes, 2 * size * h * 4);
+            }
+        }
+        return canvasBytes + scaledBytes;
+    }
+
+    // Box-filtered reduction of the canvas, averaging the source pixels under each output
+    // pixel with their colors weighted by alpha. Reads the canvas one row at a time.
+    static int[] downsample(TiledCanvas canvas, int targetWidth, int targetHeight) {
+        int width = canvas.getWidth();
+        int height = canvas.getHeight();
+        int[] out = new int[targetWidth * targetHeight];
+        int[] row = new int[width];
+        int[] columnStart = new int[targetWidth + 1];
+        for (int i = 0; i <= targetWidth; i++) {
+            columnStart[i] = (int) ((long) i * width / targetWidth);
+        }
+        long[] sumA = new long[targetWidth];
+        long[] sumR = new long[targetWidth];
+        long[] sumG = new long[targetWidth];
+        long[] sumB = new long[targetWidth];
+        for (int ty = 0; ty < targetHeight; ty++) {
+            int y0 = (int) ((long) ty * height / targetHeight);
+            int y1 = Math.max(y0 + 1, (int) ((long) (ty + 1) * height / targetHeight));
+            for (int tx = 0; tx < targetWidth; tx++) {
+                sumA[tx] = sumR[tx] = sumG[tx] = sumB[tx] = 0;
+            }
+            for (int y = y0; y < y1; y++) {
+                canvas.getRect(0, y, width, 1, row, 0, width);
+                for (int tx = 0; tx < targetWidth; tx++) {
+                    long a = 0, r = 0, g = 0, b = 0;
+                    for (int x = columnStart[tx]; x < columnStart[tx + 1]; x++) {
+                        int p = row[x];
+                        int alpha = p >>> 24;
+                        a += alpha;
+                        r += ((p >> 16) & 0xFF) * alpha;
+                        g += ((p >> 8) & 0xFF) * alpha;
+                        b += (p & 0xFF) * alpha;
+                    }
+                    sumA[tx] += a;
+                    sumR[tx] += r;
+                    sumG[tx] += g;
+                    sumB[tx] += b;
+                }
+            }
+            for (int tx = 0; tx < targetWidth; tx++) {
+                long count = (long) (y1 - y0) * (columnStart[tx + 1] - columnStart[tx]);
+                long a = sumA[tx];
+                int pixel = 0;
+                if (a > 0) {
+                    pixel = (int) ((a + count / 2) / count) << 24
+                            | (int) ((sumR[tx] + a / 2) / a) << 16
+                            | (int) ((sumG[tx] + a / 2) / a) << 8
+                            | (int) ((sumB[tx] + a / 2) / a);
+                }
+                out[ty * targetWidth + tx] = pixel;
+            }
+        }
+        return out;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (System.getProperty("java.awt.headless") == null) {
+            System.setProperty("java.awt.headless", "true");
+        }
+        TiledCanvas.configureRenderer();
+        int cores = Runtime.getRuntime().availableProcessors();
+        int threads = cores;
+        int[] sizes = { 256, 0 };
+        File outputDir = new File(".");
+        int memoryMB = -1;
+        ArrayList<File> documents = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-sizes": {
+                    String[] parts = args[++i].split(",");
+                    sizes = new int[parts.length];
+                    for (int s = 0; s < parts.length; s++) {
+                        sizes[s] = parts[s].equals("full") ? 0 : Integer.parseInt(parts[s].trim());
+                    }
+                    break;
+                }
+                case "-out":
+                    outputDir = new File(args[++i]);
+                    break;
+                case "-threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "-memoryMB":
+                    memoryMB = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    documents.add(new File(args[i]));
+            }
+        }
+        if (documents.isEmpty()) {
+            System.err.println("Usage: java BatchRenderer [-sizes 256,1024,full] [-out dir] [-threads n]"
+                    + " [-memoryMB perWorker] document." + DocumentJournal.EXTENSION + " ...");
+            System.exit(2);
+        }
+        if (memoryMB < 0) {
+            // Three quarters of the heap, shared out between the workers
+            memoryMB = (int) (Runtime.getRuntime().maxMemory() * 3 / 4 / threads >> 20);
+        }
+        outputDir.mkdirs();
+        int failed = new BatchRenderer(sizes, outputDir, threads, memoryMB).renderAll(documents);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
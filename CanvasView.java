@@ -0,0 +1,131 @@
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+
+// The panel's view of the drawing: the layers as the viewport zooms and pans them, kept in a
+// panel-sized buffer. The buffer is redrawn whole only when the panel is resized or the view
+// zoomed; otherwise just the regions changed since the last paint are. Zoomed out far enough
+// to skip canvas pixels, the view is drawn from the pyramid level closest to the zoom.
+//
+// The window paints through it, and so does InputReplay, into an offscreen image.
+public class CanvasView {
+    private final Viewport viewport = new Viewport();
+    private LayerStack layers;
+    private MipmapPyramid pyramid; // reduced copies of the layers for zoomed-out views
+    private BufferedImage buffer;
+    private Rectangle dirty; // canvas area not yet copied into buffer
+    private boolean invalid; // the buffer is redrawn whole with the next update
+
+    public Viewport getViewport() {
+        return viewport;
+    }
+
+    // Shows another layer stack, for a new or opened document
+    public void setLayers(LayerStack layers) {
+        this.layers = layers;
+        pyramid = new MipmapPyramid(layers);
+        invalid = true;
+    }
+
+    // Notes a changed canvas region
+    public void markDirty(Rectangle region) {
+        if (dirty == null) {
+            dirty = new Rectangle(region);
+        } else {
+            dirty.add(region);
+        }
+        pyramid.markDirty(region);
+    }
+
+    // Has the whole buffer redrawn with the next update, as after zooming
+    public void invalidate() {
+        invalid = true;
+    }
+
+    // Draws the view, and over it the preview of the shape or freehand stroke being drawn
+    // or the text being typed.
+    // config, when there is a screen, gives the buffer a format compatible with it.
+    public void paint(Graphics g, int panelWidth, int panelHeight, GraphicsConfiguration config) {
+        update(panelWidth, panelHeight, config);
+        g.drawImage(buffer, 0, 0, null);
+        // The preview is only rasterized into its layer once it is released; until then it
+        // is drawn over the view each frame
+        if (layers.hasPreview()) {
+            Graphics2D g2 = (Graphics2D) g.create();
+            viewport.apply(g2);
+            layers.paintPreview(g2);
+            g2.dispose();
+        }
+    }
+
+    // Brings the buffer up to date with the canvas
+    private void update(int panelWidth, int panelHeight, GraphicsConfiguration config) {
+        panelWidth = Math.max(1, panelWidth);
+        panelHeight = Math.max(1, panelHeight);
+        boolean remapped = viewport.resize(panelWidth, panelHeight, layers.getWidth(), layers.getHeight());
+        Rectangle region;
+        if (buffer == null || buffer.getWidth() != panelWidth || buffer.getHeight() != panelHeight) {
+            buffer = config != null
+                    ? config.createCompatibleImage(panelWidth, panelHeight, Transparency.OPAQUE)
+                    : new BufferedImage(panelWidth, panelHeight, BufferedImage.TYPE_INT_RGB);
+            region = new Rectangle(0, 0, panelWidth, panelHeight);
+        } else if (remapped || invalid) {
+            region = new Rectangle(0, 0, panelWidth, panelHeight);
+        } else if (dirty != null) {
+            region = viewport.toPanel(dirty);
+        } else {
+            return;
+        }
+        dirty = null;
+        invalid = false;
+        draw(region);
+    }
+
+    // Draws a panel region of the view into the buffer
+    private void draw(Rectangle region) {
+        Graphics2D g2 = buffer.createGraphics();
+        g2.clip(region);
+        g2.setColor(Color.GRAY);
+        g2.fill(region);
+        viewport.apply(g2);
+        Rectangle visible = viewport.toCanvas(region);
+        int level = pyramid.levelFor(viewport.getZoom());
+        if (level == 0) {
+            layers.drawTo(g2, visible);
+        } else {
+            pyramid.drawTo(g2, level, visible);
+        }
+        g2.dispose();
+    }
+
+    // Pans by whole panel pixels. What stays in view is scrolled within the buffer, and only
+    // the strips uncovered are drawn. Returns whether the view moved.
+    public boolean scroll(int dx, int dy, int panelWidth, int panelHeight, GraphicsConfiguration config) {
+        // Brings the buffer up to date first, as what it holds moves with it
+        update(panelWidth, panelHeight, config);
+        int[] moved = viewport.panBy(dx, dy);
+        if (moved[0] == 0 && moved[1] == 0) {
+            return false;
+        }
+        int width = buffer.getWidth();
+        int height = buffer.getHeight();
+        if (Math.abs(moved[0]) >= width || Math.abs(moved[1]) >= height) {
+            invalid = true;
+            return true;
+        }
+        Graphics2D g2 = buffer.createGraphics();
+        g2.copyArea(0, 0, width, height, moved[0], moved[1]);
+        g2.dispose();
+        if (moved[0] != 0) {
+            draw(new Rectangle(moved[0] > 0 ? 0 : width + moved[0], 0, Math.abs(moved[0]), height));
+        }
+        if (moved[1] != 0) {
+            draw(new Rectangle(0, moved[1] > 0 ? 0 : height + moved[1], width, Math.abs(moved[1])));
+        }
+        return true;
+    }
+}
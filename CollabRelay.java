@@ -0,0 +1,264 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// Stands in for a collaboration server. Sketchpads in a session connect to the relay, which
+// gives every batch of operations it receives the next sequence number and sends it to all
+// of them, the sender included, so every instance applies the same operations in the same
+// order. The relay never decodes the operations. Run it on its own with
+//
+//   java CollabRelay -port 7777
+//
+// or let a sketchpad host one in-process. The relay only listens on the loopback address
+// unless it is given one to bind to, such as -bind 0.0.0.0 for every interface; sessions
+// are not authenticated, so only open it to networks whose hosts may draw. The first
+// sketchpad to connect sets the canvas size and background of the session. The relay
+// keeps every batch so that a sketchpad joining later can catch up; it is dropped when
+// the relay stops.
+//
+// Each direction of a connection is a single deflate stream, flushed after every batch, so
+// what batches repeat of each other (colors, widths, record headers) compresses against
+// the history of the connection rather than being sent again.
+//
+//   client -> relay   HELLO [int width][int height][int background]
+//                     BATCH [int length][records]
+//   relay -> client   WELCOME [int client id][int width][int height][int background]
+//                     BATCH [int author][long sequence][int length][records]
+//
+// A batch holds at most MAX_BATCH bytes of records. Either end treats a length that is not
+// positive or is larger as a broken connection and drops it.
+public class CollabRelay {
+    public static final int DEFAULT_PORT = 7777;
+    // Far more than a frame's operations come to, and little enough to allocate
+    static final int MAX_BATCH = 16 << 20;
+
+    static final byte HELLO = 1;
+    static final byte WELCOME = 2;
+    static final byte BATCH = 3;
+
+    private final ServerSocket server;
+    private final ArrayList<Client> clients = new ArrayList<>();
+    private final ArrayList<byte[]> history = new ArrayList<>(); // every batch sent, as framed
+    private int nextClientId = 1;
+    private long sequence;
+    private int[] format; // width, height and background, set by the first client
+
+    // Listens on the loopback address only
+    public CollabRelay(int port) throws IOException {
+        this(port, InetAddress.getLoopbackAddress());
+    }
+
+    // Listens on the given local address, or on every interface if it is a wildcard
+    public CollabRelay(int port, InetAddress bindAddress) throws IOException {
+        server = new ServerSocket(port, 50, bindAddress);
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    // Accepts sketchpads on a daemon thread until close()
+    public void start() {
+        Thread acceptor = new Thread(this::acceptLoop, "collab-relay");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        synchronized (this) {
+            for (Client client : clients) {
+                client.close();
+            }
+            clients.clear();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Thread reader = new Thread(() -> serve(socket), "collab-relay-client");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Reads one sketchpad's batches until it disconnects
+    private void serve(Socket socket) {
+        Client client = null;
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new InflaterInputStream(socket.getInputStream())));
+            if (in.readByte() != HELLO) {
+                throw new IOException("Expected a hello");
+            }
+            int[] hello = { in.readInt(), in.readInt(), in.readInt() };
+            client = join(socket, hello);
+            while (true) {
+                if (in.readByte() != BATCH) {
+                    throw new IOException("Expected a batch");
+                }
+                broadcast(client.id, readRecords(in));
+            }
+        } catch (IOException e) {
+            // Disconnected
+        } finally {
+            if (client != null) {
+                leave(client);
+            } else {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Welcomes a sketchpad and queues the session so far for it. Holding the lock keeps
+    // batches from being sequenced in between, so it misses none and gets none twice.
+    private synchronized Client join(Socket socket, int[] hello) throws IOException {
+        if (format == null) {
+            format = hello;
+        }
+        Client client = new Client(nextClientId++, socket);
+        FrameBuffer welcome = new FrameBuffer();
+        welcome.out.writeByte(WELCOME);
+        welcome.out.writeInt(client.id);
+        welcome.out.writeInt(format[0]);
+        welcome.out.writeInt(format[1]);
+        welcome.out.writeInt(format[2]);
+        client.queue.add(welcome.toByteArray());
+        client.queue.addAll(history);
+        clients.add(client);
+        client.start();
+        return client;
+    }
+
+    private synchronized void broadcast(int author, byte[] records) throws IOException {
+        FrameBuffer frame = new FrameBuffer();
+        frame.out.writeByte(BATCH);
+        frame.out.writeInt(author);
+        frame.out.writeLong(++sequence);
+        frame.out.writeInt(records.length);
+        frame.out.write(records);
+        byte[] bytes = frame.toByteArray();
+        history.add(bytes);
+        for (Client client : clients) {
+            client.queue.add(bytes);
+        }
+    }
+
+    private synchronized void leave(Client client) {
+        clients.remove(client);
+        client.close();
+    }
+
+    // A connected sketchpad. Frames are written by a thread of its own, so a slow
+    // connection only holds up itself.
+    private static class Client {
+        private static final byte[] CLOSE = new byte[0];
+
+        final int id;
+        final Socket socket;
+        final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+
+        Client(int id, Socket socket) {
+            this.id = id;
+            this.socket = socket;
+        }
+
+        void start() {
+            Thread writer = new Thread(this::writeLoop, "collab-relay-writer-" + id);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        void close() {
+            queue.add(CLOSE);
+        }
+
+        private void writeLoop() {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (Socket s = socket) {
+                DeflaterOutputStream out = new DeflaterOutputStream(s.getOutputStream(), deflater, 8192, true);
+                while (true) {
+                    byte[] frame = queue.take();
+                    if (frame == CLOSE) {
+                        break;
+                    }
+                    out.write(frame);
+                    // Flush once the queue is drained, so a backlog goes out in one piece
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // Disconnected
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    // Reads the length and records of a batch
+    static byte[] readRecords(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length <= 0 || length > MAX_BATCH) {
+            throw new IOException("Batch of " + length + " bytes");
+        }
+        byte[] records = new byte[length];
+        in.readFully(records);
+        return records;
+    }
+
+    // Encodes one frame
+    static class FrameBuffer {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        InetAddress bindAddress = InetAddress.getLoopbackAddress();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-bind") && i + 1 < args.length) {
+                bindAddress = InetAddress.getByName(args[++i]);
+            } else {
+                System.err.println("Usage: java CollabRelay [-port " + DEFAULT_PORT + "] [-bind address]");
+                System.exit(2);
+            }
+        }
+        CollabRelay relay = new CollabRelay(port, bindAddress);
+        System.err.println("Relaying sketchpad sessions on " + bindAddress.getHostAddress() + " port "
+                + relay.getPort());
+        relay.acceptLoop();
+    }
+}
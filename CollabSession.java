@@ -0,0 +1,405 @@
+import java.awt.Color;
+import java.awt.Shape;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// A sketchpad's connection to a CollabRelay. Operations are sent as the journal's own
+// records, never as pixels: the journal sets aside what the tools record, and once a frame
+// the app sends what was set aside as one batch. Nothing is drawn until the relay sends
+// it back in its order, the sender's own operations included, so every instance applies
+// the same operations in the same order and ends up with the same drawing.
+//
+// Each batch starts by selecting the layer its author is drawing on, and its drawing
+// operations go to that layer whatever layer is active here. Layers are given ids in the
+// order the relay puts their additions in, not the ids their authors proposed.
+//
+// Batches are received on a thread of their own and applied on the event thread by
+// applyReceived(). Undo works on pixels, so it is not available during a session.
+public class CollabSession {
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "collab-send");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Runnable listener;
+    private final ConcurrentLinkedQueue<Batch> received = new ConcurrentLinkedQueue<>();
+    private final Applier applier = new Applier();
+    private volatile boolean connected = true;
+
+    private int clientId;
+    private int width;
+    private int height;
+    private int background;
+
+    // Wire bytes after compression, and the work done applying
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private long batchesSent;
+    private long opsApplied;
+    private long applyNanos;
+
+    // Connects and waits for the relay's welcome. The listener is called on the receiving
+    // thread whenever a batch arrives or the connection drops.
+    public CollabSession(String host, int port, int width, int height, int background, Runnable listener)
+            throws IOException {
+        this.listener = listener;
+        socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(
+                    new DeflaterOutputStream(new Counted(socket.getOutputStream(), bytesSent), deflater, 8192, true));
+            out.writeByte(CollabRelay.HELLO);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(background);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new InflaterInputStream(new CountedInput(socket.getInputStream(), bytesReceived))));
+            if (in.readByte() != CollabRelay.WELCOME) {
+                throw new IOException("Not a sketchpad relay");
+            }
+            clientId = in.readInt();
+            this.width = in.readInt();
+            this.height = in.readInt();
+            this.background = in.readInt();
+            Thread reader = new Thread(() -> receive(in), "collab-receive");
+            reader.setDaemon(true);
+            reader.start();
+        } catch (IOException e) {
+            socket.close();
+            deflater.end();
+            throw e;
+        }
+    }
+
+    public int getClientId() {
+        return clientId;
+    }
+
+    // The session's canvas, which the first sketchpad to join set
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBackground() {
+        return background;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    // Sends a batch from DocumentJournal.takeOutgoing() without waiting for it to go out
+    public void send(byte[] records) {
+        batchesSent++;
+        writer.execute(() -> {
+            try {
+                out.writeByte(CollabRelay.BATCH);
+                out.writeInt(records.length);
+                out.write(records);
+                out.flush();
+            } catch (IOException e) {
+                disconnected();
+            }
+        });
+    }
+
+    private void receive(DataInputStream in) {
+        try {
+            while (true) {
+                if (in.readByte() != CollabRelay.BATCH) {
+                    throw new IOException("Expected a batch");
+                }
+                int author = in.readInt();
+                in.readLong(); // sequence; the stream already delivers batches in order
+                received.add(new Batch(author, CollabRelay.readRecords(in)));
+                listener.run();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Whatever stops the reader ends the session, so the app notices
+            disconnected();
+        }
+    }
+
+    private void disconnected() {
+        if (connected) {
+            connected = false;
+            listener.run();
+        }
+    }
+
+    // Applies the batches received so far, in the relay's order, to the layers and journals
+    // them. Returns the number of operations applied.
+    public int applyReceived(LayerStack layers, DocumentJournal journal) throws IOException {
+        int ops = 0;
+        long start = System.nanoTime();
+        Batch batch;
+        while ((batch = received.poll()) != null) {
+            applier.begin(layers, journal, batch.author == clientId);
+            ops += journal.applyRemote(batch.records, applier);
+        }
+        if (ops > 0) {
+            opsApplied += ops;
+            applyNanos += System.nanoTime() - start;
+        }
+        return ops;
+    }
+
+
+    public void close() {
+        connected = false;
+        writer.shutdownNow();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        deflater.end();
+    }
+
+    public String describe() {
+        long ops = Math.max(1, opsApplied);
+        return String.format("Session    client %d, %d ops, %.1f KB out in %d batches, %.1f B/op in, %.1f us/op",
+                clientId, opsApplied, bytesSent.get() / 1024.0, batchesSent, (double) bytesReceived.get() / ops,
+                applyNanos / 1e3 / ops);
+    }
+
+    private static class Batch {
+        final int author;
+        final byte[] records;
+
+        Batch(int author, byte[] records) {
+            this.author = author;
+            this.records = records;
+        }
+    }
+
+    // Applies one author's batch to the layers it targets and journals each operation as it
+    // was applied, selecting the target layer in the journal whenever it changes
+    private static class Applier implements DocumentJournal.Handler {
+        LayerStack layers;
+        DocumentJournal journal;
+        boolean own; // the batch is this sketchpad's
+        Layer target; // null when the author's layer was removed; its operations are dropped
+        int journalled; // layer the journal has selected, or -1 if not known
+
+        void begin(LayerStack layers, DocumentJournal journal, boolean own) {
+            this.layers = layers;
+            this.journal = journal;
+            this.own = own;
+            this.target = null;
+            this.journalled = -1;
+        }
+
+        // The target layer's engine, with the journal on the same layer
+        private DrawingEngine engine() {
+            if (target.getId() != journalled) {
+                journal.recordSelectLayer(target.getId());
+                journalled = target.getId();
+            }
+            return target.getEngine();
+        }
+
+        @Override
+        public void stroke(int argb, float width, float[] points, int count, boolean render) {
+            if (target != null) {
+                FreehandStroke stroke = new FreehandStroke(points, count);
+                engine().drawStroke(stroke, new Color(argb, true), width);
+                journal.recordStroke(stroke, argb, width);
+            }
+        }
+
+        @Override
+        public void erase(int size, int[] points, int count) {
+            if (target != null) {
+                DrawingEngine engine = engine();
+                for (int i = 0; i < count; i++) {
+                    engine.erase(points[2 * i], points[2 * i + 1], size);
+                }
+                journal.recordErase(size, points, count);
+            }
+        }
+
+        @Override
+        public void shape(Shape shape, int strokeArgb, float width, int fillArgb, boolean render) {
+            if (target != null) {
+                engine().drawShape(shape, new Color(strokeArgb, true), width, new Color(fillArgb, true));
+                journal.recordShape(shape, strokeArgb, width, fillArgb);
+            }
+        }
+
+        @Override
+        public void fillShape(int id, int fillArgb, boolean render) {
+            if (target != null && id < target.getDisplayList().size()) {
+                engine().fillShape(target.getDisplayList().get(id), new Color(fillArgb, true));
+                journal.recordFillShape(id, fillArgb);
+            }
+        }
+
+        @Override
+        public void bucketFill(int x, int y, int tolerance, int argb) {
+            if (target != null && engine().bucketFill(x, y, tolerance, new Color(argb, true))) {
+                journal.recordBucketFill(x, y, tolerance, argb);
+            }
+        }
+
+        @Override
+        public void text(TextLabel label, int argb, boolean render) {
+            if (target != null) {
+                engine().drawText(label, new Color(argb, true));
+                journal.recordText(label, argb);
+            }
+        }
+
+        @Override
+        public void clear(boolean render) {
+            layers.clear();
+            journal.recordClear();
+        }
+
+        // Added above the author's layer, which it replaces as the target. The author's own
+        // sketchpad makes it active.
+        @Override
+        public void addLayer(int id, String name) {
+            if (target != null) {
+                engine();
+            }
+            Layer layer = layers.addLayer(name, target);
+            if (name.isEmpty()) {
+                layer.setName("Layer " + (layer.getId() + 1));
+            }
+            // In the journal the layer goes above the selected one and becomes selected
+            if (target == null) {
+                journal.recordSelectLayer(layers.getLayers().get(layers.getLayers().size() - 2).getId());
+            }
+            journal.recordAddLayer(layer.getId(), layer.getName());
+            journalled = layer.getId();
+            target = layer;
+            if (own) {
+                layers.setActive(layer);
+            }
+        }
+
+        // Authors drawing on the removed layer move to the one below it, as the active
+        // layer does
+        @Override
+        public void removeLayer(int id) {
+            Layer layer = layers.getLayer(id);
+            if (layer == null || layers.getLayers().size() == 1) {
+                return;
+            }
+            if (layer == target) {
+                int index = layers.getLayers().indexOf(layer);
+                target = layers.getLayers().get(index == 0 ? 1 : index - 1);
+            }
+            layers.removeLayer(layer);
+            journal.recordRemoveLayer(id);
+            journalled = -1;
+        }
+
+        @Override
+        public void selectLayer(int id) {
+            target = layers.getLayer(id);
+        }
+
+        @Override
+        public void showLayer(int id, boolean visible) {
+            Layer layer = layers.getLayer(id);
+            if (layer != null) {
+                layers.setVisible(layer, visible);
+                journal.recordShowLayer(id, visible);
+            }
+        }
+
+        @Override
+        public void trimModel(int id, int size) {
+            // Undo is not part of a session
+        }
+
+        @Override
+        public boolean hasLayer(int id) {
+            return layers.getLayer(id) != null;
+        }
+
+        @Override
+        public void patch(int layerId, int x, int y, int w, int h, int[] pixels) {
+            // Pixels are never part of a session
+        }
+    }
+
+    // Counts the bytes written to the socket
+    private static class Counted extends FilterOutputStream {
+        private final AtomicLong count;
+
+        Counted(OutputStream out, AtomicLong count) {
+            super(out);
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count.addAndGet(len);
+        }
+    }
+
+    // Counts the bytes read from the socket
+    private static class CountedInput extends FilterInputStream {
+        private final AtomicLong count;
+
+        CountedInput(InputStream in, AtomicLong count) {
+            super(in);
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count.addAndGet(n);
+            }
+            return n;
+        }
+    }
+}
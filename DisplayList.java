@@ -0,0 +1,270 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Retained list of the shapes drawn on the canvas, in paint order, with the stroke color,
+// width and fill each one was drawn with. Freehand strokes are kept here too, as open
+// paths that are never filled, and so are text labels. A uniform grid over the canvas
+// maps each cell to the shapes whose bounds overlap it, so a hit test only looks at the
+// shapes in the cell under the point instead of scanning the whole list.
+//
+// The canvas pixels, not this list, are what gets displayed and saved as raster: erasing
+// and bucket fills exist only there, so damage is repainted from the tiles and the list is
+// never replayed over them.
+public class DisplayList {
+    private static final int CELL_SIZE = 128;
+
+    private final int cols;
+    private final int rows;
+    private final int[][] cells; // item ids per cell, in ascending (paint) order
+    private final int[] cellCounts;
+    private final ArrayList<Item> items = new ArrayList<>();
+
+    public DisplayList(int width, int height) {
+        cols = (width + CELL_SIZE - 1) / CELL_SIZE;
+        rows = (height + CELL_SIZE - 1) / CELL_SIZE;
+        cells = new int[cols * rows][];
+        cellCounts = new int[cols * rows];
+    }
+
+    public Item add(Shape shape, Color strokeColor, float strokeWidth, Color fill) {
+        return index(new Item(items.size(), shape, null, null, strokeColor, strokeWidth, fill));
+    }
+
+    public Item addStroke(FreehandStroke stroke, Color color, float width) {
+        return index(new Item(items.size(), stroke.getPath(), stroke, null, color, width, null));
+    }
+
+    public Item addText(TextLabel label, Color color) {
+        return index(new Item(items.size(), label.getBounds(), null, label, color, 0, null));
+    }
+
+    private Item index(Item item) {
+        if (item.id != items.size()) {
+            throw new IllegalStateException("Items are only restored in the order they were removed");
+        }
+        items.add(item);
+        Rectangle b = item.bounds;
+        int cx0 = clamp(b.x / CELL_SIZE, cols);
+        int cy0 = clamp(b.y / CELL_SIZE, rows);
+        int cx1 = clamp((b.x + b.width) / CELL_SIZE, cols);
+        int cy1 = clamp((b.y + b.height) / CELL_SIZE, rows);
+        for (int cy = cy0; cy <= cy1; cy++) {
+            for (int cx = cx0; cx <= cx1; cx++) {
+                int cell = cy * cols + cx;
+                int[] ids = cells[cell];
+                if (ids == null) {
+                    ids = cells[cell] = new int[4];
+                } else if (cellCounts[cell] == ids.length) {
+                    ids = cells[cell] = Arrays.copyOf(ids, ids.length * 2);
+                }
+                ids[cellCounts[cell]++] = item.id;
+            }
+        }
+        return item;
+    }
+
+    // Topmost closed shape whose interior contains the point, or null
+    public Item hitTest(int x, int y) {
+        if (x < 0 || y < 0) {
+            return null;
+        }
+        int cx = x / CELL_SIZE;
+        int cy = y / CELL_SIZE;
+        if (cx >= cols || cy >= rows) {
+            return null;
+        }
+        int cell = cy * cols + cx;
+        int[] ids = cells[cell];
+        for (int i = cellCounts[cell] - 1; i >= 0; i--) {
+            Item item = items.get(ids[i]);
+            if (item.stroke == null && item.text == null && item.bounds.contains(x, y)
+                    && item.shape.contains(x, y)) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    public Item get(int id) {
+        return items.get(id);
+    }
+
+    // The items in paint order, as the list is now
+    public Item[] getItems() {
+        return items.toArray(new Item[0]);
+    }
+
+    // Removes the items from the given id on, as an undo of their drawing does. The grid
+    // cells list ids in ascending order, so the removed ones are at the end of each cell.
+    public void truncate(int size) {
+        for (int id = items.size() - 1; id >= size; id--) {
+            Rectangle b = items.remove(id).bounds;
+            int cx0 = clamp(b.x / CELL_SIZE, cols);
+            int cy0 = clamp(b.y / CELL_SIZE, rows);
+            int cx1 = clamp((b.x + b.width) / CELL_SIZE, cols);
+            int cy1 = clamp((b.y + b.height) / CELL_SIZE, rows);
+            for (int cy = cy0; cy <= cy1; cy++) {
+                for (int cx = cx0; cx <= cx1; cx++) {
+                    cellCounts[cy * cols + cx]--;
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        items.clear();
+        Arrays.fill(cells, null);
+        Arrays.fill(cellCounts, 0);
+    }
+
+    private static int clamp(int cell, int limit) {
+        return Math.max(0, Math.min(cell, limit - 1));
+    }
+
+    // A change to the list made by a drawing operation, kept with its undo step: an item
+    // added, or the fill an item had and was given
+    public static final class Change implements TileUndoManager.Change {
+        private final DisplayList list; // null for a fill
+        private final Item item;
+        private final Color before;
+        private final Color after;
+
+        private Change(DisplayList list, Item item, Color before, Color after) {
+            this.list = list;
+            this.item = item;
+            this.before = before;
+            this.after = after;
+        }
+
+        static Change added(DisplayList list, Item item) {
+            return new Change(list, item, null, null);
+        }
+
+        static Change filled(Item item, Color before, Color after) {
+            return new Change(null, item, before, after);
+        }
+
+        public Item getItem() {
+            return item;
+        }
+
+        public boolean isAdded() {
+            return list != null;
+        }
+
+        // For a fill, the fill the item has once the change is undone or redone
+        public Color getFill(boolean undone) {
+            return undone ? before : after;
+        }
+
+        @Override
+        public void undo() {
+            if (list != null) {
+                list.truncate(item.id);
+            } else {
+                item.fill = before;
+            }
+        }
+
+        @Override
+        public void redo() {
+            if (list != null) {
+                list.index(item);
+            } else {
+                item.fill = after;
+            }
+        }
+    }
+
+    // One retained shape and the attributes it is painted with
+    public static class Item {
+        final int id;
+        final Shape shape;
+        final FreehandStroke stroke; // set for freehand strokes
+        final TextLabel text; // set for text, whose shape is the area it covers
+        final Color strokeColor;
+        final float strokeWidth;
+        Color fill;
+        final Rectangle bounds; // shape bounds grown by the stroke
+
+        Item(int id, Shape shape, FreehandStroke stroke, TextLabel text, Color strokeColor, float strokeWidth,
+                Color fill) {
+            this.id = id;
+            this.shape = shape;
+            this.stroke = stroke;
+            this.text = text;
+            this.strokeColor = strokeColor;
+            this.strokeWidth = strokeWidth;
+            this.fill = fill;
+            this.bounds = shape.getBounds();
+            int pad = (int) Math.ceil(strokeWidth / 2) + 2;
+            bounds.grow(pad, pad);
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public Shape getShape() {
+            return shape;
+        }
+
+        public Rectangle getBounds() {
+            return bounds;
+        }
+
+        // The freehand stroke this item draws, or null for a shape
+        public FreehandStroke getStroke() {
+            return stroke;
+        }
+
+        // The text this item draws in its stroke color, or null
+        public TextLabel getText() {
+            return text;
+        }
+
+        public Color getStrokeColor() {
+            return strokeColor;
+        }
+
+        public float getStrokeWidth() {
+            return strokeWidth;
+        }
+
+        public Color getFill() {
+            return fill;
+        }
+
+        public void setFill(Color fill) {
+            this.fill = fill;
+        }
+
+        void paint(Graphics2D g) {
+            if (text != null) {
+                g.setColor(strokeColor);
+                text.paint(g);
+                return;
+            }
+            if (fill != null && fill.getAlpha() > 0) {
+                g.setColor(fill);
+                g.fill(shape);
+            }
+            g.setColor(strokeColor);
+            if (stroke != null) {
+                g.setStroke(new BasicStroke(strokeWidth, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+            } else {
+                g.setStroke(new BasicStroke(strokeWidth));
+            }
+            g.draw(shape);
+        }
+    }
+}
@@ -0,0 +1,1207 @@
+import java.awt.Font;
+import java.awt.Shape;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.geom.RectangularShape;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Native document format: an append-only journal of the operations that produced the
+// drawing. The file starts with a header giving the canvas size and background, followed
+// by records of the form [int length][byte type][payload], where the length counts the type
+// byte and the payload. Freehand strokes keep their simplified points and erasures their
+// points as delta-encoded varints, shapes keep their geometry and attributes, and an undo or
+// redo is journalled as the deflated pixels of the region it changed, after the records
+// that bring the shape model to match: a trim of the shapes an undo took out and fills put
+// back, or the shapes and fills a redo put back in. Replaying never needs the undo history.
+//
+// Operations are encoded into an in-memory buffer as they happen, and saving appends only
+// that buffer to the file. Once CHECKPOINT_INTERVAL operations have been saved since the
+// last checkpoint, the save also appends a raster checkpoint holding the canvas tiles
+// modified since then; the first checkpoint of a file, and the first after a clear, holds
+// every tile. Opening a document memory-maps it, restores the raster from the checkpoints
+// and replays only the operations after the last one. Shape and stroke records before it
+// are still read, but only to rebuild the shape model.
+//
+// Drawing operations apply to the active layer. Layer records add, remove, select, show
+// and hide layers by id or trim their shape models, and checkpoints and patches name the
+// layer they hold pixels of.
+//
+// Autosaves keep a recovery file the same way, with their own place in the operations:
+// each appends the records since the previous one and a checkpoint of the tiles changed
+// since, whether or not the document itself has been saved meanwhile.
+//
+// During a collaborative session the same records are what is sent between instances:
+// operations are encoded as usual but set aside to be sent instead of journalled, and are
+// journalled when the relay hands them back, in its order, through applyRemote().
+public class DocumentJournal {
+    public static final String EXTENSION = "skj";
+
+    private static final int MAGIC = 0x534B4A4E; // "SKJN"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 20;
+    // Saved operations after which a save also writes a raster checkpoint,
+    // e.g. -Dsketchpad.journal.checkpointOps=1000
+    private static final int CHECKPOINT_INTERVAL = Integer.getInteger("sketchpad.journal.checkpointOps", 256);
+
+    private static final byte STROKE = 1;
+    private static final byte ERASE = 2;
+    private static final byte SHAPE = 3;
+    private static final byte FILL_SHAPE = 4;
+    private static final byte BUCKET_FILL = 5;
+    private static final byte TEXT = 6;
+    private static final byte CLEAR = 7;
+    private static final byte PATCH = 8;
+    private static final byte CHECKPOINT = 9;
+    private static final byte LAYER = 10;
+
+    private static final byte LAYER_ADD = 0;
+    private static final byte LAYER_REMOVE = 1;
+    private static final byte LAYER_SELECT = 2;
+    private static final byte LAYER_SHOW = 3;
+    private static final byte LAYER_HIDE = 4;
+    private static final byte LAYER_TRIM = 5;
+
+    private static final byte LINE = 0;
+    private static final byte RECTANGLE = 1;
+    private static final byte OVAL = 2;
+
+    // Receives the operations of a document while it is opened. render is false for
+    // operations that precede the restored raster and only need to update the shape model.
+    // Drawing operations go to the active layer; layer operations are always applied.
+    public interface Handler {
+        void stroke(int argb, float width, float[] points, int count, boolean render);
+
+        void erase(int size, int[] points, int count);
+
+        void shape(Shape shape, int strokeArgb, float width, int fillArgb, boolean render);
+
+        void fillShape(int id, int fillArgb, boolean render);
+
+        void bucketFill(int x, int y, int tolerance, int argb);
+
+        void text(TextLabel label, int argb, boolean render);
+
+        void clear(boolean render);
+
+        // Adds an empty layer above the active one and makes it active
+        void addLayer(int id, String name);
+
+        void removeLayer(int id);
+
+        void selectLayer(int id);
+
+        void showLayer(int id, boolean visible);
+
+        // Drops the items of a layer's shape model from the given id on, as an undo does
+        void trimModel(int id, int size);
+
+        boolean hasLayer(int id);
+
+        // Replaces a rectangle of a layer's pixels, from an undo or redo or a checkpoint
+        void patch(int layerId, int x, int y, int w, int h, int[] pixels);
+    }
+
+    private final int width;
+    private final int height;
+    private final int background;
+
+    // Operations recorded since the last save, already encoded as records
+    private final RecordBuffer pending = new RecordBuffer();
+    private int pendingOps;
+    // Set during a session: operations recorded but not yet taken to be sent
+    private RecordBuffer outgoing;
+    private Runnable outgoingListener;
+
+    private File file;
+    private long fileLength; // end of the last complete record in the file
+    private int opsSinceCheckpoint; // saved after the last checkpoint
+    // Canvas modification count the last checkpoint of each layer reflects, by layer id
+    private final HashMap<Integer, Long> checkpointCounts = new HashMap<>();
+    private int clears; // clears recorded so far
+    private int clearsAtCheckpoint = -1; // clears the last checkpoint reflects, -1 before the first
+
+    private Save saving; // prepared but not yet reported saved or failed
+    private long discarded; // bytes of records dropped from pending by saves so far
+    private boolean recovered; // restored from a recovery file and not saved since
+
+    // Recovery file the autosaves go to, apart from the document's file, or null before the
+    // first one
+    private File autosaveFile;
+    private long autosaveLength;
+    private long autosavedTo; // records autosaved so far, counted like discarded
+    private final HashMap<Integer, Long> autosaveCounts = new HashMap<>();
+    private int clearsAtAutosave;
+    // Set while a document is being opened
+    private ByteBuffer mapped;
+
+    public DocumentJournal(int width, int height, int background) {
+        this.width = width;
+        this.height = height;
+        this.background = background;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBackground() {
+        return background;
+    }
+
+    // File the journal was last saved to or opened from, or null
+    public File getFile() {
+        return file;
+    }
+
+    // Whether operations have been recorded since the last save, or the drawing was
+    // restored from a recovery file and not saved since
+    public boolean isModified() {
+        return pendingOps > 0 || recovered;
+    }
+
+    // Whether a prepared save has not been reported back yet; another one must not be
+    // prepared until it has
+    public boolean isSaving() {
+        return saving != null;
+    }
+
+    public void recordStroke(FreehandStroke stroke, int argb, float strokeWidth) {
+        putStroke(pending, stroke, argb, strokeWidth);
+        recorded();
+    }
+
+    public void recordErase(int size, int[] points, int count) {
+        pending.begin(ERASE);
+        pending.putVarInt(size);
+        pending.putPoints(points, count);
+        pending.end();
+        recorded();
+    }
+
+    public void recordShape(Shape shape, int strokeArgb, float strokeWidth, int fillArgb) {
+        putShape(pending, shape, strokeArgb, strokeWidth, fillArgb);
+        recorded();
+    }
+
+    public void recordFillShape(int id, int fillArgb) {
+        pending.begin(FILL_SHAPE);
+        pending.putVarInt(id);
+        pending.putInt(fillArgb);
+        pending.end();
+        recorded();
+    }
+
+    public void recordBucketFill(int x, int y, int tolerance, int argb) {
+        pending.begin(BUCKET_FILL);
+        pending.putVarInt(x);
+        pending.putVarInt(y);
+        pending.putVarInt(tolerance);
+        pending.putInt(argb);
+        pending.end();
+        recorded();
+    }
+
+    public void recordText(TextLabel label, int argb) {
+        putText(pending, label, argb);
+        recorded();
+    }
+
+    public void recordClear() {
+        pending.begin(CLEAR);
+        pending.end();
+        if (recorded()) {
+            clears++;
+        }
+    }
+
+    public void recordAddLayer(int id, String name) {
+        putLayer(pending, LAYER_ADD, id);
+        pending.putString(name);
+        pending.end();
+        recorded();
+    }
+
+    public void recordRemoveLayer(int id) {
+        putLayer(pending, LAYER_REMOVE, id);
+        pending.end();
+        recorded();
+    }
+
+    public void recordSelectLayer(int id) {
+        putLayer(pending, LAYER_SELECT, id);
+        pending.end();
+        recorded();
+    }
+
+    public void recordShowLayer(int id, boolean visible) {
+        putLayer(pending, visible ? LAYER_SHOW : LAYER_HIDE, id);
+        pending.end();
+        recorded();
+    }
+
+    // Records that an undo took a layer's shape model back to its first size items
+    public void recordTrimModel(int id, int size) {
+        putLayer(pending, LAYER_TRIM, id);
+        pending.putVarInt(size);
+        pending.end();
+        recorded();
+    }
+
+    // Records the pixels of a region of a layer as they are after an undo or redo. Pixels
+    // are never sent to a session, so this is only for documents drawn alone.
+    public void recordPatch(int layerId, TiledCanvas canvas, int x, int y, int w, int h) {
+        int[] pixels = new int[w * h];
+        canvas.getRect(x, y, w, h, pixels, 0, w);
+        pending.begin(PATCH);
+        pending.putVarInt(layerId);
+        pending.putVarInt(x);
+        pending.putVarInt(y);
+        pending.putVarInt(w);
+        pending.putVarInt(h);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        pending.putDeflated(deflater, toBytes(pixels, pixels.length, null));
+        deflater.end();
+        pending.end();
+        pendingOps++;
+    }
+
+    // Counts the record just encoded as pending, or during a session moves it to the
+    // records to send. Returns whether it was kept.
+    private boolean recorded() {
+        if (outgoing == null) {
+            pendingOps++;
+            return true;
+        }
+        int start = pending.recordStart;
+        outgoing.append(pending.bytes, start, pending.size() - start);
+        pending.size = start;
+        outgoingListener.run();
+        return false;
+    }
+
+    // From now on, operations are recorded to be sent rather than journalled. The listener
+    // is told of each one.
+    public void beginSession(Runnable listener) {
+        outgoing = new RecordBuffer();
+        outgoingListener = listener;
+    }
+
+    // Operations are journalled again; any not yet taken are dropped
+    public void endSession() {
+        outgoing = null;
+        outgoingListener = null;
+    }
+
+    // The operations recorded since the last call, as one batch of records that starts by
+    // selecting the layer they were drawn on, or null if there were none
+    public byte[] takeOutgoing(int layerId) {
+        if (outgoing == null || outgoing.size() == 0) {
+            return null;
+        }
+        RecordBuffer batch = new RecordBuffer();
+        putLayer(batch, LAYER_SELECT, layerId);
+        batch.end();
+        batch.append(outgoing.bytes, 0, outgoing.size());
+        outgoing.size = 0;
+        return batch.toByteArray();
+    }
+
+    // Replays a batch of records received from a session. Whatever the handler records
+    // while applying them is journalled, not sent. Returns the number of records.
+    public int applyRemote(byte[] records, Handler handler) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(records);
+        int[] offsets = new int[16];
+        int count = 0;
+        int position = 0;
+        while (position + 5 <= records.length) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > records.length - position - 4) {
+                throw new IOException("Session data is damaged");
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = position;
+            position += 4 + length;
+        }
+        RecordBuffer sending = outgoing;
+        outgoing = null;
+        Reader reader = new Reader(buffer);
+        try {
+            replayRecords(reader, offsets, 0, count, handler, true);
+        } catch (DataFormatException | RuntimeException e) {
+            throw new IOException("Session data is damaged", e);
+        } finally {
+            outgoing = sending;
+            reader.inflater.end();
+        }
+        return count;
+    }
+
+    // Captures what saving to the file involves. Called on the thread that draws; the
+    // returned save can then be written on another thread while drawing continues, and
+    // saved() is called back on the drawing thread once it has been written.
+    public Save prepareSave(File target, LayerStack layers) {
+        boolean fresh = !target.equals(file);
+        boolean checkpoint = fresh || opsSinceCheckpoint + pendingOps >= CHECKPOINT_INTERVAL || clearsAtCheckpoint < 0;
+        Save save = prepare(target, layers, fresh, fileLength, 0, checkpoint, checkpointCounts, clearsAtCheckpoint);
+        save.pendingLength = pending.size();
+        save.opCount = pendingOps;
+        saving = save;
+        return save;
+    }
+
+    // Captures an autosave to a recovery file, kept apart from the document's own file and
+    // its pending operations: the records since the last autosave and a checkpoint of the
+    // tiles modified since, so the recovery file always ends with the whole raster. The
+    // first autosave to a file, or one whose records were dropped by a save meanwhile,
+    // rewrites it. Returns null when there is nothing to add. autosaved() is called back
+    // once it has been written.
+    public Save prepareAutosave(File target, LayerStack layers) {
+        int from = (int) (autosavedTo - discarded);
+        boolean fresh = !target.equals(autosaveFile) || from < 0;
+        if (fresh ? !isModified() : from == pending.size()) {
+            return null;
+        }
+        Save save = prepare(target, layers, fresh, autosaveLength, Math.max(from, 0), true, autosaveCounts,
+                clearsAtAutosave);
+        save.autosaveTo = discarded + pending.size();
+        return save;
+    }
+
+    // Captures a copy of the whole document to another file, leaving the journal as it is
+    public Save prepareCopy(File target, LayerStack layers) {
+        return prepare(target, layers, true, 0, 0, true, checkpointCounts, clearsAtCheckpoint);
+    }
+
+    // A save of the current state to target. A fresh one is rewritten from the layers and
+    // their shape models, otherwise the pending records from the given offset are appended
+    // at appendAt. With checkpoint, every layer follows, holding the tiles modified since
+    // the given counts, or all of them where there is no count or the drawing has been
+    // cleared since clearsAt.
+    private Save prepare(File target, LayerStack layers, boolean fresh, long appendAt, int from, boolean checkpoint,
+            HashMap<Integer, Long> counts, int clearsAt) {
+        Save save = new Save();
+        save.target = target;
+        save.width = width;
+        save.height = height;
+        save.background = background;
+        save.fresh = fresh;
+        save.clears = clears;
+        List<Layer> stack = layers.getLayers();
+        if (fresh) {
+            // A new file starts from the current state: the layers and their shape models,
+            // then a full checkpoint of every layer
+            RecordBuffer model = new RecordBuffer();
+            for (Layer layer : stack) {
+                putLayer(model, LAYER_ADD, layer.getId());
+                model.putString(layer.getName());
+                model.end();
+                if (!layer.isVisible()) {
+                    putLayer(model, LAYER_HIDE, layer.getId());
+                    model.end();
+                }
+                DisplayList shapes = layer.getDisplayList();
+                for (int id = 0; id < shapes.size(); id++) {
+                    DisplayList.Item item = shapes.get(id);
+                    if (item.getStroke() != null) {
+                        putStroke(model, item.getStroke(), item.getStrokeColor().getRGB(), item.getStrokeWidth());
+                        continue;
+                    }
+                    if (item.getText() != null) {
+                        putText(model, item.getText(), item.getStrokeColor().getRGB());
+                        continue;
+                    }
+                    putShape(model, item.getShape(), item.getStrokeColor().getRGB(), item.getStrokeWidth(),
+                            item.getFill() == null ? 0 : item.getFill().getRGB());
+                }
+            }
+            putLayer(model, LAYER_SELECT, layers.getActive().getId());
+            model.end();
+            save.records = model.toByteArray();
+        } else {
+            save.appendAt = appendAt;
+            save.records = Arrays.copyOfRange(pending.bytes, from, pending.size());
+        }
+        if (checkpoint) {
+            int n = stack.size();
+            save.checkpointIds = new int[n];
+            save.checkpoints = new TiledCanvas[n];
+            save.base = new boolean[n];
+            save.since = new long[n];
+            save.checkpointCounts = new long[n];
+            for (int i = 0; i < n; i++) {
+                Layer layer = stack.get(i);
+                Long since = counts.get(layer.getId());
+                save.checkpointIds[i] = layer.getId();
+                save.checkpoints[i] = layer.getCanvas().snapshot();
+                save.base[i] = fresh || since == null || clearsAt != clears;
+                save.since[i] = since == null ? 0 : since;
+                save.checkpointCounts[i] = save.checkpoints[i].getModificationCount();
+            }
+        }
+        return save;
+    }
+
+    // Accounts for a save written successfully. Operations recorded while it was being
+    // written stay pending for the next save.
+    public void saved(Save save) {
+        saving = null;
+        pending.discard(save.pendingLength);
+        discarded += save.pendingLength;
+        pendingOps -= save.opCount;
+        recovered = false;
+        file = save.target;
+        fileLength = save.length;
+        if (save.checkpointIds != null) {
+            opsSinceCheckpoint = 0;
+            checkpointCounts.clear();
+            for (int i = 0; i < save.checkpointIds.length; i++) {
+                checkpointCounts.put(save.checkpointIds[i], save.checkpointCounts[i]);
+            }
+            clearsAtCheckpoint = save.clears;
+        } else {
+            opsSinceCheckpoint += save.opCount;
+        }
+    }
+
+    // Keeps everything pending after a save that could not be written
+    public void saveFailed(Save save) {
+        saving = null;
+    }
+
+    // Accounts for an autosave written successfully
+    public void autosaved(Save save) {
+        autosaveFile = save.target;
+        autosaveLength = save.length;
+        autosavedTo = save.autosaveTo;
+        autosaveCounts.clear();
+        for (int i = 0; i < save.checkpointIds.length; i++) {
+            autosaveCounts.put(save.checkpointIds[i], save.checkpointCounts[i]);
+        }
+        clearsAtAutosave = save.clears;
+    }
+
+    // The recovery file was deleted or could not be written; the next autosave rewrites it
+    public void autosaveDiscarded() {
+        autosaveFile = null;
+    }
+
+    // Turns a journal opened from a recovery file into a new document that has not been
+    // saved, holding the restored drawing
+    public void recovered() {
+        file = null;
+        fileLength = 0;
+        recovered = true;
+    }
+
+    // Opens a document and reads its header. replay() then restores its contents.
+    public static DocumentJournal open(File file) throws IOException {
+        ByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long size = raf.length();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Document is too large to open");
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException(file.getName() + " is not a sketch document");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException(file.getName() + " was written by an unsupported version");
+        }
+        DocumentJournal journal = new DocumentJournal(buffer.getInt(8), buffer.getInt(12), buffer.getInt(16));
+        journal.file = file;
+        journal.mapped = buffer;
+        return journal;
+    }
+
+    // Restores an opened document into an empty layer stack of its size: the layers and
+    // shape models from the records before the last checkpoint, the raster from the
+    // checkpoints, and the operations after it.
+    public void replay(LayerStack layers) throws IOException {
+        ByteBuffer buffer = mapped;
+        mapped = null;
+        if (buffer == null) {
+            throw new IllegalStateException("Journal was not opened from a file");
+        }
+
+        // Index the records. A record cut short by an interrupted save ends the document.
+        int[] offsets = new int[256];
+        int count = 0;
+        int lastCheckpoint = -1;
+        int position = HEADER_SIZE;
+        while (position + 5 <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > buffer.limit() - position - 4) {
+                break;
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            if (buffer.get(position + 4) == CHECKPOINT) {
+                lastCheckpoint = count;
+            }
+            offsets[count++] = position;
+            position += 4 + length;
+        }
+        fileLength = position;
+
+        Reader reader = new Reader(buffer);
+        try {
+            replayRecords(reader, offsets, 0, lastCheckpoint + 1, layers, false);
+            if (lastCheckpoint >= 0) {
+                restoreCheckpoints(reader, offsets, lastCheckpoint, layers);
+                clearsAtCheckpoint = 0;
+            }
+            for (Layer layer : layers.getLayers()) {
+                checkpointCounts.put(layer.getId(), layer.getCanvas().getModificationCount());
+            }
+            clears += replayRecords(reader, offsets, lastCheckpoint + 1, count, layers, true);
+            opsSinceCheckpoint = count - lastCheckpoint - 1;
+        } catch (DataFormatException | RuntimeException e) {
+            throw new IOException("Document is damaged", e);
+        } finally {
+            reader.inflater.end();
+        }
+    }
+
+    // Replays records from..to-1. Without render only what the raster does not hold is
+    // replayed: the shape model and the layers. Returns the number of clears rendered.
+    private int replayRecords(Reader reader, int[] offsets, int from, int to, Handler handler, boolean render)
+            throws DataFormatException {
+        int cleared = 0;
+        int[] points = new int[64];
+        float[] strokePoints = new float[64];
+        for (int i = from; i < to; i++) {
+            reader.position = offsets[i] + 4;
+            byte type = reader.getByte();
+            if (!render && type != STROKE && type != SHAPE && type != FILL_SHAPE && type != TEXT && type != CLEAR
+                    && type != LAYER) {
+                continue;
+            }
+            switch (type) {
+                case STROKE: {
+                    int argb = reader.getInt();
+                    float strokeWidth = reader.getFloat();
+                    strokePoints = reader.getFloatPoints(strokePoints);
+                    handler.stroke(argb, strokeWidth, strokePoints, reader.pointCount, render);
+                    break;
+                }
+                case ERASE: {
+                    int size = reader.getVarInt();
+                    points = reader.getPoints(points);
+                    handler.erase(size, points, reader.pointCount);
+                    break;
+                }
+                case SHAPE: {
+                    byte kind = reader.getByte();
+                    double x = reader.getFloat();
+                    double y = reader.getFloat();
+                    double a = reader.getFloat();
+                    double b = reader.getFloat();
+                    int strokeArgb = reader.getInt();
+                    float strokeWidth = reader.getFloat();
+                    int fillArgb = reader.getInt();
+                    handler.shape(toShape(kind, x, y, a, b), strokeArgb, strokeWidth, fillArgb, render);
+                    break;
+                }
+                case FILL_SHAPE: {
+                    int id = reader.getVarInt();
+                    handler.fillShape(id, reader.getInt(), render);
+                    break;
+                }
+                case BUCKET_FILL: {
+                    int x = reader.getVarInt();
+                    int y = reader.getVarInt();
+                    int tolerance = reader.getVarInt();
+                    handler.bucketFill(x, y, tolerance, reader.getInt());
+                    break;
+                }
+                case TEXT: {
+                    String name = reader.getString();
+                    int style = reader.getVarInt();
+                    int size = reader.getVarInt();
+                    int argb = reader.getInt();
+                    int x = reader.getVarInt();
+                    int y = reader.getVarInt();
+                    TextLabel label = new TextLabel(reader.getString(), GlyphCache.font(name, style, size), x, y);
+                    handler.text(label, argb, render);
+                    break;
+                }
+                case CLEAR:
+                    if (render) {
+                        cleared++;
+                    }
+                    handler.clear(render);
+                    break;
+                case PATCH: {
+                    int layerId = reader.getLayerId();
+                    int x = reader.getVarInt();
+                    int y = reader.getVarInt();
+                    int w = reader.getVarInt();
+                    int h = reader.getVarInt();
+                    int[] pixels = new int[w * h];
+                    reader.getDeflated(pixels, pixels.length);
+                    handler.patch(layerId, x, y, w, h, pixels);
+                    break;
+                }
+                case LAYER: {
+                    byte action = reader.getByte();
+                    int id = reader.getVarInt();
+                    switch (action) {
+                        case LAYER_ADD:
+                            handler.addLayer(id, reader.getString());
+                            break;
+                        case LAYER_REMOVE:
+                            handler.removeLayer(id);
+                            break;
+                        case LAYER_SELECT:
+                            handler.selectLayer(id);
+                            break;
+                        case LAYER_SHOW:
+                        case LAYER_HIDE:
+                            handler.showLayer(id, action == LAYER_SHOW);
+                            break;
+                        case LAYER_TRIM:
+                            handler.trimModel(id, reader.getVarInt());
+                            break;
+                        default:
+                            break;
+                    }
+                    break;
+                }
+                default:
+                    // Written by a newer version; skipped
+                    break;
+            }
+        }
+        return cleared;
+    }
+
+    // Restores the raster of each layer from the checkpoints, newest first, down to the
+    // layer's last full one. Each tile is taken from the newest checkpoint that holds it.
+    // Checkpoints of layers that were removed later are passed over.
+    private void restoreCheckpoints(Reader reader, int[] offsets, int last, Handler handler)
+            throws DataFormatException {
+        HashMap<Integer, boolean[]> restored = new HashMap<>();
+        HashSet<Integer> complete = new HashSet<>();
+        int[] pixels = null;
+        for (int i = last; i >= 0; i--) {
+            reader.position = offsets[i] + 4;
+            if (reader.getByte() != CHECKPOINT) {
+                continue;
+            }
+            int layerId = reader.getLayerId();
+            if (complete.contains(layerId) || !handler.hasLayer(layerId)) {
+                continue;
+            }
+            boolean base = reader.getByte() != 0;
+            int tileSize = reader.getVarInt();
+            int columns = (width + tileSize - 1) / tileSize;
+            boolean[] done = restored.get(layerId);
+            if (done == null) {
+                done = new boolean[columns * ((height + tileSize - 1) / tileSize)];
+                restored.put(layerId, done);
+            }
+            if (pixels == null || pixels.length != tileSize * tileSize) {
+                pixels = new int[tileSize * tileSize];
+            }
+            int tiles = reader.getVarInt();
+            for (int t = 0; t < tiles; t++) {
+                int index = reader.getVarInt();
+                if (done[index]) {
+                    reader.skipDeflated();
+                    continue;
+                }
+                done[index] = true;
+                reader.getDeflated(pixels, pixels.length);
+                int x = index % columns * tileSize;
+                int y = index / columns * tileSize;
+                int w = Math.min(tileSize, width - x);
+                int h = Math.min(tileSize, height - y);
+                if (w < tileSize) {
+                    // patch() takes rows w pixels apart
+                    for (int row = 1; row < h; row++) {
+                        System.arraycopy(pixels, row * tileSize, pixels, row * w, w);
+                    }
+                }
+                handler.patch(layerId, x, y, w, h, pixels);
+            }
+            if (base) {
+                complete.add(layerId);
+            }
+        }
+    }
+
+    private static void putLayer(RecordBuffer out, byte action, int id) {
+        out.begin(LAYER);
+        out.put(action);
+        out.putVarInt(id);
+    }
+
+    private static void putStroke(RecordBuffer out, FreehandStroke stroke, int argb, float strokeWidth) {
+        out.begin(STROKE);
+        out.putInt(argb);
+        out.putFloat(strokeWidth);
+        out.putFloatPoints(stroke.getPoints(), stroke.getPointCount());
+        out.end();
+    }
+
+    private static void putText(RecordBuffer out, TextLabel label, int argb) {
+        Font font = label.getFont();
+        out.begin(TEXT);
+        out.putString(font.getName());
+        out.putVarInt(font.getStyle());
+        out.putVarInt(font.getSize());
+        out.putInt(argb);
+        out.putVarInt(label.getX());
+        out.putVarInt(label.getY());
+        out.putString(label.getText());
+        out.end();
+    }
+
+    private static void putShape(RecordBuffer out, Shape shape, int strokeArgb, float strokeWidth, int fillArgb) {
+        out.begin(SHAPE);
+        if (shape instanceof Line2D) {
+            Line2D line = (Line2D) shape;
+            out.put(LINE);
+            out.putFloat((float) line.getX1());
+            out.putFloat((float) line.getY1());
+            out.putFloat((float) line.getX2());
+            out.putFloat((float) line.getY2());
+        } else if (shape instanceof Rectangle2D || shape instanceof Ellipse2D) {
+            Rectangle2D frame = ((RectangularShape) shape).getFrame();
+            out.put(shape instanceof Ellipse2D ? OVAL : RECTANGLE);
+            out.putFloat((float) frame.getX());
+            out.putFloat((float) frame.getY());
+            out.putFloat((float) frame.getWidth());
+            out.putFloat((float) frame.getHeight());
+        } else {
+            throw new IllegalArgumentException("Unsupported shape " + shape.getClass().getName());
+        }
+        out.putInt(strokeArgb);
+        out.putFloat(strokeWidth);
+        out.putInt(fillArgb);
+        out.end();
+    }
+
+    private static Shape toShape(byte kind, double x, double y, double a, double b) {
+        switch (kind) {
+            case LINE:
+                return new Line2D.Double(x, y, a, b);
+            case RECTANGLE:
+                return new Rectangle2D.Double(x, y, a, b);
+            case OVAL:
+                return new Ellipse2D.Double(x, y, a, b);
+            default:
+                throw new IllegalArgumentException("Unknown shape kind " + kind);
+        }
+    }
+
+    private static byte[] toBytes(int[] pixels, int length, byte[] bytes) {
+        if (bytes == null || bytes.length < length * 4) {
+            bytes = new byte[length * 4];
+        }
+        ByteBuffer.wrap(bytes).asIntBuffer().put(pixels, 0, length);
+        return bytes;
+    }
+
+    // The data a save writes, captured by prepareSave()
+    public static class Save {
+        File target;
+        int width;
+        int height;
+        int background;
+        boolean fresh; // rewrite the file from the current state instead of appending
+        long appendAt;
+        byte[] records;
+        int pendingLength;
+        int opCount;
+        int clears;
+        long autosaveTo;
+        long bytesPerSecond; // write rate limit, 0 for none
+        private long written;
+        private long startNanos;
+        // Layers to checkpoint, or null: their ids, snapshots, whether each checkpoint is
+        // full, the modification count after which tiles go into a partial one, and the
+        // count each snapshot reflects
+        int[] checkpointIds;
+        TiledCanvas[] checkpoints;
+        boolean[] base;
+        long[] since;
+        long[] checkpointCounts;
+        long length;
+
+        public File getTarget() {
+            return target;
+        }
+
+        // Keeps write() under a rate, in bytes per second, or lets it run at full speed with 0
+        public void setRateLimit(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        // Writes the save to its file. Any trailing bytes of an earlier failed save are
+        // dropped first, so the file always ends with complete records.
+        public void write() throws IOException {
+            written = 0;
+            startNanos = System.nanoTime();
+            try (RandomAccessFile raf = new RandomAccessFile(target, "rw")) {
+                FileChannel channel = raf.getChannel();
+                long position = appendAt;
+                if (fresh) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(background);
+                    header.flip();
+                    channel.truncate(0);
+                    position = writeFully(channel, header, 0);
+                } else {
+                    channel.truncate(position);
+                }
+                position = writeFully(channel, ByteBuffer.wrap(records), position);
+                if (checkpoints != null) {
+                    for (int i = 0; i < checkpoints.length; i++) {
+                        RecordBuffer record = encodeCheckpoint(i);
+                        position = writeFully(channel, ByteBuffer.wrap(record.bytes, 0, record.size()), position);
+                    }
+                }
+                channel.force(false);
+                length = position;
+            }
+            records = null;
+            checkpoints = null;
+        }
+
+        private RecordBuffer encodeCheckpoint(int layer) {
+            TiledCanvas canvas = checkpoints[layer];
+            boolean base = this.base[layer];
+            long since = this.since[layer];
+            int[] indices = new int[canvas.getColumns() * canvas.getRows()];
+            int count = 0;
+            for (int ty = 0; ty < canvas.getRows(); ty++) {
+                for (int tx = 0; tx < canvas.getColumns(); tx++) {
+                    if (canvas.tile(tx, ty) != null && (base || canvas.isModifiedSince(tx, ty, since))) {
+                        indices[count++] = ty * canvas.getColumns() + tx;
+                    }
+                }
+            }
+            RecordBuffer out = new RecordBuffer();
+            out.begin(CHECKPOINT);
+            out.putVarInt(checkpointIds[layer]);
+            out.put((byte) (base ? 1 : 0));
+            out.putVarInt(TiledCanvas.TILE_SIZE);
+            out.putVarInt(count);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            byte[] bytes = null;
+            for (int i = 0; i < count; i++) {
+                int[] tile = canvas.tile(indices[i] % canvas.getColumns(), indices[i] / canvas.getColumns());
+                bytes = toBytes(tile, tile.length, bytes);
+                out.putVarInt(indices[i]);
+                out.putDeflated(deflater, bytes);
+                deflater.reset();
+            }
+            deflater.end();
+            out.end();
+            return out;
+        }
+
+        // Under a rate limit the data goes out in slices of about a tenth of a second each,
+        // with a pause after any slice that finishes ahead of the rate
+        private long writeFully(FileChannel channel, ByteBuffer data, long position) throws IOException {
+            if (bytesPerSecond <= 0) {
+                while (data.hasRemaining()) {
+                    position += channel.write(data, position);
+                }
+                return position;
+            }
+            int slice = (int) Math.max(4096, Math.min(bytesPerSecond / 10, 1 << 20));
+            int limit = data.limit();
+            while (data.position() < limit) {
+                data.limit((int) Math.min(limit, (long) data.position() + slice));
+                int start = data.position();
+                while (data.hasRemaining()) {
+                    position += channel.write(data, position);
+                }
+                written += data.position() - start;
+                data.limit(limit);
+                long wait = startNanos + written * 1_000_000_000L / bytesPerSecond - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Save interrupted");
+                    }
+                }
+            }
+            return position;
+        }
+    }
+
+    // Growable byte buffer that records are encoded into
+    private static class RecordBuffer {
+        byte[] bytes = new byte[4096];
+        int size;
+        int recordStart;
+
+        int size() {
+            return size;
+        }
+
+        void begin(byte type) {
+            recordStart = size;
+            putInt(0); // length, filled in by end()
+            put(type);
+        }
+
+        void end() {
+            int length = size - recordStart - 4;
+            bytes[recordStart] = (byte) (length >>> 24);
+            bytes[recordStart + 1] = (byte) (length >>> 16);
+            bytes[recordStart + 2] = (byte) (length >>> 8);
+            bytes[recordStart + 3] = (byte) length;
+        }
+
+        void put(byte b) {
+            ensure(1);
+            bytes[size++] = b;
+        }
+
+        void putInt(int v) {
+            ensure(4);
+            bytes[size++] = (byte) (v >>> 24);
+            bytes[size++] = (byte) (v >>> 16);
+            bytes[size++] = (byte) (v >>> 8);
+            bytes[size++] = (byte) v;
+        }
+
+        void putFloat(float v) {
+            putInt(Float.floatToIntBits(v));
+        }
+
+        void putVarInt(int v) {
+            ensure(5);
+            while ((v & ~0x7F) != 0) {
+                bytes[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            bytes[size++] = (byte) v;
+        }
+
+        // Points as a count followed by zigzag-encoded deltas from the previous point
+        void putPoints(int[] points, int count) {
+            putVarInt(count);
+            int px = 0;
+            int py = 0;
+            for (int i = 0; i < count; i++) {
+                int x = points[2 * i];
+                int y = points[2 * i + 1];
+                putVarInt(zigzag(x - px));
+                putVarInt(zigzag(y - py));
+                px = x;
+                py = y;
+            }
+        }
+
+        // Float points as quarter pixels, encoded like integer points
+        void putFloatPoints(float[] points, int count) {
+            putVarInt(count);
+            int px = 0;
+            int py = 0;
+            for (int i = 0; i < count; i++) {
+                int x = Math.round(points[2 * i] * 4);
+                int y = Math.round(points[2 * i + 1] * 4);
+                putVarInt(zigzag(x - px));
+                putVarInt(zigzag(y - py));
+                px = x;
+                py = y;
+            }
+        }
+
+        void putString(String s) {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            putVarInt(utf8.length);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, size, utf8.length);
+            size += utf8.length;
+        }
+
+        // Raw-deflated data prefixed with its compressed length
+        void putDeflated(Deflater deflater, byte[] data) {
+            deflater.setInput(data);
+            deflater.finish();
+            int lengthAt = size;
+            putInt(0);
+            int start = size;
+            while (!deflater.finished()) {
+                ensure(Math.max(4096, data.length / 8));
+                size += deflater.deflate(bytes, size, bytes.length - size);
+            }
+            int length = size - start;
+            bytes[lengthAt] = (byte) (length >>> 24);
+            bytes[lengthAt + 1] = (byte) (length >>> 16);
+            bytes[lengthAt + 2] = (byte) (length >>> 8);
+            bytes[lengthAt + 3] = (byte) length;
+        }
+
+        void append(byte[] data, int offset, int length) {
+            ensure(length);
+            System.arraycopy(data, offset, bytes, size, length);
+            size += length;
+        }
+
+        // Drops the first n bytes, keeping anything encoded after them
+        void discard(int n) {
+            System.arraycopy(bytes, n, bytes, 0, size - n);
+            size -= n;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        private void ensure(int n) {
+            if (size + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + n));
+            }
+        }
+
+        private static int zigzag(int v) {
+            return (v << 1) ^ (v >> 31);
+        }
+    }
+
+    // Decodes records from the mapped file
+    private static class Reader {
+        final ByteBuffer buffer;
+        final Inflater inflater = new Inflater();
+        int position;
+        int pointCount;
+        private byte[] inflated;
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        // Layer a checkpoint or patch belongs to
+        int getLayerId() {
+            return getVarInt();
+        }
+
+        byte getByte() {
+            return buffer.get(position++);
+        }
+
+        int getInt() {
+            int v = buffer.getInt(position);
+            position += 4;
+            return v;
+        }
+
+        float getFloat() {
+            return Float.intBitsToFloat(getInt());
+        }
+
+        int getVarInt() {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = buffer.get(position++);
+                v |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+            throw new IllegalStateException("Malformed varint");
+        }
+
+        // Reads points into the array, growing it if needed; the count is left in pointCount
+        int[] getPoints(int[] points) {
+            pointCount = getVarInt();
+            if (points.length < 2 * pointCount) {
+                points = new int[2 * pointCount];
+            }
+            int x = 0;
+            int y = 0;
+            for (int i = 0; i < pointCount; i++) {
+                x += unzigzag(getVarInt());
+                y += unzigzag(getVarInt());
+                points[2 * i] = x;
+                points[2 * i + 1] = y;
+            }
+            return points;
+        }
+
+        float[] getFloatPoints(float[] points) {
+            pointCount = getVarInt();
+            if (points.length < 2 * pointCount) {
+                points = new float[2 * pointCount];
+            }
+            int x = 0;
+            int y = 0;
+            for (int i = 0; i < pointCount; i++) {
+                x += unzigzag(getVarInt());
+                y += unzigzag(getVarInt());
+                points[2 * i] = x / 4f;
+                points[2 * i + 1] = y / 4f;
+            }
+            return points;
+        }
+
+        String getString() {
+            int length = getVarInt();
+            byte[] utf8 = new byte[length];
+            buffer.get(position, utf8);
+            position += length;
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        // Inflates deflated pixel data straight out of the mapping
+        void getDeflated(int[] pixels, int count) throws DataFormatException {
+            int length = getInt();
+            if (inflated == null || inflated.length < count * 4) {
+                inflated = new byte[count * 4];
+            }
+            inflater.reset();
+            inflater.setInput(buffer.slice(position, length));
+            int n = 0;
+            while (n < count * 4 && !inflater.finished()) {
+                int read = inflater.inflate(inflated, n, count * 4 - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated pixel data");
+                }
+                n += read;
+            }
+            ByteBuffer.wrap(inflated, 0, count * 4).asIntBuffer().get(pixels, 0, count);
+            position += length;
+        }
+
+        void skipDeflated() {
+            int length = getInt();
+            position += length;
+        }
+
+        private static int unzigzag(int v) {
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.util.function.Consumer;
+
+// The drawing operations behind the tools, working on a canvas and its shape model with
+// no window or input events involved. Every layer has an engine; the app routes its tools
+// through the active layer's, and documents are replayed through the same engines, in
+// the app and in BatchRenderer with java.awt.headless=true, so replayed operations are
+// applied exactly as the tools did.
+//
+// Given an undo manager, each operation saves the tiles it is about to change, joining the
+// caller's open transaction if there is one, along with what it changes in the shape
+// model, so undo takes shapes and fills out of the model as well as off the canvas. Every
+// changed region is reported to the damage listener.
+public class DrawingEngine {
+    private final TiledCanvas canvas;
+    private final DisplayList displayList;
+    private final FloodFill floodFill;
+    private TileUndoManager undoManager; // null when nothing is undoable
+    private Consumer<Rectangle> damageListener = region -> {
+    };
+
+    public DrawingEngine(TiledCanvas canvas, TileUndoManager undoManager) {
+        this.canvas = canvas;
+        this.displayList = new DisplayList(canvas.getWidth(), canvas.getHeight());
+        this.floodFill = new FloodFill(canvas);
+        this.undoManager = undoManager;
+    }
+
+    public TiledCanvas getCanvas() {
+        return canvas;
+    }
+
+    public DisplayList getDisplayList() {
+        return displayList;
+    }
+
+    public void setDamageListener(Consumer<Rectangle> damageListener) {
+        this.damageListener = damageListener;
+    }
+
+    public void setUndoManager(TileUndoManager undoManager) {
+        this.undoManager = undoManager;
+    }
+
+    // Adds a finished freehand stroke to the shape model and rasterizes its curve
+    public DisplayList.Item drawStroke(FreehandStroke stroke, Color color, float width) {
+        DisplayList.Item item = displayList.addStroke(stroke, color, width);
+        Rectangle bounds = item.getBounds();
+        touch(bounds, DisplayList.Change.added(displayList, item));
+        canvas.draw(bounds, item::paint);
+        damageListener.accept(bounds);
+        return item;
+    }
+
+    public void drawLine(int x1, int y1, int x2, int y2, Color color, float width) {
+        int pad = (int) Math.ceil(width / 2) + 2;
+        Rectangle bounds = new Rectangle(Math.min(x1, x2) - pad, Math.min(y1, y2) - pad, Math.abs(x2 - x1) + 2 * pad,
+                Math.abs(y2 - y1) + 2 * pad);
+        touch(bounds);
+        canvas.draw(bounds, g -> {
+            g.setColor(color);
+            g.setStroke(new BasicStroke(width));
+            g.drawLine(x1, y1, x2, y2);
+        });
+        damageListener.accept(bounds);
+    }
+
+    // Clears a size x size square centred on the point to the background
+    public void erase(int x, int y, int size) {
+        Rectangle bounds = new Rectangle(x - size / 2, y - size / 2, size, size);
+        touch(bounds);
+        canvas.fillRect(bounds.x, bounds.y, size, size, canvas.getBackground());
+        damageListener.accept(bounds);
+    }
+
+    // Adds the shape to the shape model and paints it
+    public DisplayList.Item drawShape(Shape shape, Color stroke, float width, Color fill) {
+        DisplayList.Item item = displayList.add(shape, stroke, width, fill);
+        Rectangle bounds = item.getBounds();
+        touch(bounds, DisplayList.Change.added(displayList, item));
+        canvas.draw(bounds, item::paint);
+        damageListener.accept(bounds);
+        return item;
+    }
+
+    public void fillShape(DisplayList.Item item, Color fill) {
+        DrawingEvents.Fill event = new DrawingEvents.Fill();
+        event.begin();
+        Rectangle bounds = item.getBounds();
+        touch(bounds, DisplayList.Change.filled(item, item.getFill(), fill));
+        item.setFill(fill);
+        canvas.draw(bounds, item::paint);
+        damageListener.accept(bounds);
+        event.width = bounds.width;
+        event.height = bounds.height;
+        event.commit();
+    }
+
+    // Bucket fills the region connected to the point. Returns whether anything was painted.
+    public boolean bucketFill(int x, int y, int tolerance, Color fill) {
+        DrawingEvents.Fill event = new DrawingEvents.Fill();
+        event.begin();
+        Rectangle region = floodFill.findRegion(x, y, tolerance);
+        if (region == null || fill == null || fill.getAlpha() == 0) {
+            return false;
+        }
+        touch(region);
+        floodFill.paint(fill.getRGB());
+        damageListener.accept(region);
+        event.bucket = true;
+        event.width = region.width;
+        event.height = region.height;
+        event.commit();
+        return true;
+    }
+
+    // Adds the text to the shape model and draws it from its cached layout
+    public DisplayList.Item drawText(TextLabel label, Color color) {
+        DisplayList.Item item = displayList.addText(label, color);
+        Rectangle bounds = item.getBounds();
+        touch(bounds, DisplayList.Change.added(displayList, item));
+        canvas.draw(bounds, item::paint);
+        damageListener.accept(bounds);
+        return item;
+    }
+
+    // Returns the canvas to the background and empties the shape model
+    public void clear() {
+        // Dropping the tiles returns the whole canvas to the shared blank tile
+        canvas.clear();
+        displayList.clear();
+        damageListener.accept(new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()));
+    }
+
+    private void touch(Rectangle region) {
+        touch(region, null);
+    }
+
+    private void touch(Rectangle region, DisplayList.Change change) {
+        if (undoManager != null) {
+            undoManager.snapshot(region, change);
+        }
+    }
+}
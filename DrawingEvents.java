@@ -0,0 +1,127 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// Flight Recorder events around the work that can make the pad feel slow. Record with
+//
+//   java -XX:StartFlightRecording=filename=sketchpad.jfr EnhancedDrawingApp
+//
+// (or jcmd <pid> JFR.start on a running pad) and open the file in JDK Mission Control,
+// where the events are listed under "Sketchpad" next to the JVM's own GC and allocation
+// events. While nothing is recording an event costs a few field writes.
+public class DrawingEvents {
+    private DrawingEvents() {
+    }
+
+    @Name("sketchpad.Paint")
+    @Label("Paint")
+    @Category("Sketchpad")
+    @Description("Painting of the canvas panel")
+    @StackTrace(false)
+    static class Paint extends Event {
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+    }
+
+    @Name("sketchpad.Tool")
+    @Label("Tool")
+    @Category("Sketchpad")
+    @Description("Input applied by a tool to the canvas or the shape being drawn")
+    @StackTrace(false)
+    static class Tool extends Event {
+        @Label("Tool")
+        String tool;
+        @Label("Inputs")
+        int inputs;
+    }
+
+    @Name("sketchpad.UndoSnapshot")
+    @Label("Undo Snapshot")
+    @Category("Sketchpad")
+    @Description("Tiles copied into the undo history before an edit")
+    @StackTrace(false)
+    static class UndoSnapshot extends Event {
+        @Label("Tiles")
+        int tiles;
+        @Label("History")
+        @DataAmount
+        long historyBytes;
+    }
+
+    @Name("sketchpad.Fill")
+    @Label("Fill")
+    @Category("Sketchpad")
+    @Description("Refill of a shape or bucket fill of a region")
+    @StackTrace(false)
+    static class Fill extends Event {
+        @Label("Bucket")
+        boolean bucket;
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+    }
+
+    @Name("sketchpad.Save")
+    @Label("Save")
+    @Category("Sketchpad")
+    @Description("Export of a PNG or SVG, save of a sketch document or autosave")
+    static class Save extends Event {
+        @Label("Format")
+        String format;
+        @Label("File")
+        String path;
+        @Label("Size")
+        @DataAmount
+        long bytes;
+        @Label("Completed")
+        boolean completed;
+    }
+
+    @Name("sketchpad.Import")
+    @Label("Import")
+    @Category("Sketchpad")
+    @Description("Image file read onto a new layer")
+    static class Import extends Event {
+        @Label("File")
+        String path;
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+        @Label("Subsampling")
+        @Description("Source pixels per imported pixel, along each axis")
+        int subsampling;
+        @Label("Completed")
+        boolean completed;
+    }
+
+    @Name("sketchpad.Startup")
+    @Label("Startup")
+    @Category("Sketchpad")
+    @Description("Launch of the pad, from main() to the first paint of the canvas")
+    @StackTrace(false)
+    static class Startup extends Event {
+        @Label("JVM Start")
+        @Description("From the process starting to main()")
+        @Timespan
+        long jvm;
+        @Label("Window Built")
+        @Timespan
+        long window;
+        @Label("Window Shown")
+        @Timespan
+        long shown;
+        @Label("First Paint")
+        @Description("From the window being shown to the canvas being painted")
+        @Timespan
+        long firstPaint;
+    }
+}
@@ -0,0 +1,661 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.util.Arrays;
+import java.util.List;
+
+// What the tools do with the input, in canvas coordinates: pressing, dragging, releasing
+// and clicking with the current tool, color and sizes, plus the commands that change them,
+// undo and the layer commands. Operations are drawn into the active layer, unless they are
+// deferred for a session's relay to order, and journalled. The canvas area they change is
+// gathered for the next frame to paint.
+//
+// The window maps the mouse into the canvas and shows the dialogs; the rest of the tools
+// is here, apart from any window, so that InputReplay drives the same code without one.
+// While a recorder is set, every input is also written to an input trace.
+//
+// Pressing with the Text tool starts typing in place: the text is shown as an overlay, with
+// a caret, until it is committed by the window or by the next input, and only then drawn,
+// journalled and recorded, as one text operation.
+public class DrawingTools {
+    private String currentAction = "Freehand";
+    private Color currentColor = Color.BLACK;
+    private Color fillColor = new Color(0, 0, 0, 0); // Transparent fill color
+    private int startX, startY, endX, endY;
+    private int eraserSize = 20; // Eraser size
+    private int strokeThickness = 2; // Thickness for freehand tool
+    private int fillTolerance = 16; // Per-channel color distance the bucket fill spreads across
+    private Rectangle previewBounds; // Canvas area covered by the current preview
+    private Rectangle damage; // Canvas area changed since the last repaint request
+
+    private LayerStack layers;
+    private TileUndoManager undoManager;
+    private DocumentJournal journal;
+    private boolean deferred; // in a session: operations are only journalled until the relay orders them
+    private final Runnable frameRequest;
+    private InputTrace.Recorder recorder;
+
+    private FreehandStroke activeStroke; // freehand stroke in progress, drawn as an overlay until released
+    private int[] erasePoints = new int[256]; // points of the eraser stroke in progress
+    private int erasePointCount;
+    private int[] dragQueue = new int[64]; // canvas positions dragged through since the last frame
+    private int dragQueueCount;
+    private final Font textFont = GlyphCache.font("Arial", Font.PLAIN, 24);
+    private StringBuilder typing; // text typed since the Text tool was pressed, or null
+    private Rectangle typingBounds; // canvas area the typed text and its caret cover
+
+    // frameRequest asks for a frame to paint the damage
+    public DrawingTools(Runnable frameRequest) {
+        this.frameRequest = frameRequest;
+    }
+
+    // The document the tools draw in
+    public void setDocument(LayerStack layers, TileUndoManager undoManager, DocumentJournal journal) {
+        this.layers = layers;
+        this.undoManager = undoManager;
+        this.journal = journal;
+        activeStroke = null;
+        erasePointCount = 0;
+        dragQueueCount = 0;
+        previewBounds = null;
+        typing = null;
+        typingBounds = null;
+    }
+
+    public void setDeferred(boolean deferred) {
+        this.deferred = deferred;
+    }
+
+    // Writes the input to a trace from here on, or stops with null
+    public void setRecorder(InputTrace.Recorder recorder) {
+        this.recorder = recorder;
+    }
+
+    public String getAction() {
+        return currentAction;
+    }
+
+    public Color getColor() {
+        return currentColor;
+    }
+
+    public Color getFillColor() {
+        return fillColor;
+    }
+
+    public int getEraserSize() {
+        return eraserSize;
+    }
+
+    public int getStrokeThickness() {
+        return strokeThickness;
+    }
+
+    public int getFillTolerance() {
+        return fillTolerance;
+    }
+
+    // Picks a drawing tool from the menu, which also resets the fill to transparent
+    public void chooseTool(String tool) {
+        commitText();
+        if (recorder != null) {
+            recorder.text(InputTrace.TOOL, tool);
+        }
+        currentAction = tool;
+        fillColor = new Color(0, 0, 0, 0); // Reset fill color to transparent
+    }
+
+    // Switches tool, keeping the fill
+    public void setAction(String action) {
+        commitText();
+        if (recorder != null) {
+            recorder.text(InputTrace.ACTION, action);
+        }
+        currentAction = action;
+    }
+
+    public void setColor(Color color) {
+        if (recorder != null) {
+            recorder.color(InputTrace.COLOR, color);
+        }
+        currentColor = color;
+        if (typing != null) {
+            updateTyping();
+        }
+    }
+
+    // null when the fill color dialog was cancelled
+    public void setFillColor(Color color) {
+        if (recorder != null) {
+            recorder.color(InputTrace.FILL_COLOR, color);
+        }
+        fillColor = color;
+    }
+
+    public void setEraserSize(int size) {
+        if (recorder != null) {
+            recorder.value(InputTrace.ERASER_SIZE, size);
+        }
+        eraserSize = size;
+    }
+
+    public void setStrokeThickness(int thickness) {
+        if (recorder != null) {
+            recorder.value(InputTrace.THICKNESS, thickness);
+        }
+        strokeThickness = thickness;
+    }
+
+    public void setFillTolerance(int tolerance) {
+        if (recorder != null) {
+            recorder.value(InputTrace.TOLERANCE, tolerance);
+        }
+        fillTolerance = tolerance;
+    }
+
+    public void press(int x, int y) {
+        commitText();
+        if (recorder != null) {
+            recorder.point(InputTrace.PRESS, x, y);
+        }
+        // Everything drawn until the mouse is released is one undo step
+        undoManager.beginEdit();
+        startX = x;
+        startY = y;
+        erasePointCount = 0;
+        if (currentAction.equals("Freehand")) {
+            activeStroke = new FreehandStroke();
+            activeStroke.add(startX, startY);
+            layers.setPreview(activeStroke.getPath(), currentColor,
+                    new BasicStroke(strokeThickness, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND), null);
+        } else if (currentAction.equals("Text")) {
+            typing = new StringBuilder();
+            updateTyping();
+        }
+    }
+
+    // Draws text where the Text tool was pressed, ending any typing there
+    public void text(String text) {
+        if (recorder != null) {
+            recorder.text(InputTrace.TEXT, text);
+        }
+        if (typing != null) {
+            endTyping();
+        }
+        TextLabel label = new TextLabel(text, textFont, startX, startY);
+        if (!deferred) {
+            layers.getActiveEngine().drawText(label, currentColor);
+        }
+        journal.recordText(label, currentColor.getRGB());
+        requestRepaint();
+    }
+
+    // Whether text is being typed in place, for the window to send it the keys
+    public boolean isTyping() {
+        return typing != null;
+    }
+
+    public void type(String chars) {
+        typing.append(chars);
+        updateTyping();
+    }
+
+    // Deletes the last character typed
+    public void backspace() {
+        if (typing.length() > 0) {
+            typing.setLength(typing.offsetByCodePoints(typing.length(), -1));
+            updateTyping();
+        }
+    }
+
+    // Draws the text typed so far, if any, and ends typing
+    public void commitText() {
+        if (typing == null) {
+            return;
+        }
+        String text = typing.toString();
+        endTyping();
+        if (!text.isEmpty()) {
+            text(text);
+        }
+    }
+
+    // Ends typing without drawing anything
+    public void cancelText() {
+        if (typing != null) {
+            endTyping();
+        }
+    }
+
+    private void endTyping() {
+        typing = null;
+        layers.clearPreviewText();
+        damage(typingBounds);
+        typingBounds = null;
+        requestRepaint();
+    }
+
+    // Shows the typed text as it now is and repaints where it was and is
+    private void updateTyping() {
+        TextLabel label = new TextLabel(typing.toString(), textFont, startX, startY);
+        layers.setPreviewText(label, currentColor);
+        if (typingBounds != null) {
+            damage(typingBounds);
+        }
+        typingBounds = label.getBounds().union(label.getCaret());
+        damage(typingBounds);
+        requestRepaint();
+    }
+
+    // Only queued here; the next frame applies every position queued since the last one
+    public void drag(int x, int y) {
+        if (recorder != null) {
+            recorder.point(InputTrace.DRAG, x, y);
+        }
+        if (2 * dragQueueCount + 2 > dragQueue.length) {
+            dragQueue = Arrays.copyOf(dragQueue, dragQueue.length * 2);
+        }
+        dragQueue[2 * dragQueueCount] = x;
+        dragQueue[2 * dragQueueCount + 1] = y;
+        dragQueueCount++;
+    }
+
+    public void release(int x, int y) {
+        if (recorder != null) {
+            recorder.point(InputTrace.RELEASE, x, y);
+        }
+        // Drags not yet picked up by a frame come first
+        applyDrags();
+        endX = x;
+        endY = y;
+
+        DrawingEvents.Tool event = new DrawingEvents.Tool();
+        event.begin();
+        drawShape(); // Finalize the shape drawing
+        finishStroke();
+        undoManager.commitEdit();
+        event.tool = currentAction;
+        event.inputs = 1;
+        event.commit();
+
+        // No preview is shown after the shape is finalized
+        layers.clearPreview();
+        updatePreviewBounds();
+    }
+
+    public void click(int x, int y) {
+        if (recorder != null) {
+            recorder.point(InputTrace.CLICK, x, y);
+        }
+        if (currentAction.equals("Fill Color")) {
+            fillShapeOrBackground(x, y);
+        }
+    }
+
+    // Applies the drags queued since the last frame; returns whether there were any
+    public boolean applyQueuedDrags() {
+        if (!applyDrags()) {
+            return false;
+        }
+        updatePreviewBounds();
+        return true;
+    }
+
+    private boolean applyDrags() {
+        if (dragQueueCount == 0) {
+            return false;
+        }
+        DrawingEvents.Tool event = new DrawingEvents.Tool();
+        event.begin();
+        for (int i = 0; i < dragQueueCount; i++) {
+            applyDrag(dragQueue[2 * i], dragQueue[2 * i + 1]);
+        }
+        event.tool = currentAction;
+        event.inputs = dragQueueCount;
+        event.commit();
+        dragQueueCount = 0;
+        return true;
+    }
+
+    private void applyDrag(int canvasX, int canvasY) {
+        endX = canvasX;
+        endY = canvasY;
+
+        // Update the preview based on the selected action
+        if (currentAction.equals("Freehand")) {
+            // Events only extend the stroke; repaints coalesce them into one frame
+            if (activeStroke != null) {
+                activeStroke.add(endX, endY);
+                int pad = strokeThickness / 2 + 2;
+                damage = union(damage, Math.min(startX, endX) - pad, Math.min(startY, endY) - pad,
+                        Math.abs(endX - startX) + 2 * pad, Math.abs(endY - startY) + 2 * pad);
+            }
+            startX = endX;
+            startY = endY;
+        } else if (currentAction.equals("Erase")) {
+            if (!deferred) {
+                layers.getActiveEngine().erase(endX, endY, eraserSize);
+            }
+            addErasePoint(endX, endY);
+        } else if (currentAction.equals("Line")) {
+            showPreview(new Line2D.Double(startX, startY, endX, endY));
+        } else if (currentAction.equals("Rectangle")) {
+            int x = Math.min(startX, endX);
+            int y = Math.min(startY, endY);
+            int width = Math.abs(startX - endX);
+            int height = Math.abs(startY - endY);
+            showPreview(new Rectangle(x, y, width, height));
+        } else if (currentAction.equals("Oval")) {
+            int x = Math.min(startX, endX);
+            int y = Math.min(startY, endY);
+            int width = Math.abs(startX - endX);
+            int height = Math.abs(startY - endY);
+            showPreview(new Ellipse2D.Double(x, y, width, height));
+        }
+    }
+
+    private void showPreview(Shape shape) {
+        layers.setPreview(shape, currentColor, new BasicStroke(strokeThickness), fillColor);
+    }
+
+    // Marks both the old and the new preview area dirty
+    // The preview is only an overlay, so its area is repainted without touching the view
+    private void updatePreviewBounds() {
+        if (previewBounds != null) {
+            damage = union(damage, previewBounds.x, previewBounds.y, previewBounds.width, previewBounds.height);
+        }
+        // The freehand preview is tracked as it grows instead
+        Shape preview = activeStroke == null ? layers.getPreview() : null;
+        previewBounds = preview != null ? strokeBounds(preview) : null;
+        if (previewBounds != null) {
+            damage = union(damage, previewBounds.x, previewBounds.y, previewBounds.width, previewBounds.height);
+        }
+    }
+
+    // Accumulates a changed canvas region, in canvas coordinates
+    public void damage(Rectangle region) {
+        damage = union(damage, region.x, region.y, region.width, region.height);
+    }
+
+    // The canvas area changed since the last call, or null
+    public Rectangle takeDamage() {
+        Rectangle taken = damage;
+        damage = null;
+        return taken;
+    }
+
+    // Whether a frame has anything of the tools' to apply or paint
+    public boolean hasPendingWork() {
+        return damage != null || dragQueueCount > 0;
+    }
+
+    // Asks for the accumulated damage to be painted with the next frame
+    public void requestRepaint() {
+        if (damage != null) {
+            frameRequest.run();
+        }
+    }
+
+    private static Rectangle union(Rectangle r, int x, int y, int width, int height) {
+        if (r == null) {
+            return new Rectangle(x, y, width, height);
+        }
+        r.add(x, y);
+        r.add(x + width, y + height);
+        return r;
+    }
+
+    private void addErasePoint(int x, int y) {
+        if (2 * erasePointCount + 2 > erasePoints.length) {
+            erasePoints = Arrays.copyOf(erasePoints, erasePoints.length * 2);
+        }
+        erasePoints[2 * erasePointCount] = x;
+        erasePoints[2 * erasePointCount + 1] = y;
+        erasePointCount++;
+    }
+
+    // In a session, erasing goes out as it happens rather than when the button is released
+    public void journalErasing() {
+        if (activeStroke == null && currentAction.equals("Erase") && erasePointCount > 0) {
+            journal.recordErase(eraserSize, erasePoints, erasePointCount);
+            erasePointCount = 0;
+        }
+    }
+
+    // Rasterizes the freehand stroke that just ended, smoothed, and journals it or the
+    // eraser stroke as one operation
+    private void finishStroke() {
+        if (activeStroke != null) {
+            FreehandStroke stroke = activeStroke;
+            activeStroke = null;
+            // Clears the overlay, which follows the raw input rather than the fitted curve
+            Rectangle overlay = stroke.getBounds(strokeThickness);
+            damage = union(damage, overlay.x, overlay.y, overlay.width, overlay.height);
+            if (stroke.getPointCount() > 1) {
+                stroke.finish();
+                if (!deferred) {
+                    layers.getActiveEngine().drawStroke(stroke, currentColor, strokeThickness);
+                }
+                journal.recordStroke(stroke, currentColor.getRGB(), strokeThickness);
+            }
+        } else if (currentAction.equals("Erase") && erasePointCount > 0) {
+            journal.recordErase(eraserSize, erasePoints, erasePointCount);
+        }
+        erasePointCount = 0;
+    }
+
+    private void drawShape() {
+        Shape shape = null;
+        switch (currentAction) {
+            case "Line":
+                shape = new Line2D.Double(startX, startY, endX, endY);
+                break;
+            case "Rectangle":
+                shape = new Rectangle(Math.min(startX, endX), Math.min(startY, endY), Math.abs(startX - endX),
+                        Math.abs(startY - endY));
+                break;
+            case "Oval":
+                shape = new Ellipse2D.Double(Math.min(startX, endX), Math.min(startY, endY),
+                        Math.abs(startX - endX), Math.abs(startY - endY));
+                break;
+        }
+
+        // Draw the shape on the canvas
+        if (shape != null) {
+            if (!deferred) {
+                layers.getActiveEngine().drawShape(shape, currentColor, strokeThickness, fillColor);
+            }
+            journal.recordShape(shape, currentColor.getRGB(), strokeThickness, argb(fillColor));
+        }
+    }
+
+    private static int argb(Color color) {
+        return color == null ? 0 : color.getRGB();
+    }
+
+    // Bounds of a shape including the pixels covered by its outline
+    private Rectangle strokeBounds(Shape shape) {
+        Rectangle bounds = shape.getBounds();
+        int pad = strokeThickness / 2 + 2;
+        bounds.grow(pad, pad);
+        return bounds;
+    }
+
+    private void fillShapeOrBackground(int x, int y) {
+        // Topmost shape under the click, found through the display list's grid index
+        DisplayList.Item hit = layers.getActiveEngine().getDisplayList().hitTest(x, y);
+        if (hit != null) {
+            if (!deferred) {
+                layers.getActiveEngine().fillShape(hit, fillColor);
+            }
+            journal.recordFillShape(hit.getId(), argb(fillColor));
+            requestRepaint();
+            return;
+        }
+
+        // Otherwise bucket fill the connected region around the click, which also covers
+        // areas enclosed by freehand strokes and the background
+        if (deferred) {
+            // Checked here as the engine would, since the fill is only applied once relayed
+            if (fillColor != null && fillColor.getAlpha() > 0) {
+                journal.recordBucketFill(x, y, fillTolerance, fillColor.getRGB());
+            }
+        } else if (layers.getActiveEngine().bucketFill(x, y, fillTolerance, fillColor)) {
+            journal.recordBucketFill(x, y, fillTolerance, fillColor.getRGB());
+            requestRepaint();
+        }
+    }
+
+    public void undo() {
+        commitText();
+        if (recorder != null) {
+            recorder.command(InputTrace.UNDO);
+        }
+        Rectangle changed = undoManager.undo();
+        if (changed != null) {
+            restored(changed, true);
+        }
+    }
+
+    public void redo() {
+        commitText();
+        if (recorder != null) {
+            recorder.command(InputTrace.REDO);
+        }
+        Rectangle changed = undoManager.redo();
+        if (changed != null) {
+            restored(changed, false);
+        }
+    }
+
+    // Journals an undo or redo: the records that bring the restored layer's shape model to
+    // where it now is, on that layer, and then its pixels
+    private void restored(Rectangle changed, boolean undone) {
+        Layer layer = layers.restored(undoManager.getChangedCanvas(), changed);
+        List<TileUndoManager.Change> changes = undoManager.getChanges();
+        Layer active = layers.getActive();
+        if (!changes.isEmpty() && layer != active) {
+            journal.recordSelectLayer(layer.getId());
+        }
+        for (int i = 0; i < changes.size(); i++) {
+            DisplayList.Change change = (DisplayList.Change) changes.get(undone ? changes.size() - 1 - i : i);
+            DisplayList.Item item = change.getItem();
+            if (!change.isAdded()) {
+                journal.recordFillShape(item.getId(), argb(change.getFill(undone)));
+            } else if (undone) {
+                journal.recordTrimModel(layer.getId(), item.getId());
+            } else if (item.getStroke() != null) {
+                journal.recordStroke(item.getStroke(), item.getStrokeColor().getRGB(), item.getStrokeWidth());
+            } else if (item.getText() != null) {
+                journal.recordText(item.getText(), item.getStrokeColor().getRGB());
+            } else {
+                journal.recordShape(item.getShape(), item.getStrokeColor().getRGB(), item.getStrokeWidth(),
+                        argb(item.getFill()));
+            }
+        }
+        if (!changes.isEmpty() && layer != active) {
+            journal.recordSelectLayer(active.getId());
+        }
+        if (!changed.isEmpty()) {
+            journal.recordPatch(layer.getId(), layer.getCanvas(), changed.x, changed.y, changed.width,
+                    changed.height);
+        }
+        requestRepaint();
+    }
+
+    public void reset() {
+        commitText();
+        if (recorder != null) {
+            recorder.command(InputTrace.RESET);
+        }
+        if (!deferred) {
+            layers.clear();
+        }
+        journal.recordClear();
+        undoManager.clear();
+        requestRepaint();
+    }
+
+    // Adds a layer above the active one. Returns whether the layers changed, which in a
+    // session waits for the relay to number the layer.
+    public boolean addLayer() {
+        commitText();
+        if (recorder != null) {
+            recorder.command(InputTrace.ADD_LAYER);
+        }
+        if (deferred) {
+            journal.recordAddLayer(0, "");
+            return false;
+        }
+        Layer layer = layers.addLayer();
+        journal.recordAddLayer(layer.getId(), layer.getName());
+        return true;
+    }
+
+    public void removeLayer() {
+        commitText();
+        if (recorder != null) {
+            recorder.command(InputTrace.REMOVE_LAYER);
+        }
+        Layer layer = layers.getActive();
+        if (!deferred) {
+            layers.removeLayer(layer);
+        }
+        journal.recordRemoveLayer(layer.getId());
+    }
+
+    // Shows or hides the active layer. Returns whether the layers changed.
+    public boolean toggleLayer() {
+        commitText();
+        if (recorder != null) {
+            recorder.command(InputTrace.TOGGLE_LAYER);
+        }
+        Layer layer = layers.getActive();
+        if (deferred) {
+            journal.recordShowLayer(layer.getId(), !layer.isVisible());
+            return false;
+        }
+        layers.setVisible(layer, !layer.isVisible());
+        journal.recordShowLayer(layer.getId(), layer.isVisible());
+        return true;
+    }
+
+    // Adds a layer above the active one holding the pixels of an imported image, which
+    // are one undo step. They are journalled as a patch, so this is not for sessions, and
+    // input traces do not hold them.
+    public Layer importImage(String name, TiledCanvas pixels, Rectangle bounds) {
+        commitText();
+        Layer layer = layers.addLayer(name);
+        journal.recordAddLayer(layer.getId(), layer.getName());
+        TiledCanvas canvas = layer.getCanvas();
+        undoManager.snapshot(bounds);
+        int size = TiledCanvas.TILE_SIZE;
+        for (int ty = bounds.y / size; ty <= (bounds.y + bounds.height - 1) / size; ty++) {
+            for (int tx = bounds.x / size; tx <= (bounds.x + bounds.width - 1) / size; tx++) {
+                int[] tile = pixels.tile(tx, ty);
+                Rectangle r = bounds.intersection(new Rectangle(tx * size, ty * size, size, size));
+                if (tile != null && !r.isEmpty()) {
+                    canvas.setRect(r.x, r.y, r.width, r.height, tile,
+                            (r.y - ty * size) * size + r.x - tx * size, size);
+                }
+            }
+        }
+        layers.restored(canvas, bounds);
+        journal.recordPatch(layer.getId(), canvas, bounds.x, bounds.y, bounds.width, bounds.height);
+        requestRepaint();
+        return layer;
+    }
+
+    public void selectLayer(Layer layer) {
+        commitText();
+        if (recorder != null) {
+            recorder.value(InputTrace.SELECT_LAYER, layer.getId());
+        }
+        layers.setActive(layer);
+        journal.recordSelectLayer(layer.getId());
+    }
+}
@@ -1,32 +1,54 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import javax.imageio.ImageIO;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
-import java.util.ArrayList;
-import java.awt.geom.Line2D;
-import java.awt.geom.Ellipse2D;
 
 public class EnhancedDrawingApp extends JFrame implements ActionListener, MouseListener, MouseMotionListener {
-    private String currentAction = "Freehand";
-    private Color currentColor = Color.BLACK;
-    private Color fillColor = new Color(0, 0, 0, 0); // Transparent fill color
-    private int startX, startY, endX, endY;
-    private BufferedImage canvasImage;
-    private Graphics2D g2d;
+    private LayerStack layers; // the drawing: background, layers and the preview overlay
     private static final int MIN_ERASER_SIZE = 10;
-    private int eraserSize = 20; // Eraser size
-    private int strokeThickness = 2; // Thickness for freehand tool
-    private Shape currentShape;
-    private ArrayList<Shape> shapes = new ArrayList<>();
-    private ArrayList<Color> fillColors = new ArrayList<>();
-    private ArrayList<BufferedImage> undoStack = new ArrayList<>();
-    private ArrayList<BufferedImage> redoStack = new ArrayList<>();
+    private final CanvasView view = new CanvasView(); // the panel's cached view of the canvas
+    private final Viewport viewport = view.getViewport(); // zoom and pan
+    private boolean viewMoved; // the view was zoomed or panned; the whole panel is repainted
+    private int panX, panY; // panel pixels to pan by with the next frame
+    private Point panFrom; // last position of a middle button drag, which pans
+    private TileUndoManager undoManager;
+    private DocumentJournal journal; // operations since the document was created or opened
+    private final FrameScheduler frameScheduler = new FrameScheduler(this::renderFrame);
+    private final DrawingTools tools = new DrawingTools(frameScheduler::requestFrame);
+    private InputTrace.Recorder recorder; // set while the input is recorded to a trace
+    private final PerformanceMonitor performance = new PerformanceMonitor(frameScheduler, () -> layers,
+            () -> undoManager);
+    private final AutosaveService autosave = new AutosaveService(() -> journal, () -> layers);
+    // Performance overlay, toggled with F3 or shown from the start with -Dsketchpad.hud=true
+    private boolean hudVisible = Boolean.getBoolean("sketchpad.hud");
+    private Rectangle hudBounds; // panel area the overlay was last drawn in
+    private final Timer hudTimer = new Timer(500, e -> repaintHud());
+    private final JMenu layersMenu = new JMenu("Layers");
+    private final JMenu sessionMenu = new JMenu("Session");
+    private final JMenu traceMenu = new JMenu("Trace");
+    private CollabSession session; // set while drawing together with other sketchpads
+    private CollabRelay relay; // set while this sketchpad hosts the session's relay
+    private int sessionLayer; // layer the operations not yet sent were drawn on
     private Cursor customCursor;
     private JPanel canvasPanel;
+    private JColorChooser colorChooser; // built the first time a color is chosen
+    private final ExecutorService exportExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "export");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public EnhancedDrawingApp() {
         setTitle("Enhanced Drawing App");
@@ -34,35 +56,36 @@ public class EnhancedDrawingApp extends JFrame implements ActionListener, MouseL
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLayout(new BorderLayout());
 
-        // Initialize canvas
-        canvasImage = new BufferedImage(1920, 1080, BufferedImage.TYPE_INT_ARGB);
-        g2d = canvasImage.createGraphics();
-        g2d.setColor(Color.WHITE);
-        g2d.fillRect(0, 0, canvasImage.getWidth(), canvasImage.getHeight());
-        g2d.setColor(currentColor);
-        g2d.setStroke(new BasicStroke(strokeThickness));
+        // Start with an empty document of one layer. Tiles are allocated as they are drawn
+        // into, so large canvases only cost what is used, e.g.
+        // -Dsketchpad.canvas.width=20000 -Dsketchpad.canvas.height=20000
+        installLayers(Integer.getInteger("sketchpad.canvas.width", 1920),
+                Integer.getInteger("sketchpad.canvas.height", 1080), Color.WHITE.getRGB(), true);
+        layers.addLayer();
+        journal = new DocumentJournal(layers.getWidth(), layers.getHeight(), layers.getBackground());
+        tools.setDocument(layers, undoManager, journal);
 
         canvasPanel = new JPanel() {
             @Override
             protected void paintComponent(Graphics g) {
+                DrawingEvents.Paint event = new DrawingEvents.Paint();
+                event.begin();
                 super.paintComponent(g);
-                // Draw the canvas image
-                g.drawImage(canvasImage, 0, 0, getWidth(), getHeight(), null);
-
-                // Draw shape previews
-                if (currentShape != null) {
-                    Graphics2D g2 = (Graphics2D) g.create();
-                    g2.setColor(currentColor);
-                    g2.setStroke(new BasicStroke(strokeThickness));
-                    g2.draw(currentShape);
-
-                    // Optionally, draw a semi-transparent fill color for the preview
-                    if (fillColor.getAlpha() > 0) {
-                        g2.setColor(fillColor);
-                        g2.fill(currentShape);
-                    }
-                    g2.dispose();
+                // Draw the canvas from the cached panel-sized buffer, and any preview over it
+                view.paint(g, getWidth(), getHeight(), getGraphicsConfiguration());
+                if (StartupTimer.painted()) {
+                    SwingUtilities.invokeLater(EnhancedDrawingApp.this::startupPainted);
+                }
+
+                Rectangle clip = g.getClipBounds();
+                if (hudVisible && (hudBounds == null || clip == null || clip.intersects(hudBounds))) {
+                    paintHud(g);
                 }
+                if (clip != null) {
+                    event.width = clip.width;
+                    event.height = clip.height;
+                }
+                event.commit();
             }
 
         };
@@ -70,57 +93,60 @@ public class EnhancedDrawingApp extends JFrame implements ActionListener, MouseL
         canvasPanel.setPreferredSize(new Dimension(1920, 900));
         canvasPanel.addMouseListener(this);
         canvasPanel.addMouseMotionListener(this);
+        // Text is typed in place: Enter draws it, Escape drops it
+        canvasPanel.setFocusable(true);
+        canvasPanel.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyTyped(KeyEvent e) {
+                if (!tools.isTyping()) {
+                    return;
+                }
+                char c = e.getKeyChar();
+                if (c == '\n') {
+                    tools.commitText();
+                } else if (c == '\b') {
+                    tools.backspace();
+                } else if (c == KeyEvent.VK_ESCAPE) {
+                    tools.cancelText();
+                } else if (!Character.isISOControl(c)
+                        && (e.getModifiersEx() & (InputEvent.CTRL_DOWN_MASK | InputEvent.ALT_DOWN_MASK)) == 0) {
+                    tools.type(String.valueOf(c));
+                } else {
+                    return;
+                }
+                e.consume();
+                frameScheduler.inputArrived(e.getWhen());
+            }
+        });
+        // The wheel pans, vertically or with Shift horizontally, and zooms with Ctrl
+        canvasPanel.addMouseWheelListener(e -> {
+            if (e.isControlDown()) {
+                zoomView(Math.pow(1.1, -e.getPreciseWheelRotation()), e.getX(), e.getY());
+            } else {
+                int distance = (int) Math.round(-e.getPreciseWheelRotation() * 48);
+                if (e.isShiftDown()) {
+                    panView(distance, 0);
+                } else {
+                    panView(0, distance);
+                }
+            }
+        });
 
-        // Create Menu
+        // Create Menu. Menus are filled as they are opened.
         JMenuBar menuBar = new JMenuBar();
         JMenu editMenu = new JMenu("Edit");
-
-        // Shape icons and options
-        String[] shapeOptions = { "Freehand", "Line", "Rectangle", "Oval", "Text" };
-        @SuppressWarnings("unused")
-        String[] shapeIconPaths = { "/icons/freehand.png", "/icons/line.png", "/icons/rectangle.png", "/icons/oval.png",
-                "/icons/text.png" };
-        for (int i = 0; i < shapeOptions.length; i++) {
-            JMenuItem item = new JMenuItem(shapeOptions[i]);
-            // Optionally set icons if available
-            item.setIcon(new ImageIcon(getClass().getResource(shapeIconPaths[i])));
-            item.addActionListener(this);
-            editMenu.add(item);
-        }
-
-        editMenu.addSeparator();
-
-        // Color icons
-        String[] colorNames = { "Black", "Red", "Green", "Blue", "Yellow", "Orange", "Pink", "Cyan", "Magenta", "Gray",
-                "Dark Gray", "Light Gray", "White", "Brown", "Purple", "Violet", "Gold", "Silver", "Teal", "Lime" };
-        Color[] colors = { Color.BLACK, Color.RED, Color.GREEN, Color.BLUE, Color.YELLOW, Color.ORANGE, Color.PINK,
-                Color.CYAN,
-                Color.MAGENTA, Color.GRAY, Color.DARK_GRAY, Color.LIGHT_GRAY, Color.WHITE, new Color(139, 69, 19),
-                new Color(128, 0, 128), new Color(238, 130, 238), new Color(255, 215, 0), new Color(192, 192, 192),
-                new Color(0, 128, 128), new Color(50, 205, 50) };
-
-        for (int i = 0; i < colorNames.length; i++) {
-            JMenuItem item = new JMenuItem(colorNames[i]);
-            item.setIcon(new ColorIcon(colors[i]));
-            item.addActionListener(this);
-            editMenu.add(item);
-        }
-
-        editMenu.addSeparator();
-
-        // Extra tools icons
-        String[] toolOptions = { "Erase", "Color Picker", "Fill Color" };
-        @SuppressWarnings("unused")
-        String[] toolIconPaths = { "/icons/eraser.png", "/icons/colorpicker.png", "/icons/fillcolor.png" };
-        for (int i = 0; i < toolOptions.length; i++) {
-            JMenuItem item = new JMenuItem(toolOptions[i]);
-            // Optionally set icons if available
-            item.setIcon(new ImageIcon(getClass().getResource(toolIconPaths[i])));
-            item.addActionListener(this);
-            editMenu.add(item);
-        }
-
+        buildOnOpen(editMenu, () -> {
+            if (editMenu.getItemCount() == 0) {
+                buildEditMenu(editMenu);
+            }
+        });
         menuBar.add(editMenu);
+        buildOnOpen(layersMenu, this::rebuildLayersMenu);
+        menuBar.add(layersMenu);
+        buildOnOpen(sessionMenu, this::rebuildSessionMenu);
+        menuBar.add(sessionMenu);
+        buildOnOpen(traceMenu, this::rebuildTraceMenu);
+        menuBar.add(traceMenu);
         setJMenuBar(menuBar);
 
         // Bottom panel for Save, Reset, and Eraser Size and Thickness controls
@@ -131,7 +157,17 @@ public class EnhancedDrawingApp extends JFrame implements ActionListener, MouseL
         JButton resetButton = new JButton("Reset");
         resetButton.addActionListener(this);
 
+        JButton openButton = new JButton("Open");
+        openButton.addActionListener(this);
+        JButton saveSketchButton = new JButton("Save Sketch");
+        saveSketchButton.addActionListener(this);
+        JButton importButton = new JButton("Import Image");
+        importButton.addActionListener(this);
+
         bottomPanel.add(saveButton);
+        bottomPanel.add(openButton);
+        bottomPanel.add(importButton);
+        bottomPanel.add(saveSketchButton);
         bottomPanel.add(resetButton);
         JButton undoButton = new JButton("Undo");
         undoButton.addActionListener(this);
@@ -143,35 +179,127 @@ public class EnhancedDrawingApp extends JFrame implements ActionListener, MouseL
 
         // Eraser Size Control
         JLabel eraserLabel = new JLabel("Eraser Size:");
-        JSlider eraserSlider = new JSlider(MIN_ERASER_SIZE, 100, eraserSize);
+        JSlider eraserSlider = new JSlider(MIN_ERASER_SIZE, 100, tools.getEraserSize());
         eraserSlider.setMajorTickSpacing(10);
         eraserSlider.setPaintTicks(true);
         eraserSlider.setPaintLabels(true);
-        eraserSlider.addChangeListener(e -> eraserSize = eraserSlider.getValue());
+        eraserSlider.addChangeListener(e -> tools.setEraserSize(eraserSlider.getValue()));
 
         bottomPanel.add(eraserLabel);
         bottomPanel.add(eraserSlider);
 
         // Stroke Thickness Control
         JLabel thicknessLabel = new JLabel("Stroke Thickness:");
-        JSlider thicknessSlider = new JSlider(1, 20, strokeThickness);
+        JSlider thicknessSlider = new JSlider(1, 20, tools.getStrokeThickness());
         thicknessSlider.setMajorTickSpacing(1);
         thicknessSlider.setPaintTicks(true);
         thicknessSlider.setPaintLabels(true);
-        thicknessSlider.addChangeListener(e -> {
-            strokeThickness = thicknessSlider.getValue();
-            g2d.setStroke(new BasicStroke(strokeThickness));
-        });
+        thicknessSlider.addChangeListener(e -> tools.setStrokeThickness(thicknessSlider.getValue()));
 
         bottomPanel.add(thicknessLabel);
         bottomPanel.add(thicknessSlider);
 
+        // Fill Tolerance Control
+        JLabel toleranceLabel = new JLabel("Fill Tolerance:");
+        JSlider toleranceSlider = new JSlider(0, 255, tools.getFillTolerance());
+        toleranceSlider.setMajorTickSpacing(50);
+        toleranceSlider.setPaintTicks(true);
+        toleranceSlider.setPaintLabels(true);
+        toleranceSlider.addChangeListener(e -> tools.setFillTolerance(toleranceSlider.getValue()));
+
+        bottomPanel.add(toleranceLabel);
+        bottomPanel.add(toleranceSlider);
+
         add(canvasPanel, BorderLayout.CENTER);
         add(bottomPanel, BorderLayout.SOUTH);
 
         // Set default cursor
         setCustomCursor(Cursor.CROSSHAIR_CURSOR);
         addKeyboardShortcuts();
+
+        setHudVisible(hudVisible);
+    }
+
+    // Fills a menu each time it opens, so a menu costs nothing until it is used and always
+    // shows the current state
+    private static void buildOnOpen(JMenu menu, Runnable build) {
+        menu.addMenuListener(new MenuListener() {
+            @Override
+            public void menuSelected(MenuEvent e) {
+                build.run();
+            }
+
+            @Override
+            public void menuDeselected(MenuEvent e) {
+            }
+
+            @Override
+            public void menuCanceled(MenuEvent e) {
+            }
+        });
+    }
+
+    private void buildEditMenu(JMenu editMenu) {
+        // Shape icons and options
+        String[] shapeOptions = { "Freehand", "Line", "Rectangle", "Oval", "Text" };
+        String[] shapeIcons = { "freehand", "line", "rectangle", "oval", "text" };
+        for (int i = 0; i < shapeOptions.length; i++) {
+            JMenuItem item = new JMenuItem(shapeOptions[i]);
+            item.setIcon(IconAtlas.get(shapeIcons[i]));
+            item.addActionListener(this);
+            editMenu.add(item);
+        }
+
+        editMenu.addSeparator();
+
+        // Color icons
+        String[] colorNames = { "Black", "Red", "Green", "Blue", "Yellow", "Orange", "Pink", "Cyan", "Magenta", "Gray",
+                "Dark Gray", "Light Gray", "White", "Brown", "Purple", "Violet", "Gold", "Silver", "Teal", "Lime" };
+        Color[] colors = { Color.BLACK, Color.RED, Color.GREEN, Color.BLUE, Color.YELLOW, Color.ORANGE, Color.PINK,
+                Color.CYAN,
+                Color.MAGENTA, Color.GRAY, Color.DARK_GRAY, Color.LIGHT_GRAY, Color.WHITE, new Color(139, 69, 19),
+                new Color(128, 0, 128), new Color(238, 130, 238), new Color(255, 215, 0), new Color(192, 192, 192),
+                new Color(0, 128, 128), new Color(50, 205, 50) };
+
+        for (int i = 0; i < colorNames.length; i++) {
+            JMenuItem item = new JMenuItem(colorNames[i]);
+            item.setIcon(new ColorIcon(colors[i]));
+            item.addActionListener(this);
+            editMenu.add(item);
+        }
+
+        editMenu.addSeparator();
+
+        // Extra tools icons
+        String[] toolOptions = { "Erase", "Color Picker", "Fill Color" };
+        String[] toolIcons = { "eraser", "colorpicker", "fillcolor" };
+        for (int i = 0; i < toolOptions.length; i++) {
+            JMenuItem item = new JMenuItem(toolOptions[i]);
+            item.setIcon(IconAtlas.get(toolIcons[i]));
+            item.addActionListener(this);
+            editMenu.add(item);
+        }
+    }
+
+    // Finishes starting up once the canvas is on screen: what is left is published or
+    // asked for only then
+    private void startupPainted() {
+        Thread jmx = new Thread(performance::register, "jmx-register");
+        jmx.setDaemon(true);
+        jmx.start();
+        offerRecovery();
+    }
+
+    // Shows the color chooser, which is built the first time. Returns null if cancelled.
+    private Color chooseColor(String title, Color initial) {
+        if (colorChooser == null) {
+            colorChooser = new JColorChooser();
+        }
+        colorChooser.setColor(initial != null ? initial : Color.BLACK);
+        Color[] chosen = new Color[1];
+        JColorChooser.createDialog(this, title, true, colorChooser, e -> chosen[0] = colorChooser.getColor(), null)
+                .setVisible(true);
+        return chosen[0];
     }
 
     private void addKeyboardShortcuts() {
@@ -186,7 +314,7 @@ public class EnhancedDrawingApp extends JFrame implements ActionListener, MouseL
     actionMap.put("UndoAction", new AbstractAction() {
         @Override
         public void actionPerformed(ActionEvent e) {
-            undo();
+            tools.undo();
         }
     });
 
@@ -195,7 +323,7 @@ public class EnhancedDrawingApp extends JFrame implements ActionListener, MouseL
     actionMap.put("RedoAction", new AbstractAction() {
         @Override
         public void actionPerformed(ActionEvent e) {
-            redo();
+            tools.redo();
         }
     });
 
@@ -208,6 +336,33 @@ public class EnhancedDrawingApp extends JFrame implements ActionListener, MouseL
         }
     });
 
+    // Save Sketch (Ctrl + Shift + S)
+    inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_S, InputEvent.CTRL_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK), "SaveSketchAction");
+    actionMap.put("SaveSketchAction", new AbstractAction() {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            saveDocument();
+        }
+    });
+
+    // Import Image (Ctrl + I)
+    inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_I, InputEvent.CTRL_DOWN_MASK), "ImportAction");
+    actionMap.put("ImportAction", new AbstractAction() {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            importImage();
+        }
+    });
+
+    // Performance overlay (F3)
+    inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_F3, 0), "HudAction");
+    actionMap.put("HudAction", new AbstractAction() {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            setHudVisible(!hudVisible);
+        }
+    });
+
     // Reset (Ctrl + R)
     inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_R, InputEvent.CTRL_DOWN_MASK), "ResetAction");
     actionMap.put("ResetAction", new AbstractAction() {
@@ -222,7 +377,7 @@ public class EnhancedDrawingApp extends JFrame implements ActionListener, MouseL
     actionMap.put("FreehandAction", new AbstractAction() {
         @Override
         public void actionPerformed(ActionEvent e) {
-            currentAction = "Freehand";
+            tools.setAction("Freehand");
             setCustomCursor(Cursor.CROSSHAIR_CURSOR);
         }
     });
@@ -232,7 +387,7 @@ public class EnhancedDrawingApp extends JFrame implements ActionListener, MouseL
     actionMap.put("LineAction", new AbstractAction() {
         @Override
         public void actionPerformed(ActionEvent e) {
-            currentAction = "Line";
+            tools.setAction("Line");
             setCustomCursor(Cursor.CROSSHAIR_CURSOR);
         }
     });
@@ -242,7 +397,7 @@ public class EnhancedDrawingApp extends JFrame implements ActionListener, MouseL
     actionMap.put("RectangleAction", new AbstractAction() {
         @Override
         public void actionPerformed(ActionEvent e) {
-            currentAction = "Rectangle";
+            tools.setAction("Rectangle");
             setCustomCursor(Cursor.CROSSHAIR_CURSOR);
         }
     });
@@ -252,7 +407,7 @@ public class EnhancedDrawingApp extends JFrame implements ActionListener, MouseL
     actionMap.put("OvalAction", new AbstractAction() {
         @Override
         public void actionPerformed(ActionEvent e) {
-            currentAction = "Oval";
+            tools.setAction("Oval");
             setCustomCursor(Cursor.CROSSHAIR_CURSOR);
         }
     });
@@ -262,7 +417,7 @@ public class EnhancedDrawingApp extends JFrame implements ActionListener, MouseL
     actionMap.put("EraserAction", new AbstractAction() {
         @Override
         public void actionPerformed(ActionEvent e) {
-            currentAction = "Erase";
+            tools.setAction("Erase");
             setCustomCursor(Cursor.HAND_CURSOR);
         }
     });
@@ -272,7 +427,33 @@ public class EnhancedDrawingApp extends JFrame implements ActionListener, MouseL
     actionMap.put("FillColorAction", new AbstractAction() {
         @Override
         public void actionPerformed(ActionEvent e) {
-            fillColor = JColorChooser.showDialog(EnhancedDrawingApp.this, "Choose Fill Color", fillColor);
+            tools.setFillColor(chooseColor("Choose Fill Color", tools.getFillColor()));
+        }
+    });
+
+    // Zoom in (Ctrl + =), zoom out (Ctrl + -) and fit the canvas to the window (Ctrl + 0)
+    inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_EQUALS, InputEvent.CTRL_DOWN_MASK), "ZoomInAction");
+    inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_ADD, InputEvent.CTRL_DOWN_MASK), "ZoomInAction");
+    actionMap.put("ZoomInAction", new AbstractAction() {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            zoomView(2, canvasPanel.getWidth() / 2, canvasPanel.getHeight() / 2);
+        }
+    });
+    inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_MINUS, InputEvent.CTRL_DOWN_MASK), "ZoomOutAction");
+    inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_SUBTRACT, InputEvent.CTRL_DOWN_MASK), "ZoomOutAction");
+    actionMap.put("ZoomOutAction", new AbstractAction() {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            zoomView(0.5, canvasPanel.getWidth() / 2, canvasPanel.getHeight() / 2);
+        }
+    });
+    inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_0, InputEvent.CTRL_DOWN_MASK), "FitAction");
+    actionMap.put("FitAction", new AbstractAction() {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            viewport.fit();
+            viewChanged();
         }
     });
 }
@@ -288,9 +469,8 @@ public class EnhancedDrawingApp extends JFrame implements ActionListener, MouseL
             case "Rectangle":
             case "Oval":
             case "Text":
-                currentAction = command;
+                tools.chooseTool(command); // which also resets the fill color to transparent
                 setCustomCursor(Cursor.CROSSHAIR_CURSOR);
-                fillColor = new Color(0, 0, 0, 0); // Reset fill color to transparent
                 break;
 
             case "Black":
@@ -313,41 +493,51 @@ public class EnhancedDrawingApp extends JFrame implements ActionListener, MouseL
             case "Silver":
             case "Teal":
             case "Lime":
-                currentColor = getColorByName(command);
-                g2d.setColor(currentColor);
+                tools.setColor(getColorByName(command));
                 break;
 
             case "Save":
                 saveDrawing();
                 break;
 
+            case "Open":
+                openDocument();
+                break;
+
+            case "Save Sketch":
+                saveDocument();
+                break;
+
+            case "Import Image":
+                importImage();
+                break;
+
             case "Reset":
                 resetDrawing();
                 break;
 
             case "Erase":
-                currentAction = "Erase";
+                tools.setAction("Erase");
                 setCustomCursor(Cursor.HAND_CURSOR);
                 break;
 
             case "Color Picker":
-                Color newColor = JColorChooser.showDialog(this, "Choose Color", currentColor);
+                Color newColor = chooseColor("Choose Color", tools.getColor());
                 if (newColor != null) {
-                    currentColor = newColor;
-                    g2d.setColor(currentColor);
+                    tools.setColor(newColor);
                 }
                 break;
 
             case "Fill Color":
-                currentAction = "Fill Color";
-                fillColor = JColorChooser.showDialog(this, "Choose Fill Color", fillColor);
+                tools.setAction("Fill Color");
+                tools.setFillColor(chooseColor("Choose Fill Color", tools.getFillColor()));
                 break;
             case "Undo":
-                undo();
+                tools.undo();
                 break;
 
             case "Redo":
-                redo();
+                tools.redo();
                 break;
             
         }
@@ -399,231 +589,704 @@ public class EnhancedDrawingApp extends JFrame implements ActionListener, MouseL
                 return Color.BLACK;
         }
     }
-    @SuppressWarnings("unused")
-    private int getSelectedThickness() {
-        return thicknessSlider.getValue(); // Assuming a JSlider for thickness selection
-    }
 
     @Override
     public void mousePressed(MouseEvent e) {
-        if (currentAction.equals("Text")) {
-            startX = e.getX() * canvasImage.getWidth() / canvasPanel.getWidth();
-            startY = e.getY() * canvasImage.getHeight() / canvasPanel.getHeight();
-            // Add a text field to input the text
-            JTextField textField = new JTextField();
-            textField.setFont(new Font("Arial", Font.PLAIN, 24));
-            int result = JOptionPane.showConfirmDialog(this, textField, "Enter Text", JOptionPane.OK_CANCEL_OPTION);
-            if (result == JOptionPane.OK_OPTION) {
-                String text = textField.getText();
-                // Draw the text on the canvas
-                g2d.setFont(new Font("Arial", Font.PLAIN, 24));
-                g2d.drawString(text, startX, startY);
-                canvasPanel.repaint();
-            }
+        if (SwingUtilities.isMiddleMouseButton(e)) {
+            panFrom = e.getPoint();
+            canvasPanel.setCursor(Cursor.getPredefinedCursor(Cursor.MOVE_CURSOR));
+            return;
+        }
+        tools.press(viewport.toCanvasX(e.getX()), viewport.toCanvasY(e.getY()));
+        if (tools.isTyping()) {
+            // The text is typed on the canvas, which takes the keys until it is committed
+            canvasPanel.requestFocusInWindow();
         }
-        startX = e.getX() * canvasImage.getWidth() / canvasPanel.getWidth();
-        startY = e.getY() * canvasImage.getHeight() / canvasPanel.getHeight();
     }
 
     @Override
     public void mouseReleased(MouseEvent e) {
-        if (currentAction.equals("Text")) {
-            // Do nothing
+        if (SwingUtilities.isMiddleMouseButton(e)) {
+            panFrom = null;
+            canvasPanel.setCursor(customCursor);
+            return;
         }
-        endX = e.getX() * canvasImage.getWidth() / canvasPanel.getWidth();
-        endY = e.getY() * canvasImage.getHeight() / canvasPanel.getHeight();
-
-        drawShape(); // Finalize the shape drawing
-
-        // Reset the currentShape so that no preview is shown after the shape is
-        // finalized
-        currentShape = null;
-        canvasPanel.repaint();
+        tools.release(viewport.toCanvasX(e.getX()), viewport.toCanvasY(e.getY()));
+        frameScheduler.inputArrived(e.getWhen());
     }
 
     @Override
     public void mouseDragged(MouseEvent e) {
+        if (panFrom != null) {
+            panView(e.getX() - panFrom.x, e.getY() - panFrom.y);
+            panFrom = e.getPoint();
+            return;
+        }
         // Convert mouse coordinates to canvas coordinates
-        endX = e.getX() * canvasImage.getWidth() / canvasPanel.getWidth();
-        endY = e.getY() * canvasImage.getHeight() / canvasPanel.getHeight();
-
-        // Update currentShape based on the selected action
-        if (currentAction.equals("Freehand")) {
-            drawLine(startX, startY, endX, endY);
-            startX = endX;
-            startY = endY;
-        } else if (currentAction.equals("Erase")) {
-            erase(endX, endY);
-        } else if (currentAction.equals("Line")) {
-            currentShape = new Line2D.Double(startX, startY, endX, endY);
-        } else if (currentAction.equals("Rectangle")) {
-            int x = Math.min(startX, endX);
-            int y = Math.min(startY, endY);
-            int width = Math.abs(startX - endX);
-            int height = Math.abs(startY - endY);
-            currentShape = new Rectangle(x, y, width, height);
-        } else if (currentAction.equals("Oval")) {
-            int x = Math.min(startX, endX);
-            int y = Math.min(startY, endY);
-            int width = Math.abs(startX - endX);
-            int height = Math.abs(startY - endY);
-            currentShape = new Ellipse2D.Double(x, y, width, height);
-        }
-
-        // Repaint the canvas to show the updated preview
-        canvasPanel.repaint();
-    }
-
-    private void drawLine(int x1, int y1, int x2, int y2) {
-        g2d.drawLine(x1, y1, x2, y2);
-    }
-
-    private void drawShape() {
-        saveStateToUndoStack();
-        switch (currentAction) {
-            case "Line":
-                currentShape = new Line2D.Double(startX, startY, endX, endY);
-                break;
-            case "Rectangle":
-                currentShape = new Rectangle(Math.min(startX, endX), Math.min(startY, endY), Math.abs(startX - endX),
-                        Math.abs(startY - endY));
-                break;
-            case "Oval":
-                currentShape = new Ellipse2D.Double(Math.min(startX, endX), Math.min(startY, endY),
-                        Math.abs(startX - endX), Math.abs(startY - endY));
-                break;
+        tools.drag(viewport.toCanvasX(e.getX()), viewport.toCanvasY(e.getY()));
+        frameScheduler.inputArrived(e.getWhen());
+    }
+
+    // Runs once per display refresh while there is work: applies the drags queued since
+    // the last frame and paints only what they and any other edits damaged
+    private boolean renderFrame() {
+        if (session != null) {
+            exchangeOperations();
+        }
+        tools.applyQueuedDrags();
+        if (panX != 0 || panY != 0) {
+            if (view.scroll(panX, panY, canvasPanel.getWidth(), canvasPanel.getHeight(),
+                    canvasPanel.getGraphicsConfiguration())) {
+                viewMoved = true;
+            }
+            panX = 0;
+            panY = 0;
+        }
+        Rectangle damage = tools.takeDamage();
+        Rectangle region;
+        if (viewMoved) {
+            region = new Rectangle(0, 0, canvasPanel.getWidth(), canvasPanel.getHeight());
+            viewMoved = false;
+        } else if (damage != null) {
+            region = viewport.toPanel(damage);
+        } else {
+            return false;
+        }
+        canvasPanel.paintImmediately(region);
+        Toolkit.getDefaultToolkit().sync();
+        if (recorder != null) {
+            recorder.frame(canvasPanel.getWidth(), canvasPanel.getHeight(), viewport);
         }
+        return true;
+    }
 
-        // Draw the shape on the canvas
-        if (currentShape != null) {
-            g2d.setColor(currentColor);
-            g2d.draw(currentShape);
+    // Accumulates a changed canvas region, in canvas coordinates
+    private void markDirty(int x, int y, int width, int height) {
+        Rectangle region = new Rectangle(x, y, width, height);
+        tools.damage(region);
+        view.markDirty(region);
+    }
 
-            if (fillColor.getAlpha() > 0) {
-                g2d.setColor(fillColor);
-                g2d.fill(currentShape);
-            }
+    // Asks for the accumulated damage to be painted with the next frame
+    private void repaintDamage() {
+        tools.requestRepaint();
+    }
 
-            shapes.add(currentShape);
-            fillColors.add(fillColor);
+    private void panView(int dx, int dy) {
+        panX += dx;
+        panY += dy;
+        frameScheduler.requestFrame();
+    }
 
-            currentShape = null;
-            canvasPanel.repaint();
-        }
+    // Scales the view by a factor around a panel point
+    private void zoomView(double factor, int x, int y) {
+        viewport.zoomAt(factor, x, y);
+        viewChanged();
     }
 
-    private void erase(int x, int y) {
-        saveStateToUndoStack();
-        g2d.setColor(Color.WHITE);
-        g2d.fillRect(x - eraserSize / 2, y - eraserSize / 2, eraserSize, eraserSize);
+    private void viewChanged() {
+        view.invalidate();
+        viewMoved = true;
+        frameScheduler.requestFrame();
     }
 
-    private void saveStateToUndoStack() {
-        BufferedImage currentState = new BufferedImage(canvasImage.getWidth(), canvasImage.getHeight(),
-                BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g2 = currentState.createGraphics();
-        g2.drawImage(canvasImage, 0, 0, null);
+    // Draws the performance counters over the top left corner of the canvas
+    private void paintHud(Graphics g) {
+        String[] lines = performance.describe();
+        if (session != null) {
+            lines = Arrays.copyOf(lines, lines.length + 1);
+            lines[lines.length - 1] = session.describe();
+        }
+        Graphics2D g2 = (Graphics2D) g.create();
+        g2.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        FontMetrics metrics = g2.getFontMetrics();
+        int width = 0;
+        for (String line : lines) {
+            width = Math.max(width, metrics.stringWidth(line));
+        }
+        hudBounds = new Rectangle(8, 8, width + 16, lines.length * metrics.getHeight() + 12);
+        g2.setColor(new Color(0, 0, 0, 170));
+        g2.fill(hudBounds);
+        g2.setColor(Color.WHITE);
+        for (int i = 0; i < lines.length; i++) {
+            g2.drawString(lines[i], hudBounds.x + 8, hudBounds.y + 6 + metrics.getAscent() + i * metrics.getHeight());
+        }
         g2.dispose();
-        undoStack.add(currentState);
-        redoStack.clear(); // Clear redo stack on new action
     }
 
-    private void undo() {
-        if (!undoStack.isEmpty()) {
-            BufferedImage lastState = undoStack.remove(undoStack.size() - 1);
-            redoStack.add(copyImage(canvasImage));
-            canvasImage.getGraphics().drawImage(lastState, 0, 0, null);
-            canvasPanel.repaint();
+    private void setHudVisible(boolean visible) {
+        hudVisible = visible;
+        if (visible) {
+            hudTimer.start();
+        } else {
+            hudTimer.stop();
         }
+        repaintHud();
     }
 
-    private void redo() {
-        if (!redoStack.isEmpty()) {
-            BufferedImage lastState = redoStack.remove(redoStack.size() - 1);
-            undoStack.add(copyImage(canvasImage));
-            canvasImage.getGraphics().drawImage(lastState, 0, 0, null);
+    // Refreshes the overlay's area, with room for its text to grow
+    private void repaintHud() {
+        if (hudBounds == null) {
             canvasPanel.repaint();
+        } else {
+            canvasPanel.repaint(hudBounds.x, hudBounds.y, hudBounds.width + 64, hudBounds.height);
         }
     }
 
-    private BufferedImage copyImage(BufferedImage image) {
-        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g2 = copy.createGraphics();
-        g2.drawImage(image, 0, 0, null);
-        g2.dispose();
-        return copy;
-    }
-
     private void saveDrawing() {
+        tools.commitText();
         JFileChooser fileChooser = new JFileChooser();
-        fileChooser.setFileFilter(new FileNameExtensionFilter("PNG Images", "png"));
+        FileNameExtensionFilter png = new FileNameExtensionFilter("PNG Images", "png");
+        FileNameExtensionFilter svg = new FileNameExtensionFilter("SVG Drawings (shapes, strokes and text)",
+                VectorExporter.EXTENSION, VectorExporter.COMPRESSED_EXTENSION);
+        fileChooser.addChoosableFileFilter(png);
+        fileChooser.addChoosableFileFilter(svg);
+        fileChooser.setFileFilter(png);
         int result = fileChooser.showSaveDialog(this);
         if (result == JFileChooser.APPROVE_OPTION) {
             File file = fileChooser.getSelectedFile();
-            try {
-                ImageIO.write(canvasImage, "PNG", file);
+            String name = file.getName();
+            if (name.endsWith("." + VectorExporter.EXTENSION)
+                    || name.endsWith("." + VectorExporter.COMPRESSED_EXTENSION)) {
+                saveVector(file);
+                return;
+            } else if (fileChooser.getFileFilter() == svg) {
+                saveVector(new File(file.getParentFile(), name + "." + VectorExporter.EXTENSION));
+                return;
+            }
+            // The snapshots share tiles with the layers, so drawing can go on during the export
+            TiledCanvas[] snapshot = layers.snapshotVisible();
+            int width = layers.getWidth();
+            int height = layers.getHeight();
+            int background = layers.getBackground();
+            ProgressMonitor monitor = new ProgressMonitor(this, "Saving drawing", file.getName(), 0, height);
+            monitor.setMillisToDecideToPopup(200);
+            exportExecutor.execute(
+                    () -> exportPng(LayerStack.flatten(snapshot, width, height, background), file, monitor));
+        }
+    }
+
+    // Runs on the export thread
+    private void exportPng(TiledCanvas snapshot, File file, ProgressMonitor monitor) {
+        DrawingEvents.Save event = new DrawingEvents.Save();
+        event.begin();
+        event.format = "png";
+        event.path = file.getPath();
+        boolean completed = false;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            completed = new ParallelPngEncoder().encode(snapshot, out,
+                    rows -> SwingUtilities.invokeLater(() -> monitor.setProgress(rows)), monitor::isCanceled);
+        } catch (IOException e) {
+            event.commit();
+            e.printStackTrace();
+            SwingUtilities.invokeLater(() -> {
+                monitor.close();
+                JOptionPane.showMessageDialog(this, "Could not save drawing: " + e.getMessage(), "Save",
+                        JOptionPane.ERROR_MESSAGE);
+            });
+            return;
+        }
+        event.bytes = file.length();
+        event.completed = completed;
+        event.commit();
+        if (!completed) {
+            file.delete();
+        }
+        boolean saved = completed;
+        SwingUtilities.invokeLater(() -> {
+            monitor.close();
+            if (saved) {
                 JOptionPane.showMessageDialog(this, "Drawing saved successfully!");
+            }
+        });
+    }
+
+    // Writes the shape model as SVG on the export thread. The items are taken here, so
+    // drawing can go on meanwhile.
+    private void saveVector(File file) {
+        VectorExporter exporter = new VectorExporter(layers);
+        ProgressMonitor monitor = new ProgressMonitor(this, "Saving drawing", file.getName(), 0,
+                Math.max(1, exporter.getItemCount()));
+        monitor.setMillisToDecideToPopup(200);
+        exportExecutor.execute(() -> {
+            DrawingEvents.Save event = new DrawingEvents.Save();
+            event.begin();
+            event.format = file.getName().endsWith("." + VectorExporter.COMPRESSED_EXTENSION)
+                    ? VectorExporter.COMPRESSED_EXTENSION : VectorExporter.EXTENSION;
+            event.path = file.getPath();
+            boolean completed;
+            try {
+                completed = exporter.write(file, items -> SwingUtilities.invokeLater(() -> monitor.setProgress(items)),
+                        monitor::isCanceled);
             } catch (IOException e) {
+                event.commit();
                 e.printStackTrace();
+                SwingUtilities.invokeLater(() -> {
+                    monitor.close();
+                    JOptionPane.showMessageDialog(this, "Could not save drawing: " + e.getMessage(), "Save",
+                            JOptionPane.ERROR_MESSAGE);
+                });
+                return;
             }
+            event.bytes = file.length();
+            event.completed = completed;
+            event.commit();
+            if (!completed) {
+                file.delete();
+            }
+            SwingUtilities.invokeLater(() -> {
+                monitor.close();
+                if (completed) {
+                    JOptionPane.showMessageDialog(this, "Drawing saved successfully!");
+                }
+            });
+        });
+    }
+
+    // Saves the document journal, appending only the operations since the last save. The
+    // first save of a document asks for the file.
+    private void saveDocument() {
+        tools.commitText();
+        if (journal.isSaving()) {
+            return; // the operations recorded meanwhile go out with the next save
         }
+        File target = journal.getFile();
+        if (target == null) {
+            JFileChooser fileChooser = new JFileChooser();
+            fileChooser.setFileFilter(new FileNameExtensionFilter("Sketch Documents", DocumentJournal.EXTENSION));
+            if (fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            target = fileChooser.getSelectedFile();
+            if (!target.getName().endsWith("." + DocumentJournal.EXTENSION)) {
+                target = new File(target.getParentFile(), target.getName() + "." + DocumentJournal.EXTENSION);
+            }
+        }
+        DocumentJournal saving = journal;
+        DocumentJournal.Save save = saving.prepareSave(target, layers);
+        exportExecutor.execute(() -> {
+            DrawingEvents.Save event = new DrawingEvents.Save();
+            event.begin();
+            event.format = DocumentJournal.EXTENSION;
+            event.path = save.getTarget().getPath();
+            try {
+                save.write();
+                event.completed = true;
+                SwingUtilities.invokeLater(() -> saving.saved(save));
+            } catch (IOException e) {
+                e.printStackTrace();
+                SwingUtilities.invokeLater(() -> {
+                    saving.saveFailed(save);
+                    JOptionPane.showMessageDialog(this, "Could not save document: " + e.getMessage(), "Save Sketch",
+                            JOptionPane.ERROR_MESSAGE);
+                });
+            }
+            event.bytes = save.getTarget().length();
+            event.commit();
+        });
     }
 
-    private void resetDrawing() {
-        g2d.setColor(Color.WHITE);
-        g2d.fillRect(0, 0, canvasImage.getWidth(), canvasImage.getHeight());
-        g2d.setColor(currentColor);
-        shapes.clear();
-        fillColors.clear();
-        canvasPanel.repaint();
+    private void openDocument() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setFileFilter(new FileNameExtensionFilter("Sketch Documents", DocumentJournal.EXTENSION));
+        if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = fileChooser.getSelectedFile();
+        leaveSession();
+        stopRecording();
+        loadDocument(file);
     }
 
-    private void setCustomCursor(int cursorType) {
-        customCursor = Cursor.getPredefinedCursor(cursorType);
-        canvasPanel.setCursor(customCursor);
+    // Reads an image onto a new layer, fitted to the part of the canvas in view. The file
+    // is decoded on the export thread; the layer is added once it has been read.
+    private void importImage() {
+        tools.commitText();
+        if (session != null || recorder != null) {
+            JOptionPane.showMessageDialog(this, "Images cannot be imported during a session or while recording input.",
+                    "Import Image", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setFileFilter(new FileNameExtensionFilter("Images", ImageIO.getReaderFileSuffixes()));
+        if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = fileChooser.getSelectedFile();
+        int width = layers.getWidth();
+        int height = layers.getHeight();
+        Rectangle area = viewport.toCanvas(new Rectangle(0, 0, canvasPanel.getWidth(), canvasPanel.getHeight()))
+                .intersection(new Rectangle(0, 0, width, height));
+        if (area.isEmpty()) {
+            area = new Rectangle(0, 0, width, height);
+        }
+        Rectangle target = area;
+        LayerStack importing = layers;
+        ProgressMonitor monitor = new ProgressMonitor(this, "Importing image", file.getName(), 0, 100);
+        monitor.setMillisToDecideToPopup(200);
+        exportExecutor.execute(() -> {
+            DrawingEvents.Import event = new DrawingEvents.Import();
+            event.begin();
+            event.path = file.getPath();
+            ImageImporter.Imported imported;
+            try {
+                imported = ImageImporter.read(file, target, width, height,
+                        percent -> SwingUtilities.invokeLater(() -> monitor.setProgress(percent)), monitor::isCanceled);
+            } catch (IOException | RuntimeException e) {
+                event.commit();
+                e.printStackTrace();
+                SwingUtilities.invokeLater(() -> {
+                    monitor.close();
+                    JOptionPane.showMessageDialog(this, "Could not import image: " + e.getMessage(), "Import Image",
+                            JOptionPane.ERROR_MESSAGE);
+                });
+                return;
+            }
+            if (imported != null) {
+                event.width = imported.getBounds().width;
+                event.height = imported.getBounds().height;
+                event.subsampling = imported.getSubsampling();
+                event.completed = true;
+            }
+            event.commit();
+            SwingUtilities.invokeLater(() -> {
+                monitor.close();
+                // Dropped if the drawing was replaced, or a session or recording started, meanwhile
+                if (imported != null && !imported.getBounds().isEmpty() && layers == importing && session == null
+                        && recorder == null) {
+                    tools.importImage(file.getName(), imported.getPixels(), imported.getBounds());
+                }
+            });
+        });
     }
 
-    @Override
-    public void mouseClicked(MouseEvent e) {
-        if (currentAction.equals("Fill Color")) {
-            fillShapeOrBackground(e.getX(), e.getY());
+    // Offers to restore the drawing autosaved by a run that ended with unsaved changes, as
+    // a new document, then starts autosaving
+    private void offerRecovery() {
+        File recovery = autosave.getRecoveryFile();
+        if (recovery != null) {
+            if (JOptionPane.showConfirmDialog(this,
+                    "Sketchpad was closed with unsaved changes. Restore the last autosave?", "Restore",
+                    JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+                if (loadDocument(recovery)) {
+                    journal.recovered();
+                }
+            } else {
+                autosave.discardRecovery();
+            }
         }
+        autosave.start();
     }
 
-    private void fillShapeOrBackground(int x, int y) {
-        int adjustedX = x * canvasImage.getWidth() / canvasPanel.getWidth();
-        int adjustedY = y * canvasImage.getHeight() / canvasPanel.getHeight();
+    // Reset has no undo, so the drawing is first kept aside by the autosave
+    private void resetDrawing() {
+        autosave.saveBeforeReset();
+        tools.reset();
+    }
 
-        boolean shapeFilled = false;
+    // Replaces the drawing with a document. Returns whether it was opened, even if only
+    // in part.
+    private boolean loadDocument(File file) {
+        DocumentJournal opened;
+        try {
+            opened = DocumentJournal.open(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Could not open document: " + e.getMessage(), "Open",
+                    JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        installLayers(opened.getWidth(), opened.getHeight(), opened.getBackground(), true);
+        try {
+            opened.replay(layers);
+            journal = opened;
+        } catch (IOException e) {
+            e.printStackTrace();
+            // Keep what could be restored as a new, unsaved document
+            journal = new DocumentJournal(layers.getWidth(), layers.getHeight(), layers.getBackground());
+            JOptionPane.showMessageDialog(this, "Could not open all of " + file.getName() + ": " + e.getMessage(),
+                    "Open", JOptionPane.ERROR_MESSAGE);
+        } finally {
+            if (layers.getLayers().isEmpty()) {
+                layers.addLayer();
+            }
+            // Replayed operations are not undoable
+            undoManager.clear();
+            setCursor(Cursor.getDefaultCursor());
+        }
+        tools.setDocument(layers, undoManager, journal);
+        markDirty(0, 0, layers.getWidth(), layers.getHeight());
+        repaintDamage();
+        return true;
+    }
 
-        // Check if the click is inside any shape
-        for (int i = 0; i < shapes.size(); i++) {
-            Shape shape = shapes.get(i);
-            if (shape.contains(adjustedX, adjustedY)) {
-                Graphics2D g2 = canvasImage.createGraphics();
-                g2.setColor(fillColor);
-                g2.fill(shape);
-                g2.dispose();
-                canvasPanel.repaint();
-                shapeFilled = true;
-                break;
+    // Starts an empty layer stack; the caller adds its layers. Without undoable, the undo
+    // manager is not attached to the layers and has nothing to undo.
+    private void installLayers(int width, int height, int background, boolean undoable) {
+        if (undoManager != null) {
+            undoManager.close();
+        }
+        // Undo history budget, e.g. -Dsketchpad.undo.memoryMB=512 -Dsketchpad.undo.diskMB=2048
+        undoManager = new TileUndoManager(width, height, Long.getLong("sketchpad.undo.memoryMB", 256) << 20,
+                Long.getLong("sketchpad.undo.diskMB", 1024) << 20);
+        layers = new LayerStack(width, height, background, undoable ? undoManager : null);
+        view.setLayers(layers);
+        layers.setDamageListener(r -> markDirty(r.x, r.y, r.width, r.height));
+        markDirty(0, 0, width, height);
+    }
+
+    // The layer commands, then one entry per layer, top first, to make it active
+    private void rebuildLayersMenu() {
+        layersMenu.removeAll();
+        JMenuItem newLayer = new JMenuItem("New Layer");
+        newLayer.addActionListener(e -> {
+            // In a session the layer is numbered once the relay has ordered it
+            if (tools.addLayer()) {
+                layersChanged();
+            }
+        });
+        layersMenu.add(newLayer);
+        JMenuItem deleteLayer = new JMenuItem("Delete Layer");
+        deleteLayer.setEnabled(layers.getLayers().size() > 1);
+        deleteLayer.addActionListener(e -> {
+            tools.removeLayer();
+            layersChanged();
+        });
+        layersMenu.add(deleteLayer);
+        JMenuItem showLayer = new JMenuItem(layers.getActive().isVisible() ? "Hide Layer" : "Show Layer");
+        showLayer.addActionListener(e -> {
+            if (tools.toggleLayer()) {
+                layersChanged();
             }
+        });
+        layersMenu.add(showLayer);
+        layersMenu.addSeparator();
+
+        ButtonGroup group = new ButtonGroup();
+        java.util.List<Layer> stack = layers.getLayers();
+        for (int i = stack.size() - 1; i >= 0; i--) {
+            Layer layer = stack.get(i);
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(
+                    layer.isVisible() ? layer.getName() : layer.getName() + " (hidden)", layer == layers.getActive());
+            item.addActionListener(e -> {
+                if (layer != layers.getActive()) {
+                    tools.selectLayer(layer);
+                    layersChanged();
+                }
+            });
+            group.add(item);
+            layersMenu.add(item);
         }
+    }
 
-        // If no shape was clicked, fill the background
-        if (!shapeFilled) {
-            Graphics2D g2 = canvasImage.createGraphics();
-            g2.setColor(fillColor);
-            g2.fillRect(0, 0, canvasImage.getWidth(), canvasImage.getHeight());
+    private void layersChanged() {
+        repaintDamage();
+    }
 
-            // Redraw all shapes after filling the background
-            g2.setColor(Color.BLACK); // Set the color for the shapes' outline
-            for (Shape shape : shapes) {
-                g2.draw(shape); // Draw each shape with its outline color
+    private void rebuildSessionMenu() {
+        sessionMenu.removeAll();
+        JMenuItem host = new JMenuItem("Host Session...");
+        host.addActionListener(e -> hostSession());
+        JMenuItem join = new JMenuItem("Join Session...");
+        join.addActionListener(e -> {
+            String address = JOptionPane.showInputDialog(this, "Relay to join (host:port)",
+                    "localhost:" + CollabRelay.DEFAULT_PORT);
+            if (address == null) {
+                return;
             }
+            int colon = address.lastIndexOf(':');
+            try {
+                joinSession(colon < 0 ? address.trim() : address.substring(0, colon).trim(),
+                        colon < 0 ? CollabRelay.DEFAULT_PORT : Integer.parseInt(address.substring(colon + 1).trim()));
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this, "Not a port: " + address, "Session", JOptionPane.ERROR_MESSAGE);
+            }
+        });
+        JMenuItem leave = new JMenuItem("Leave Session");
+        leave.addActionListener(e -> leaveSession());
+        host.setEnabled(session == null);
+        join.setEnabled(session == null);
+        leave.setEnabled(session != null);
+        sessionMenu.add(host);
+        sessionMenu.add(join);
+        sessionMenu.add(leave);
+    }
 
-            g2.dispose();
-            canvasPanel.repaint();
+    // Starts a relay in this process and joins it, for others to join too. The relay only
+    // takes sketchpads on this host unless given an address to listen on, e.g.
+    // -Dsketchpad.session.bind=0.0.0.0 for every interface.
+    private void hostSession() {
+        String port = JOptionPane.showInputDialog(this, "Port to host the session on", CollabRelay.DEFAULT_PORT);
+        if (port == null) {
+            return;
+        }
+        try {
+            String bind = System.getProperty("sketchpad.session.bind");
+            relay = bind == null ? new CollabRelay(Integer.parseInt(port.trim()))
+                    : new CollabRelay(Integer.parseInt(port.trim()), InetAddress.getByName(bind));
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Could not host a session: " + e.getMessage(), "Session",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        relay.start();
+        joinSession("localhost", relay.getPort());
+    }
+
+    // A session starts from an empty drawing of the session's size, built the same way on
+    // every sketchpad, which then applies everything the relay has ordered so far
+    private void joinSession(String host, int port) {
+        if (journal.isModified() && JOptionPane.showConfirmDialog(this,
+                "Joining a session starts a new drawing. Discard the unsaved changes?", "Session",
+                JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION) {
+            closeRelay();
+            return;
+        }
+        CollabSession joined;
+        try {
+            joined = new CollabSession(host, port, layers.getWidth(), layers.getHeight(), layers.getBackground(),
+                    () -> SwingUtilities.invokeLater(frameScheduler::requestFrame));
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Could not join " + host + ":" + port + ": " + e.getMessage(),
+                    "Session", JOptionPane.ERROR_MESSAGE);
+            closeRelay();
+            return;
+        }
+        stopRecording();
+        installLayers(joined.getWidth(), joined.getHeight(), joined.getBackground(), false);
+        layers.addLayer();
+        journal = new DocumentJournal(layers.getWidth(), layers.getHeight(), layers.getBackground());
+        journal.beginSession(frameScheduler::requestFrame);
+        tools.setDocument(layers, undoManager, journal);
+        tools.setDeferred(true);
+        session = joined;
+        sessionLayer = layers.getActive().getId();
+        repaintDamage();
+    }
+
+    // Keeps the drawing as it is, undoable from here on. Operations the relay has not sent
+    // back are dropped, as they were never drawn.
+    private void leaveSession() {
+        if (session == null) {
+            return;
+        }
+        session.close();
+        session = null;
+        journal.endSession();
+        tools.setDeferred(false);
+        closeRelay();
+        layers.setUndoManager(undoManager);
+    }
+
+    private void closeRelay() {
+        if (relay != null) {
+            relay.close();
+            relay = null;
+        }
+    }
+
+    private void rebuildTraceMenu() {
+        traceMenu.removeAll();
+        JMenuItem record = new JMenuItem("Record Input...");
+        record.addActionListener(e -> startRecording());
+        JMenuItem stop = new JMenuItem("Stop Recording");
+        stop.addActionListener(e -> stopRecording());
+        // A session's drawing depends on the others in it, so it cannot be replayed alone
+        record.setEnabled(recorder == null && session == null);
+        stop.setEnabled(recorder != null);
+        traceMenu.add(record);
+        traceMenu.add(stop);
+    }
+
+    // Records the input from here on, for InputReplay to play back. The recording starts
+    // from a new drawing the size of the current one.
+    private void startRecording() {
+        if (journal.isModified() && JOptionPane.showConfirmDialog(this,
+                "Recording starts a new drawing. Discard the unsaved changes?", "Trace",
+                JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION) {
+            return;
+        }
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setFileFilter(new FileNameExtensionFilter("Input Traces", InputTrace.EXTENSION));
+        if (fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File target = fileChooser.getSelectedFile();
+        if (!target.getName().endsWith("." + InputTrace.EXTENSION)) {
+            target = new File(target.getParentFile(), target.getName() + "." + InputTrace.EXTENSION);
+        }
+        try {
+            recorder = new InputTrace.Recorder(target, layers.getWidth(), layers.getHeight(), layers.getBackground(),
+                    tools);
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Could not record to " + target.getName() + ": " + e.getMessage(),
+                    "Trace", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        installLayers(layers.getWidth(), layers.getHeight(), layers.getBackground(), true);
+        layers.addLayer();
+        journal = new DocumentJournal(layers.getWidth(), layers.getHeight(), layers.getBackground());
+        tools.setDocument(layers, undoManager, journal);
+        tools.setRecorder(recorder);
+        repaintDamage();
+    }
+
+    // Ends the trace with a checksum of the drawing, which the replay has to arrive at
+    private void stopRecording() {
+        if (recorder == null) {
+            return;
+        }
+        InputTrace.Recorder stopped = recorder;
+        recorder = null;
+        tools.setRecorder(null);
+        // Drags not yet applied are applied by the replay's last frame too
+        tools.applyQueuedDrags();
+        try {
+            stopped.finish(InputTrace.checksum(layers));
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Could not record to " + stopped.getFile().getName() + ": "
+                    + e.getMessage(), "Trace", JOptionPane.ERROR_MESSAGE);
+        }
+        repaintDamage();
+    }
+
+    // Sends what was drawn since the last frame as one batch and applies what the relay
+    // has sent back
+    private void exchangeOperations() {
+        tools.journalErasing();
+        byte[] batch = journal.takeOutgoing(sessionLayer);
+        if (batch != null) {
+            session.send(batch);
+        }
+        try {
+            session.applyReceived(layers, journal);
+        } catch (IOException e) {
+            e.printStackTrace();
+            leaveSession();
+            JOptionPane.showMessageDialog(this, "Left the session: " + e.getMessage(), "Session",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        sessionLayer = layers.getActive().getId();
+        if (!session.isConnected()) {
+            leaveSession();
+            JOptionPane.showMessageDialog(this, "The session has ended.", "Session", JOptionPane.INFORMATION_MESSAGE);
+        }
+    }
+
+    private void setCustomCursor(int cursorType) {
+        customCursor = Cursor.getPredefinedCursor(cursorType);
+        canvasPanel.setCursor(customCursor);
+    }
+
+    @Override
+    public void mouseClicked(MouseEvent e) {
+        if (!SwingUtilities.isMiddleMouseButton(e)) {
+            tools.click(viewport.toCanvasX(e.getX()), viewport.toCanvasY(e.getY()));
         }
     }
 
@@ -636,16 +1299,19 @@ public class EnhancedDrawingApp extends JFrame implements ActionListener, MouseL
     }
 
     public static void main(String[] args) {
+        StartupTimer.mainStarted();
+        TiledCanvas.configureRenderer();
+        IconAtlas.preload();
         SwingUtilities.invokeLater(() -> {
             EnhancedDrawingApp drawingApp = new EnhancedDrawingApp();
+            StartupTimer.windowBuilt();
             drawingApp.setVisible(true);
+            StartupTimer.windowShown();
         });
     }
 
     @Override
     public void mouseMoved(MouseEvent e) {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException("Unimplemented method 'mouseMoved'");
     }
 
 }
@@ -0,0 +1,271 @@
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+// Scanline bucket fill working directly on the int[] pixels of the canvas tiles.
+// findRegion() walks the connected area around a seed one horizontal span at a time and
+// records the spans and their bounding box without modifying the canvas, so the caller can
+// save exactly that box for undo before paint() writes the fill color. All working storage
+// (visited bits, span list, seed stack) is kept between fills; nothing is allocated per pixel.
+// Visited bits are kept per canvas tile, so a fill only pays for the tiles it reaches.
+public class FloodFill {
+    // Fills covering more pixels than this are painted on several cores
+    private static final int PARALLEL_PIXELS = 1 << 20;
+    private static final int PARALLEL_CHUNKS = 64;
+
+    private static final int SHIFT = TiledCanvas.TILE_SHIFT;
+    private static final int MASK = TiledCanvas.TILE_SIZE - 1;
+    private static final PixelKernels KERNELS = PixelKernels.get();
+
+    private final TiledCanvas canvas;
+    private final int width;
+    private final int height;
+    private final long[][] visited; // per canvas tile, allocated on first visit
+    private final int[] visitedStamp;
+    private int[] visitedTiles = new int[64];
+    private int visitedTileCount;
+    private int fillSerial;
+
+    private int[] spans = new int[3 * 256]; // y, x0, x1 triples
+    private int spanCount;
+    private long spanPixels;
+    private int[] stack = new int[4 * 256]; // left, right, y, direction
+    private int stackSize;
+
+    public FloodFill(TiledCanvas canvas) {
+        this.canvas = canvas;
+        this.width = canvas.getWidth();
+        this.height = canvas.getHeight();
+        this.visited = new long[canvas.getColumns() * canvas.getRows()][];
+        this.visitedStamp = new int[visited.length];
+    }
+
+    // Finds the area connected to (x, y) whose colors are within tolerance (0-255 per
+    // channel) of the seed color. Returns its bounding box, or null if the seed is outside.
+    public Rectangle findRegion(int x, int y, int tolerance) {
+        spanCount = 0;
+        spanPixels = 0;
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return null;
+        }
+        for (int i = 0; i < visitedTileCount; i++) {
+            Arrays.fill(visited[visitedTiles[i]], 0L);
+        }
+        visitedTileCount = 0;
+        fillSerial++;
+        int seed = canvas.getPixel(x, y);
+        int minX = x, maxX = x, minY = y, maxY = y;
+
+        // Each stack entry is a row to scan plus the span of the row it was reached from,
+        // so the parent row is only rescanned where a child span reaches past it
+        stackSize = 0;
+        push(x, x, y, 1);
+        push(x, x, y - 1, -1);
+        while (stackSize > 0) {
+            stackSize -= 4;
+            int lx = stack[stackSize];
+            int rx = stack[stackSize + 1];
+            int sy = stack[stackSize + 2];
+            int dy = stack[stackSize + 3];
+            if (sy < 0 || sy >= height) {
+                continue;
+            }
+            int sx = lx;
+            while (sx <= rx) {
+                if (!matches(sx, sy, seed, tolerance)) {
+                    sx++;
+                    continue;
+                }
+                // Extend the run left and right past the parent span. Runs already visited
+                // were extended as far as the color allows, so an unvisited pixel is never
+                // next to one and the extension only has to compare colors.
+                int left = matchLeft(sx, sy, seed, tolerance);
+                int right = matchRight(sx + 1, sy, seed, tolerance) - 1;
+                markVisited(left, right, sy);
+                addSpan(sy, left, right);
+                minX = Math.min(minX, left);
+                maxX = Math.max(maxX, right);
+                minY = Math.min(minY, sy);
+                maxY = Math.max(maxY, sy);
+
+                push(left, right, sy + dy, dy);
+                if (left < lx) {
+                    push(left, lx - 1, sy - dy, -dy);
+                }
+                if (right > rx) {
+                    push(rx + 1, right, sy - dy, -dy);
+                }
+                sx = right + 2;
+            }
+        }
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    // Paints the region found by the last findRegion() with the color, blending it over
+    // the existing pixels when it is translucent.
+    public void paint(int argb) {
+        int alpha = argb >>> 24;
+        if (alpha == 0 || spanCount == 0) {
+            return;
+        }
+        // Allocate the tiles up front so the parallel painters only write into arrays
+        for (int i = 0; i < spanCount; i++) {
+            int ty = spans[3 * i] >> SHIFT;
+            for (int tx = spans[3 * i + 1] >> SHIFT; tx <= spans[3 * i + 2] >> SHIFT; tx++) {
+                canvas.writableTile(tx, ty);
+            }
+        }
+        if (spanPixels < PARALLEL_PIXELS) {
+            paintSpans(0, spanCount, argb);
+            return;
+        }
+        int perChunk = (spanCount + PARALLEL_CHUNKS - 1) / PARALLEL_CHUNKS;
+        // Spans never overlap, so chunks can be written concurrently
+        IntStream.range(0, PARALLEL_CHUNKS).parallel().forEach(chunk -> {
+            int from = chunk * perChunk;
+            paintSpans(from, Math.min(spanCount, from + perChunk), argb);
+        });
+    }
+
+    public long getFilledPixels() {
+        return spanPixels;
+    }
+
+    private void paintSpans(int from, int to, int argb) {
+        boolean opaque = (argb >>> 24) == 255;
+        for (int i = from; i < to; i++) {
+            int y = spans[3 * i];
+            int ty = y >> SHIFT;
+            int row = (y & MASK) << SHIFT;
+            int x = spans[3 * i + 1];
+            int x1 = spans[3 * i + 2] + 1;
+            while (x < x1) {
+                int tx = x >> SHIFT;
+                int[] tile = canvas.tile(tx, ty);
+                int start = row + (x & MASK);
+                int end = start + Math.min(x1, (tx + 1) << SHIFT) - x;
+                if (opaque) {
+                    KERNELS.fill(tile, start, end, argb);
+                } else {
+                    KERNELS.blend(tile, start, end, argb);
+                }
+                x = (tx + 1) << SHIFT;
+            }
+        }
+    }
+
+    private boolean matches(int x, int y, int seed, int tolerance) {
+        return !isVisited(x, y) && PixelKernels.matches(canvas.getPixel(x, y), seed, tolerance);
+    }
+
+    // First x, from the given one on, whose color on row y is not within tolerance of the
+    // seed, or the width
+    private int matchRight(int from, int y, int seed, int tolerance) {
+        int ty = y >> SHIFT;
+        int row = (y & MASK) << SHIFT;
+        int x = from;
+        while (x < width) {
+            int tx = x >> SHIFT;
+            int end = Math.min(width, (tx + 1) << SHIFT);
+            int[] tile = canvas.tile(tx, ty);
+            int stop;
+            if (tile == null) {
+                stop = PixelKernels.matches(canvas.getBackground(), seed, tolerance) ? end : x;
+            } else {
+                int base = row - (tx << SHIFT);
+                stop = KERNELS.matchForward(tile, base + x, base + end, seed, tolerance) - base;
+            }
+            if (stop < end) {
+                return stop;
+            }
+            x = end;
+        }
+        return width;
+    }
+
+    // Leftmost x of the run of colors within tolerance of the seed on row y that ends just
+    // before the given x
+    private int matchLeft(int to, int y, int seed, int tolerance) {
+        int ty = y >> SHIFT;
+        int row = (y & MASK) << SHIFT;
+        int x = to;
+        while (x > 0) {
+            int tx = (x - 1) >> SHIFT;
+            int start = tx << SHIFT;
+            int[] tile = canvas.tile(tx, ty);
+            int stop;
+            if (tile == null) {
+                stop = PixelKernels.matches(canvas.getBackground(), seed, tolerance) ? start : x;
+            } else {
+                int base = row - start;
+                stop = KERNELS.matchBackward(tile, base + start, base + x, seed, tolerance) - base;
+            }
+            if (stop > start) {
+                return stop;
+            }
+            x = start;
+        }
+        return 0;
+    }
+
+    private boolean isVisited(int x, int y) {
+        long[] bits = visited[(y >> SHIFT) * canvas.getColumns() + (x >> SHIFT)];
+        int bit = ((y & MASK) << SHIFT) | (x & MASK);
+        return bits != null && (bits[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    // Marks [from, to] on row y visited, a word of bits at a time
+    private void markVisited(int from, int to, int y) {
+        int ty = y >> SHIFT;
+        int row = (y & MASK) << SHIFT;
+        int x = from;
+        while (x <= to) {
+            int tx = x >> SHIFT;
+            int end = Math.min(to, ((tx + 1) << SHIFT) - 1);
+            int tile = ty * canvas.getColumns() + tx;
+            long[] bits = visited[tile];
+            if (bits == null) {
+                bits = visited[tile] = new long[(1 << (2 * SHIFT)) / 64];
+            }
+            if (visitedStamp[tile] != fillSerial) {
+                // First visit of this tile in the current fill; cleared before the next one
+                visitedStamp[tile] = fillSerial;
+                if (visitedTileCount == visitedTiles.length) {
+                    visitedTiles = Arrays.copyOf(visitedTiles, visitedTileCount * 2);
+                }
+                visitedTiles[visitedTileCount++] = tile;
+            }
+            int bit = row | (x & MASK);
+            int last = row | (end & MASK);
+            while (bit <= last) {
+                int word = bit >>> 6;
+                int upTo = Math.min(last, (word << 6) | 63);
+                // Bits bit..upTo of the word
+                bits[word] |= (-1L >>> (63 - (upTo & 63))) & (-1L << bit);
+                bit = upTo + 1;
+            }
+            x = end + 1;
+        }
+    }
+
+    private void push(int lx, int rx, int y, int dy) {
+        if (stackSize + 4 > stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[stackSize++] = lx;
+        stack[stackSize++] = rx;
+        stack[stackSize++] = y;
+        stack[stackSize++] = dy;
+    }
+
+    private void addSpan(int y, int x0, int x1) {
+        if (3 * spanCount + 3 > spans.length) {
+            spans = Arrays.copyOf(spans, spans.length * 2);
+        }
+        spans[3 * spanCount] = y;
+        spans[3 * spanCount + 1] = x0;
+        spans[3 * spanCount + 2] = x1;
+        spanCount++;
+        spanPixels += x1 - x0 + 1;
+    }
+}
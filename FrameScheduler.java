@@ -0,0 +1,142 @@
+import java.awt.DisplayMode;
+import java.awt.GraphicsEnvironment;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+import javax.swing.Timer;
+
+// Paces presentation to the display refresh. Input handlers only queue their work and call
+// inputArrived() or requestFrame(); a Swing timer then runs the frame callback at most once
+// per refresh period on the event thread, where it applies everything queued since the last
+// frame and paints the damage. The timer stops as soon as a frame has nothing to do, so an
+// idle window costs nothing, and the first frame after idling runs without waiting.
+//
+// Input-to-pixel latency is measured from the timestamp of the oldest input a frame
+// includes to the moment that frame has been painted. The time an event spent queued
+// before its handler ran is included, since it is taken from the event itself.
+public class FrameScheduler {
+    private static final int SAMPLES = 1024;
+    // Prints the latency figures about once a second, e.g. -Dsketchpad.frameStats=true
+    private static final boolean LOG = Boolean.getBoolean("sketchpad.frameStats");
+
+    private final BooleanSupplier frame;
+    private final Timer timer;
+    private final long periodNanos;
+    private long lastFrameNanos;
+    private long oldestInputNanos; // 0 when no unpresented input
+    private boolean requested;
+
+    private final long[] latencies = new long[SAMPLES]; // ring of recent samples, in nanoseconds
+    private int sampleCount;
+    private final long[] frameTimes = new long[SAMPLES]; // ring of recent frame durations, in nanoseconds
+    private long frames;
+    private long maxLatency;
+    private long maxFrameTime;
+    private long lastLogNanos;
+
+    // frame applies pending work and paints it, returning whether anything was presented
+    public FrameScheduler(BooleanSupplier frame) {
+        this.frame = frame;
+        int refreshRate = refreshRate();
+        this.periodNanos = 1_000_000_000L / refreshRate;
+        this.timer = new Timer(Math.max(1, 1000 / refreshRate), e -> tick());
+        timer.setCoalesce(true);
+    }
+
+    // Notes an input event by its timestamp (MouseEvent.getWhen()) and asks for a frame
+    public void inputArrived(long when) {
+        // Event timestamps are wall-clock milliseconds; move them onto the nanosecond clock
+        long age = Math.max(0, System.currentTimeMillis() - when) * 1_000_000L;
+        long input = System.nanoTime() - age;
+        if (oldestInputNanos == 0 || input < oldestInputNanos) {
+            oldestInputNanos = input;
+        }
+        requestFrame();
+    }
+
+    public void requestFrame() {
+        requested = true;
+        if (!timer.isRunning()) {
+            long wait = lastFrameNanos + periodNanos - System.nanoTime();
+            timer.setInitialDelay((int) Math.max(0, wait / 1_000_000L));
+            timer.start();
+        }
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    // Input-to-pixel latency over the recent frames at a percentile (0-100), in milliseconds
+    public double getLatencyPercentile(double percentile) {
+        return percentile(latencies, sampleCount, percentile);
+    }
+
+    public double getMaxLatency() {
+        return maxLatency / 1e6;
+    }
+
+    // Time spent applying and painting the recent frames at a percentile, in milliseconds
+    public double getFrameTimePercentile(double percentile) {
+        return percentile(frameTimes, frames, percentile);
+    }
+
+    public double getMaxFrameTime() {
+        return maxFrameTime / 1e6;
+    }
+
+    // The refresh period frames are paced to, in milliseconds
+    public double getFramePeriod() {
+        return periodNanos / 1e6;
+    }
+
+    public String describeLatency() {
+        return String.format("%d frames, input to pixels p50 %.1f ms, p95 %.1f ms, max %.1f ms (frame %.1f ms)",
+                frames, getLatencyPercentile(50), getLatencyPercentile(95), maxLatency / 1e6, periodNanos / 1e6);
+    }
+
+    private static double percentile(long[] ring, long count, double percentile) {
+        int n = (int) Math.min(count, SAMPLES);
+        if (n == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(ring, n);
+        Arrays.sort(sorted);
+        int index = (int) Math.min(n - 1, Math.ceil(percentile / 100 * n) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private void tick() {
+        if (!requested) {
+            timer.stop();
+            return;
+        }
+        requested = false;
+        lastFrameNanos = System.nanoTime();
+        boolean presented = frame.getAsBoolean();
+        if (presented) {
+            long frameTime = System.nanoTime() - lastFrameNanos;
+            frameTimes[(int) (frames++ % SAMPLES)] = frameTime;
+            maxFrameTime = Math.max(maxFrameTime, frameTime);
+            if (oldestInputNanos != 0) {
+                long latency = System.nanoTime() - oldestInputNanos;
+                latencies[sampleCount++ % SAMPLES] = latency;
+                maxLatency = Math.max(maxLatency, latency);
+            }
+        }
+        oldestInputNanos = 0;
+        if (LOG && lastFrameNanos - lastLogNanos > 1_000_000_000L) {
+            lastLogNanos = lastFrameNanos;
+            System.err.println(describeLatency());
+        }
+    }
+
+    private static int refreshRate() {
+        if (GraphicsEnvironment.isHeadless()) {
+            return 60;
+        }
+        DisplayMode mode = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                .getDisplayMode();
+        int rate = mode.getRefreshRate();
+        return rate == DisplayMode.REFRESH_RATE_UNKNOWN ? 60 : rate;
+    }
+}
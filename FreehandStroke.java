@@ -0,0 +1,176 @@
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+
+// A freehand stroke kept as vector data. Input points are gathered into a primitive float
+// buffer as they arrive, and a polyline of them is kept for drawing the stroke while it is
+// in progress. finish() then thins the points with Ramer-Douglas-Peucker and fits a smooth
+// curve through what is left: one cubic Bezier per segment, with Catmull-Rom tangents, so
+// the curve passes through every remaining point. Documents store only the simplified
+// points; the curve is rebuilt from them.
+public class FreehandStroke {
+    // Furthest a dropped point may lie from the simplified stroke, in canvas pixels
+    public static final float SIMPLIFY_TOLERANCE = 1.0f;
+
+    private float[] points; // x, y pairs
+    private int count;
+    private Path2D.Float polyline = new Path2D.Float(); // input so far, until finish()
+    private Path2D.Float curve;
+
+    public FreehandStroke() {
+        points = new float[128];
+    }
+
+    // A stroke from points that have already been simplified
+    public FreehandStroke(float[] source, int count) {
+        this.points = Arrays.copyOf(source, 2 * count);
+        this.count = count;
+        this.polyline = null;
+        this.curve = fit();
+    }
+
+    public void add(float x, float y) {
+        if (count > 0 && points[2 * count - 2] == x && points[2 * count - 1] == y) {
+            return;
+        }
+        if (2 * count + 2 > points.length) {
+            points = Arrays.copyOf(points, points.length * 2);
+        }
+        points[2 * count] = x;
+        points[2 * count + 1] = y;
+        count++;
+        if (count == 1) {
+            polyline.moveTo(x, y);
+        } else {
+            polyline.lineTo(x, y);
+        }
+    }
+
+    // Simplifies the input and fits the curve; no points can be added afterwards
+    public void finish() {
+        simplify(SIMPLIFY_TOLERANCE);
+        points = Arrays.copyOf(points, 2 * count);
+        polyline = null;
+        curve = fit();
+    }
+
+    public int getPointCount() {
+        return count;
+    }
+
+    // The x, y pairs of the points; only the first getPointCount() pairs are meaningful
+    public float[] getPoints() {
+        return points;
+    }
+
+    // The stroke as drawn: the input polyline while in progress, the fitted curve after
+    public Shape getPath() {
+        return curve != null ? curve : polyline;
+    }
+
+    // Pixels covered when stroked with the given width
+    public Rectangle getBounds(float width) {
+        Rectangle2D r = getPath().getBounds2D();
+        int pad = (int) Math.ceil(width / 2) + 2;
+        Rectangle bounds = r.getBounds();
+        bounds.grow(pad, pad);
+        return bounds;
+    }
+
+    // Distance from a point to the stroke's centre line
+    public double distanceTo(double x, double y) {
+        if (count == 1) {
+            return Math.hypot(x - points[0], y - points[1]);
+        }
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i + 1 < count; i++) {
+            best = Math.min(best, segmentDistance(x, y, points[2 * i], points[2 * i + 1], points[2 * i + 2],
+                    points[2 * i + 3]));
+        }
+        return best;
+    }
+
+    // Ramer-Douglas-Peucker, with an explicit stack so long strokes cannot overflow it
+    private void simplify(float tolerance) {
+        if (count < 3) {
+            return;
+        }
+        boolean[] keep = new boolean[count];
+        keep[0] = true;
+        keep[count - 1] = true;
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            float ax = points[2 * first], ay = points[2 * first + 1];
+            float bx = points[2 * last], by = points[2 * last + 1];
+            double worst = tolerance;
+            int index = -1;
+            for (int i = first + 1; i < last; i++) {
+                double d = segmentDistance(points[2 * i], points[2 * i + 1], ax, ay, bx, by);
+                if (d > worst) {
+                    worst = d;
+                    index = i;
+                }
+            }
+            if (index >= 0) {
+                keep[index] = true;
+                if (top + 4 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[top++] = first;
+                stack[top++] = index;
+                stack[top++] = index;
+                stack[top++] = last;
+            }
+        }
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (keep[i]) {
+                points[2 * kept] = points[2 * i];
+                points[2 * kept + 1] = points[2 * i + 1];
+                kept++;
+            }
+        }
+        count = kept;
+    }
+
+    // Cubic Bezier segments through the points, with tangents taken from the neighbours
+    private Path2D.Float fit() {
+        Path2D.Float path = new Path2D.Float(Path2D.WIND_NON_ZERO, Math.max(2, count));
+        if (count == 0) {
+            return path;
+        }
+        path.moveTo(points[0], points[1]);
+        if (count == 1) {
+            path.lineTo(points[0], points[1]);
+            return path;
+        }
+        for (int i = 0; i + 1 < count; i++) {
+            int previous = Math.max(i - 1, 0);
+            int next = Math.min(i + 2, count - 1);
+            float x1 = points[2 * i], y1 = points[2 * i + 1];
+            float x2 = points[2 * i + 2], y2 = points[2 * i + 3];
+            float c1x = x1 + (x2 - points[2 * previous]) / 6;
+            float c1y = y1 + (y2 - points[2 * previous + 1]) / 6;
+            float c2x = x2 - (points[2 * next] - x1) / 6;
+            float c2y = y2 - (points[2 * next + 1] - y1) / 6;
+            path.curveTo(c1x, c1y, c2x, c2y, x2, y2);
+        }
+        return path;
+    }
+
+    private static double segmentDistance(double px, double py, double ax, double ay, double bx, double by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        return Math.hypot(px - (ax + t * dx), py - (ay + t * dy));
+    }
+}
@@ -0,0 +1,128 @@
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.font.LineMetrics;
+import java.awt.geom.Rectangle2D;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+// Fonts and laid-out text for the text labels. A font is created once per name, style and
+// size, and a string is laid out once per font into a GlyphVector, which every label showing
+// it then draws and is outlined from, through redraws, replays and exports. The least
+// recently used layouts are dropped beyond a fixed number.
+//
+// Text is laid out for an unscaled, aliased context, the one a tile's graphics start with,
+// so drawing a layout gives the same pixels as drawString() did. Lookups and drawing may
+// come from any thread.
+public class GlyphCache {
+    // Layouts kept, e.g. -Dsketchpad.glyphCache.entries=16384
+    private static final int MAX_ENTRIES = Integer.getInteger("sketchpad.glyphCache.entries", 4096);
+    private static final FontRenderContext CONTEXT = new FontRenderContext(null, false, false);
+
+    private static final HashMap<String, Font> fonts = new HashMap<>();
+    private static final LinkedHashMap<Key, Glyphs> layouts = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Glyphs> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private GlyphCache() {
+    }
+
+    public static synchronized Font font(String name, int style, int size) {
+        return fonts.computeIfAbsent(name + '\0' + style + '\0' + size, k -> new Font(name, style, size));
+    }
+
+    // The layout of a string in a font, laid out on first use
+    public static synchronized Glyphs glyphs(Font font, String text) {
+        Key key = new Key(font, text);
+        Glyphs glyphs = layouts.get(key);
+        if (glyphs == null) {
+            glyphs = new Glyphs(font, text);
+            layouts.put(key, glyphs);
+        }
+        return glyphs;
+    }
+
+    private static final class Key {
+        final Font font;
+        final String text;
+        final int hash;
+
+        Key(Font font, String text) {
+            this.font = font;
+            this.text = text;
+            this.hash = Objects.hash(font, text);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).font.equals(font) && ((Key) o).text.equals(text);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    // One laid-out string, measured from the start of its baseline
+    public static final class Glyphs {
+        private final GlyphVector vector;
+        private final float advance;
+        private final float ascent;
+        private final float descent;
+        private final Rectangle bounds; // logical and visual bounds, rounded out
+        private Shape outline; // built on first use
+
+        Glyphs(Font font, String text) {
+            vector = font.createGlyphVector(CONTEXT, text);
+            LineMetrics metrics = font.getLineMetrics(text, CONTEXT);
+            Rectangle2D logical = vector.getLogicalBounds();
+            advance = (float) logical.getWidth();
+            ascent = metrics.getAscent();
+            descent = metrics.getDescent();
+            Rectangle2D area = new Rectangle2D.Float(0, -ascent, advance, ascent + descent + metrics.getLeading());
+            area.add(vector.getVisualBounds());
+            bounds = area.getBounds();
+            bounds.grow(1, 1);
+        }
+
+        public float getAdvance() {
+            return advance;
+        }
+
+        public float getAscent() {
+            return ascent;
+        }
+
+        public float getDescent() {
+            return descent;
+        }
+
+        // Area the text covers when drawn at the origin
+        public Rectangle getBounds() {
+            return new Rectangle(bounds);
+        }
+
+        // Glyph outlines at the origin, for SVG export of text as paths
+        public synchronized Shape getOutline() {
+            if (outline == null) {
+                outline = vector.getOutline();
+            }
+            return outline;
+        }
+
+        // Draws with the baseline starting at the point. A GlyphVector keeps caches of its
+        // own, so one layout is drawn by one thread at a time.
+        public synchronized void draw(Graphics2D g, float x, float y) {
+            g.drawGlyphVector(vector, x, y);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import javax.imageio.ImageIO;
+import javax.swing.Icon;
+
+// The menu icons, kept side by side in one image, icons/atlas.png, as 32 pixel squares in
+// the order of NAMES. preload() starts reading it on a background thread as the app starts,
+// and an icon only waits for it the first time it is painted, once its menu has been opened,
+// so neither the image decoding nor the icons hold up the first frame.
+public class IconAtlas {
+    private static final String[] NAMES = { "freehand", "line", "rectangle", "oval", "text", "eraser",
+            "colorpicker", "fillcolor", "triangle" };
+    private static final int SIZE = 32;
+
+    private static CompletableFuture<BufferedImage> atlas;
+
+    private IconAtlas() {
+    }
+
+    // Starts reading the atlas, unless it has been already
+    public static synchronized void preload() {
+        if (atlas == null) {
+            atlas = CompletableFuture.supplyAsync(IconAtlas::read);
+        }
+    }
+
+    // The icon of the given name, drawn from the atlas once it has been read
+    public static Icon get(String name) {
+        int index = Arrays.asList(NAMES).indexOf(name);
+        if (index < 0) {
+            throw new IllegalArgumentException("No icon " + name);
+        }
+        preload();
+        return new AtlasIcon(index);
+    }
+
+    private static synchronized BufferedImage image() {
+        return atlas.join();
+    }
+
+    private static BufferedImage read() {
+        URL url = IconAtlas.class.getResource("/icons/atlas.png");
+        try {
+            if (url != null) {
+                return ImageIO.read(url);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null; // the menus go without icons
+    }
+
+    private static class AtlasIcon implements Icon {
+        private final int index;
+        private BufferedImage image;
+
+        AtlasIcon(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void paintIcon(Component c, Graphics g, int x, int y) {
+            if (image == null) {
+                BufferedImage all = image();
+                if (all == null) {
+                    return;
+                }
+                image = all.getSubimage(index * SIZE, 0, SIZE, SIZE);
+            }
+            g.drawImage(image, x, y, null);
+        }
+
+        @Override
+        public int getIconWidth() {
+            return SIZE;
+        }
+
+        @Override
+        public int getIconHeight() {
+            return SIZE;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+
+// Reads an image file onto the canvas at the size it is seen at, for tracing over scans far
+// larger than the screen. The file is decoded once, by the ImageIO reader for its format,
+// keeping only every n-th pixel of every n-th row, with n the smallest whole factor that
+// fits the image into the target area. Only the kept pixels are ever held, so a 100
+// megapixel scan costs memory in proportion to the area it covers on the canvas rather
+// than to the file. Images that already fit are read as they are. Metadata is skipped.
+//
+// The pixels are put into a transparent canvas the size of the drawing, for the event
+// thread to copy into a layer. read() may run on any thread; it reports its progress as a
+// percentage and polls for cancellation while the file is decoded.
+public class ImageImporter {
+    private static final int BAND_ROWS = 64;
+    // Share of the progress taken by decoding; the rest is moving the pixels to the canvas
+    private static final int DECODE_PERCENT = 90;
+
+    private ImageImporter() {
+    }
+
+    // An image read onto a canvas
+    public static final class Imported {
+        private final TiledCanvas pixels;
+        private final Rectangle bounds;
+        private final int subsampling;
+
+        Imported(TiledCanvas pixels, Rectangle bounds, int subsampling) {
+            this.pixels = pixels;
+            this.bounds = bounds;
+            this.subsampling = subsampling;
+        }
+
+        // Transparent outside the bounds
+        public TiledCanvas getPixels() {
+            return pixels;
+        }
+
+        public Rectangle getBounds() {
+            return new Rectangle(bounds);
+        }
+
+        // Source pixels per imported pixel, along each axis
+        public int getSubsampling() {
+            return subsampling;
+        }
+    }
+
+    // Reads the image fitted into the area, centered in it, onto a canvas of the given
+    // size. Returns null if cancelled.
+    public static Imported read(File file, Rectangle area, int canvasWidth, int canvasHeight, IntConsumer progress,
+            BooleanSupplier cancelled) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) {
+                throw new IOException("Cannot read " + file.getName());
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException(file.getName() + " is not an image in a supported format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return read(reader, area, canvasWidth, canvasHeight, progress, cancelled);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static Imported read(ImageReader reader, Rectangle area, int canvasWidth, int canvasHeight,
+            IntConsumer progress, BooleanSupplier cancelled) throws IOException {
+        int sourceWidth = reader.getWidth(0);
+        int sourceHeight = reader.getHeight(0);
+        int subsampling = Math.max(1, Math.max(ceilDiv(sourceWidth, Math.max(1, area.width)),
+                ceilDiv(sourceHeight, Math.max(1, area.height))));
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        boolean[] aborted = new boolean[1];
+        reader.addIIOReadProgressListener(new IIOReadProgressListener() {
+            @Override
+            public void imageProgress(ImageReader source, float percentageDone) {
+                if (cancelled.getAsBoolean()) {
+                    source.abort();
+                    return;
+                }
+                progress.accept((int) (percentageDone * DECODE_PERCENT / 100));
+            }
+
+            @Override
+            public void readAborted(ImageReader source) {
+                aborted[0] = true;
+            }
+
+            @Override
+            public void sequenceStarted(ImageReader source, int minIndex) {
+            }
+
+            @Override
+            public void sequenceComplete(ImageReader source) {
+            }
+
+            @Override
+            public void imageStarted(ImageReader source, int imageIndex) {
+            }
+
+            @Override
+            public void imageComplete(ImageReader source) {
+            }
+
+            @Override
+            public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+            }
+
+            @Override
+            public void thumbnailProgress(ImageReader source, float percentageDone) {
+            }
+
+            @Override
+            public void thumbnailComplete(ImageReader source) {
+            }
+        });
+        BufferedImage decoded = reader.read(0, param);
+        if (aborted[0] || cancelled.getAsBoolean()) {
+            return null;
+        }
+
+        // The decoded image is already at its imported size; it is moved to the canvas a
+        // band of rows at a time, in whatever layout the reader gave it
+        int width = Math.min(decoded.getWidth(), canvasWidth);
+        int height = Math.min(decoded.getHeight(), canvasHeight);
+        int x = Math.max(0, Math.min(area.x + (area.width - width) / 2, canvasWidth - width));
+        int y = Math.max(0, Math.min(area.y + (area.height - height) / 2, canvasHeight - height));
+        TiledCanvas pixels = new TiledCanvas(canvasWidth, canvasHeight, 0);
+        int[] band = new int[width * Math.min(BAND_ROWS, height)];
+        for (int row = 0; row < height; row += BAND_ROWS) {
+            if (cancelled.getAsBoolean()) {
+                return null;
+            }
+            int rows = Math.min(BAND_ROWS, height - row);
+            decoded.getRGB(0, row, width, rows, band, 0, width);
+            pixels.setRect(x, y + row, width, rows, band, 0, width);
+            progress.accept(DECODE_PERCENT + (100 - DECODE_PERCENT) * (row + rows) / height);
+        }
+        return new Imported(pixels, new Rectangle(x, y, width, height), subsampling);
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+}
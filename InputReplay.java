@@ -0,0 +1,315 @@
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+// Replays an input trace recorded in the sketchpad (Trace > Record Input...) without a
+// window, as an end-to-end latency regression test:
+//
+//     java -Djava.awt.headless=true -cp target/sketchpad-1.0-SNAPSHOT.jar InputReplay session.sktrace -speed max
+//
+// The inputs go through the same tool code as in the window, and the frames are painted
+// through the same view into an offscreen image the size the panel had. At recorded speed
+// each input is dispatched when it was recorded; at max speed each follows the last as soon
+// as it has been handled. Frames are painted where the window painted them, so the drags
+// they gather are the same.
+//
+// An input's latency runs from its dispatch until the frame showing it has been painted, or
+// until it was handled when it left nothing to paint. Each run reports the latency
+// percentiles, the total time, what the replaying thread allocated and the peak heap use,
+// and checks the drawing against the trace's checksum. The exit status is 1 when a run ends
+// with a different drawing.
+public class InputReplay {
+    private final InputTrace trace;
+    private final boolean recordedSpeed;
+
+    private LayerStack layers;
+    private DrawingTools tools;
+    private CanvasView view;
+    private BufferedImage screen; // stands in for the panel
+    private boolean viewMoved;
+    private int frames;
+    private long checksum; // of the drawing the last run ended with
+
+    private long[] latencies;
+    private int latencyCount;
+    private long[] pending; // dispatch times of the inputs waiting for a frame
+    private int pendingCount;
+
+    public InputReplay(InputTrace trace, boolean recordedSpeed) {
+        this.trace = trace;
+        this.recordedSpeed = recordedSpeed;
+    }
+
+    // Replays the whole trace once into a new drawing and returns the report line
+    public String run() {
+        int width = trace.getWidth();
+        int height = trace.getHeight();
+        TileUndoManager undoManager = new TileUndoManager(width, height,
+                Long.getLong("sketchpad.undo.memoryMB", 256) << 20, Long.getLong("sketchpad.undo.diskMB", 1024) << 20);
+        layers = new LayerStack(width, height, trace.getBackground(), undoManager);
+        view = new CanvasView();
+        view.setLayers(layers);
+        tools = new DrawingTools(() -> {
+        });
+        layers.setDamageListener(r -> {
+            tools.damage(r);
+            view.markDirty(r);
+        });
+        layers.addLayer();
+        tools.setDocument(layers, undoManager, new DocumentJournal(width, height, trace.getBackground()));
+        trace.restoreTools(tools);
+        // Until the trace gives the view, the panel shows the canvas as it is
+        screen = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        viewMoved = true;
+        frames = 0;
+
+        List<InputTrace.Event> events = trace.getEvents();
+        latencies = new long[events.size()];
+        latencyCount = 0;
+        pending = new long[events.size()];
+        pendingCount = 0;
+
+        System.gc();
+        List<MemoryPoolMXBean> heap = heapPools();
+        for (MemoryPoolMXBean pool : heap) {
+            pool.resetPeakUsage();
+        }
+        com.sun.management.ThreadMXBean threads = threads();
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = threads != null ? threads.getThreadAllocatedBytes(thread) : 0;
+        long start = System.nanoTime();
+
+        for (InputTrace.Event event : events) {
+            long dispatched;
+            if (recordedSpeed) {
+                dispatched = start + event.time;
+                for (long wait; (wait = dispatched - System.nanoTime()) > 0;) {
+                    LockSupport.parkNanos(wait);
+                }
+            } else {
+                dispatched = System.nanoTime();
+            }
+            if (event.type == InputTrace.FRAME) {
+                renderFrame();
+                continue;
+            }
+            if (event.type == InputTrace.VIEW) {
+                showView(event);
+                continue;
+            }
+            dispatch(event);
+            if (tools.hasPendingWork()) {
+                pending[pendingCount++] = dispatched;
+            } else {
+                latencies[latencyCount++] = System.nanoTime() - dispatched;
+            }
+        }
+        if (pendingCount > 0) {
+            renderFrame(); // what the window would have painted next
+        }
+
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads != null ? threads.getThreadAllocatedBytes(thread) - allocatedBefore : 0;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : heap) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        checksum = InputTrace.checksum(layers);
+        undoManager.close();
+
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        String result;
+        if (!trace.isComplete()) {
+            result = "none recorded";
+        } else if (checksum == trace.getChecksum()) {
+            result = "matches";
+        } else {
+            result = String.format("DIFFERS from %08x", trace.getChecksum());
+        }
+        return String.format("%.2f s, latency p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms, "
+                + "allocated %.1f MB, peak heap %.1f MB, %d frames, checksum %08x %s", elapsed / 1e9,
+                percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), percentile(sorted, 100),
+                allocated / 1e6, peak / 1e6, frames, checksum, result);
+    }
+
+    // Whether the last run's drawing is the one recorded, or there was nothing to compare
+    public boolean matched() {
+        return !trace.isComplete() || checksum == trace.getChecksum();
+    }
+
+    private void dispatch(InputTrace.Event event) {
+        switch (event.type) {
+            case InputTrace.PRESS:
+                tools.press(event.x, event.y);
+                break;
+            case InputTrace.DRAG:
+                tools.drag(event.x, event.y);
+                break;
+            case InputTrace.RELEASE:
+                tools.release(event.x, event.y);
+                break;
+            case InputTrace.CLICK:
+                tools.click(event.x, event.y);
+                break;
+            case InputTrace.TEXT:
+                tools.text(event.text);
+                break;
+            case InputTrace.TOOL:
+                tools.chooseTool(event.text);
+                break;
+            case InputTrace.ACTION:
+                tools.setAction(event.text);
+                break;
+            case InputTrace.COLOR:
+                tools.setColor(event.color);
+                break;
+            case InputTrace.FILL_COLOR:
+                tools.setFillColor(event.color);
+                break;
+            case InputTrace.ERASER_SIZE:
+                tools.setEraserSize(event.x);
+                break;
+            case InputTrace.THICKNESS:
+                tools.setStrokeThickness(event.x);
+                break;
+            case InputTrace.TOLERANCE:
+                tools.setFillTolerance(event.x);
+                break;
+            case InputTrace.UNDO:
+                tools.undo();
+                break;
+            case InputTrace.REDO:
+                tools.redo();
+                break;
+            case InputTrace.RESET:
+                tools.reset();
+                break;
+            case InputTrace.ADD_LAYER:
+                tools.addLayer();
+                break;
+            case InputTrace.REMOVE_LAYER:
+                tools.removeLayer();
+                break;
+            case InputTrace.TOGGLE_LAYER:
+                tools.toggleLayer();
+                break;
+            case InputTrace.SELECT_LAYER:
+                tools.selectLayer(layers.getLayer(event.x));
+                break;
+        }
+    }
+
+    private void showView(InputTrace.Event event) {
+        if (screen.getWidth() != event.x || screen.getHeight() != event.y) {
+            screen = new BufferedImage(event.x, event.y, BufferedImage.TYPE_INT_RGB);
+        }
+        Viewport viewport = view.getViewport();
+        viewport.resize(event.x, event.y, layers.getWidth(), layers.getHeight());
+        viewport.show(event.zoom, event.originX, event.originY);
+        view.invalidate();
+        viewMoved = true;
+    }
+
+    // As the window's frame: applies the queued drags and paints what changed
+    private void renderFrame() {
+        tools.applyQueuedDrags();
+        Rectangle damage = tools.takeDamage();
+        Rectangle region;
+        if (viewMoved) {
+            region = new Rectangle(0, 0, screen.getWidth(), screen.getHeight());
+            viewMoved = false;
+        } else if (damage != null) {
+            region = view.getViewport().toPanel(damage);
+        } else {
+            region = null;
+        }
+        if (region != null) {
+            Graphics2D g = screen.createGraphics();
+            g.clip(region);
+            view.paint(g, screen.getWidth(), screen.getHeight(), null);
+            g.dispose();
+        }
+        frames++;
+        long painted = System.nanoTime();
+        for (int i = 0; i < pendingCount; i++) {
+            latencies[latencyCount++] = painted - pending[i];
+        }
+        pendingCount = 0;
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile / 100 * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+
+    private static com.sun.management.ThreadMXBean threads() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        return bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+                ? (com.sun.management.ThreadMXBean) bean
+                : null;
+    }
+
+    public static void main(String[] args) throws IOException {
+        TiledCanvas.configureRenderer();
+        File file = null;
+        boolean recordedSpeed = true;
+        int runs = 1;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-speed") && i + 1 < args.length
+                    && (args[i + 1].equals("recorded") || args[i + 1].equals("max"))) {
+                recordedSpeed = args[++i].equals("recorded");
+            } else if (args[i].equals("-runs") && i + 1 < args.length) {
+                runs = Integer.parseInt(args[++i]);
+            } else if (file == null && !args[i].startsWith("-")) {
+                file = new File(args[i]);
+            } else {
+                file = null;
+                break;
+            }
+        }
+        if (file == null) {
+            System.err.println("Usage: java InputReplay trace." + InputTrace.EXTENSION
+                    + " [-speed recorded|max] [-runs 1]");
+            System.exit(2);
+        }
+
+        InputTrace trace = InputTrace.read(file);
+        List<InputTrace.Event> events = trace.getEvents();
+        long recorded = events.isEmpty() ? 0 : events.get(events.size() - 1).time;
+        System.out.printf("%s: %d records over %.1f s on a %dx%d canvas%s%n", file.getName(), events.size(),
+                recorded / 1e9, trace.getWidth(), trace.getHeight(),
+                trace.isComplete() ? "" : " (cut short, no checksum)");
+        // Later runs show the code compiled; the first includes warming up
+        InputReplay replay = new InputReplay(trace, recordedSpeed);
+        boolean matched = true;
+        for (int run = 1; run <= runs; run++) {
+            System.out.printf("run %d at %s speed: %s%n", run, recordedSpeed ? "recorded" : "max", replay.run());
+            matched &= replay.matched();
+        }
+        System.exit(matched ? 0 : 1);
+    }
+}
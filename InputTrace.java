@@ -0,0 +1,371 @@
+import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// A recorded drawing session, for InputReplay to play back. The file starts with a header
+// giving the canvas size and background and the tools' settings, followed by records of the
+// form [byte type][long nanoseconds since the recording started][payload]. There is one
+// record for each input the tools took, in canvas coordinates, with what was typed or
+// chosen in dialogs included, and one for each frame the window painted, preceded by the
+// view it was painted at whenever that changed. The last record holds a checksum of the
+// drawing when the recording was stopped; a trace cut short has none.
+//
+// A recording always starts from a new drawing with one layer, so replaying needs nothing
+// but the trace.
+public class InputTrace {
+    public static final String EXTENSION = "sktrace";
+
+    private static final int MAGIC = 0x534B5452; // "SKTR"
+    private static final int VERSION = 1;
+
+    public static final byte PRESS = 1;
+    public static final byte DRAG = 2;
+    public static final byte RELEASE = 3;
+    public static final byte CLICK = 4;
+    public static final byte TEXT = 5;
+    public static final byte TOOL = 6;
+    public static final byte ACTION = 7;
+    public static final byte COLOR = 8;
+    public static final byte FILL_COLOR = 9;
+    public static final byte ERASER_SIZE = 10;
+    public static final byte THICKNESS = 11;
+    public static final byte TOLERANCE = 12;
+    public static final byte UNDO = 13;
+    public static final byte REDO = 14;
+    public static final byte RESET = 15;
+    public static final byte ADD_LAYER = 16;
+    public static final byte REMOVE_LAYER = 17;
+    public static final byte TOGGLE_LAYER = 18;
+    public static final byte SELECT_LAYER = 19;
+    public static final byte VIEW = 20;
+    public static final byte FRAME = 21;
+    public static final byte END = 22;
+
+    private int width;
+    private int height;
+    private int background;
+    private String action;
+    private Color color;
+    private Color fillColor;
+    private int eraserSize;
+    private int strokeThickness;
+    private int fillTolerance;
+    private final List<Event> events = new ArrayList<>();
+    private boolean complete;
+    private long checksum;
+
+    // One record. Points and view sizes are in x and y, other numbers in x.
+    public static class Event {
+        public byte type;
+        public long time;
+        public int x;
+        public int y;
+        public String text;
+        public Color color;
+        public double zoom;
+        public double originX;
+        public double originY;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBackground() {
+        return background;
+    }
+
+    public List<Event> getEvents() {
+        return events;
+    }
+
+    // Whether the recording was stopped, and so has a checksum
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public long getChecksum() {
+        return checksum;
+    }
+
+    // Gives the tools the settings they had when the recording started
+    public void restoreTools(DrawingTools tools) {
+        tools.setAction(action);
+        tools.setColor(color);
+        tools.setFillColor(fillColor);
+        tools.setEraserSize(eraserSize);
+        tools.setStrokeThickness(strokeThickness);
+        tools.setFillTolerance(fillTolerance);
+    }
+
+    public static InputTrace read(File file) throws IOException {
+        InputTrace trace = new InputTrace();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file.getName() + " is not an input trace");
+            }
+            if (in.readInt() != VERSION) {
+                throw new IOException(file.getName() + " was written by an unsupported version");
+            }
+            trace.width = in.readInt();
+            trace.height = in.readInt();
+            trace.background = in.readInt();
+            trace.action = in.readUTF();
+            trace.color = readColor(in);
+            trace.fillColor = readColor(in);
+            trace.eraserSize = in.readInt();
+            trace.strokeThickness = in.readInt();
+            trace.fillTolerance = in.readInt();
+            while (true) {
+                Event event = new Event();
+                try {
+                    event.type = in.readByte();
+                } catch (EOFException e) {
+                    break; // the recording was not stopped
+                }
+                event.time = in.readLong();
+                switch (event.type) {
+                    case PRESS:
+                    case DRAG:
+                    case RELEASE:
+                    case CLICK:
+                        event.x = in.readInt();
+                        event.y = in.readInt();
+                        break;
+                    case TEXT:
+                    case TOOL:
+                    case ACTION:
+                        event.text = in.readUTF();
+                        break;
+                    case COLOR:
+                    case FILL_COLOR:
+                        event.color = readColor(in);
+                        break;
+                    case ERASER_SIZE:
+                    case THICKNESS:
+                    case TOLERANCE:
+                    case SELECT_LAYER:
+                        event.x = in.readInt();
+                        break;
+                    case VIEW:
+                        event.x = in.readInt();
+                        event.y = in.readInt();
+                        event.zoom = in.readDouble();
+                        event.originX = in.readDouble();
+                        event.originY = in.readDouble();
+                        break;
+                    case END:
+                        trace.checksum = in.readLong();
+                        trace.complete = true;
+                        return trace;
+                    case UNDO:
+                    case REDO:
+                    case RESET:
+                    case ADD_LAYER:
+                    case REMOVE_LAYER:
+                    case TOGGLE_LAYER:
+                    case FRAME:
+                        break;
+                    default:
+                        throw new IOException("Unknown record type " + event.type + " in " + file.getName());
+                }
+                trace.events.add(event);
+            }
+        } catch (EOFException e) {
+            // A record cut short ends the trace
+        }
+        return trace;
+    }
+
+    private static Color readColor(DataInputStream in) throws IOException {
+        boolean present = in.readBoolean();
+        int argb = in.readInt();
+        return present ? new Color(argb, true) : null;
+    }
+
+    // CRC-32 of the drawing as flattened for export
+    public static long checksum(LayerStack layers) {
+        TiledCanvas flat = layers.flatten();
+        int width = flat.getWidth();
+        int[] row = new int[width];
+        ByteBuffer bytes = ByteBuffer.allocate(4 * width);
+        CRC32 crc = new CRC32();
+        for (int y = 0; y < flat.getHeight(); y++) {
+            flat.getRect(0, y, width, 1, row, 0, width);
+            bytes.clear();
+            bytes.asIntBuffer().put(row);
+            crc.update(bytes);
+        }
+        return crc.getValue();
+    }
+
+    // Writes a trace as it is recorded. A write that fails ends the recording; finish()
+    // then reports the failure.
+    public static class Recorder {
+        private final File file;
+        private final DataOutputStream out;
+        private final long startNanos;
+        private IOException failure;
+        private int viewWidth;
+        private int viewHeight;
+        private double viewZoom;
+        private double viewOriginX;
+        private double viewOriginY;
+
+        // Starts a trace of a new drawing of the given size, drawn with the tools as they are
+        public Recorder(File file, int width, int height, int background, DrawingTools tools) throws IOException {
+            this.file = file;
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(width);
+                out.writeInt(height);
+                out.writeInt(background);
+                out.writeUTF(tools.getAction());
+                writeColor(tools.getColor());
+                writeColor(tools.getFillColor());
+                out.writeInt(tools.getEraserSize());
+                out.writeInt(tools.getStrokeThickness());
+                out.writeInt(tools.getFillTolerance());
+            } catch (IOException e) {
+                out.close();
+                throw e;
+            }
+            this.startNanos = System.nanoTime();
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public void point(byte type, int x, int y) {
+            if (begin(type)) {
+                try {
+                    out.writeInt(x);
+                    out.writeInt(y);
+                } catch (IOException e) {
+                    failed(e);
+                }
+            }
+        }
+
+        public void text(byte type, String text) {
+            if (begin(type)) {
+                try {
+                    out.writeUTF(text);
+                } catch (IOException e) {
+                    failed(e);
+                }
+            }
+        }
+
+        public void color(byte type, Color color) {
+            if (begin(type)) {
+                try {
+                    writeColor(color);
+                } catch (IOException e) {
+                    failed(e);
+                }
+            }
+        }
+
+        public void value(byte type, int value) {
+            if (begin(type)) {
+                try {
+                    out.writeInt(value);
+                } catch (IOException e) {
+                    failed(e);
+                }
+            }
+        }
+
+        public void command(byte type) {
+            begin(type);
+        }
+
+        // Notes a painted frame, and before it the view if it changed since the last one
+        public void frame(int panelWidth, int panelHeight, Viewport viewport) {
+            if (panelWidth != viewWidth || panelHeight != viewHeight || viewport.getZoom() != viewZoom
+                    || viewport.getOriginX() != viewOriginX || viewport.getOriginY() != viewOriginY) {
+                viewWidth = panelWidth;
+                viewHeight = panelHeight;
+                viewZoom = viewport.getZoom();
+                viewOriginX = viewport.getOriginX();
+                viewOriginY = viewport.getOriginY();
+                if (begin(VIEW)) {
+                    try {
+                        out.writeInt(viewWidth);
+                        out.writeInt(viewHeight);
+                        out.writeDouble(viewZoom);
+                        out.writeDouble(viewOriginX);
+                        out.writeDouble(viewOriginY);
+                    } catch (IOException e) {
+                        failed(e);
+                    }
+                }
+            }
+            begin(FRAME);
+        }
+
+        // Ends the trace with the checksum of the drawing as it now is
+        public void finish(long checksum) throws IOException {
+            if (begin(END)) {
+                try {
+                    out.writeLong(checksum);
+                } catch (IOException e) {
+                    failed(e);
+                }
+            }
+            try {
+                out.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private boolean begin(byte type) {
+            if (failure != null) {
+                return false;
+            }
+            try {
+                out.writeByte(type);
+                out.writeLong(System.nanoTime() - startNanos);
+                return true;
+            } catch (IOException e) {
+                failed(e);
+                return false;
+            }
+        }
+
+        private void failed(IOException e) {
+            e.printStackTrace();
+            failure = e;
+        }
+
+        private void writeColor(Color color) throws IOException {
+            out.writeBoolean(color != null);
+            out.writeInt(color == null ? 0 : color.getRGB());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+import java.awt.Rectangle;
+
+// One drawing layer: a transparent canvas with its own shape model, and the engine that
+// draws into both. The layer collects the area changed on it until the layer stack takes
+// it to bring its composites up to date.
+public class Layer {
+    private final int id; // stable for the life of the document, used by the journal
+    private String name;
+    private final DrawingEngine engine;
+    private boolean visible = true;
+    private Rectangle dirty;
+
+    Layer(int id, String name, DrawingEngine engine) {
+        this.id = id;
+        this.name = name;
+        this.engine = engine;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public DrawingEngine getEngine() {
+        return engine;
+    }
+
+    public TiledCanvas getCanvas() {
+        return engine.getCanvas();
+    }
+
+    public DisplayList getDisplayList() {
+        return engine.getDisplayList();
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    void setVisible(boolean visible) {
+        this.visible = visible;
+    }
+
+    void markDirty(Rectangle region) {
+        if (dirty == null) {
+            dirty = new Rectangle(region);
+        } else {
+            dirty.add(region);
+        }
+    }
+
+    // The area changed since the last call, or null
+    Rectangle takeDirty() {
+        Rectangle region = dirty;
+        dirty = null;
+        return region;
+    }
+}
@@ -0,0 +1,497 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+// The layers of a drawing, bottom to top over a solid background, and an overlay above
+// them for the preview of the shape being drawn and of text being typed. Tools draw into
+// the active layer through its engine.
+//
+// For display the layers are reduced to three images: a cached composite of the
+// background and the visible layers below the active one, the active layer itself, and a
+// cached composite of the visible layers above it. Drawing on the active layer therefore
+// blends one layer over one cached image however many layers there are. Each layer keeps
+// the area changed on it, and a cache is only recomposed, tile by tile, where a layer it
+// holds has changed.
+//
+// As the journal handler, the stack applies replayed operations to the active layer and
+// replayed layer records to itself.
+public class LayerStack implements DocumentJournal.Handler {
+    private static final int SHIFT = TiledCanvas.TILE_SHIFT;
+    private static final PixelKernels KERNELS = PixelKernels.get();
+
+    private final int width;
+    private final int height;
+    private final int background;
+    private TileUndoManager undoManager; // null when nothing is undoable
+    private final ArrayList<Layer> layers = new ArrayList<>();
+    private Layer active;
+    private int nextId;
+
+    private final TiledCanvas below; // background and the visible layers under the active one
+    private final TiledCanvas above; // visible layers over the active one
+    private Rectangle belowDirty;
+    private Rectangle aboveDirty;
+    private Consumer<Rectangle> damageListener = region -> {
+    };
+
+    private Shape previewShape;
+    private Color previewColor;
+    private Stroke previewStroke;
+    private Color previewFill;
+    private TextLabel previewText;
+    private Color previewTextColor;
+
+    // An empty stack; add at least one layer before drawing
+    public LayerStack(int width, int height, int background, TileUndoManager undoManager) {
+        this.width = width;
+        this.height = height;
+        this.background = background;
+        this.undoManager = undoManager;
+        this.below = new TiledCanvas(width, height, background);
+        this.above = new TiledCanvas(width, height, 0);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBackground() {
+        return background;
+    }
+
+    // Makes the layers undoable from now on, or not with null
+    public void setUndoManager(TileUndoManager undoManager) {
+        this.undoManager = undoManager;
+        for (Layer layer : layers) {
+            layer.getEngine().setUndoManager(undoManager);
+        }
+        if (undoManager != null && active != null) {
+            undoManager.setTarget(active.getCanvas());
+        }
+    }
+
+    // Receives every changed canvas region, whatever layer it is on
+    public void setDamageListener(Consumer<Rectangle> damageListener) {
+        this.damageListener = damageListener;
+    }
+
+    // Bottom to top
+    public List<Layer> getLayers() {
+        return Collections.unmodifiableList(layers);
+    }
+
+    public Layer getActive() {
+        return active;
+    }
+
+    public DrawingEngine getActiveEngine() {
+        return active.getEngine();
+    }
+
+    public Layer getLayer(int id) {
+        for (Layer layer : layers) {
+            if (layer.getId() == id) {
+                return layer;
+            }
+        }
+        return null;
+    }
+
+    // Adds an empty layer just above the active one and makes it active
+    public Layer addLayer(String name) {
+        return insertLayer(nextId, name);
+    }
+
+    // Adds a layer named after its number
+    public Layer addLayer() {
+        return addLayer("Layer " + (nextId + 1));
+    }
+
+    // Adds an empty layer just above another one, or at the top when that is null. The
+    // active layer stays as it is, unless there was none.
+    public Layer addLayer(String name, Layer under) {
+        Layer layer = insertLayer(nextId, name, under);
+        if (active == null) {
+            setActive(layer);
+        }
+        return layer;
+    }
+
+    private Layer insertLayer(int id, String name) {
+        Layer layer = insertLayer(id, name, active);
+        setActive(layer);
+        return layer;
+    }
+
+    // An empty layer is transparent, so neither composite changes
+    private Layer insertLayer(int id, String name, Layer under) {
+        DrawingEngine engine = new DrawingEngine(new TiledCanvas(width, height, 0), undoManager);
+        Layer layer = new Layer(id, name, engine);
+        engine.setDamageListener(region -> changed(layer, region));
+        layers.add(under == null ? layers.size() : layers.indexOf(under) + 1, layer);
+        nextId = Math.max(nextId, id + 1);
+        return layer;
+    }
+
+    // Removes a layer, unless it is the only one. The layer below it becomes active if it
+    // was. Undo entries cannot be restored onto a layer that is gone, so the history is
+    // dropped.
+    public void removeLayer(Layer layer) {
+        int index = layers.indexOf(layer);
+        if (index < 0 || layers.size() == 1) {
+            return;
+        }
+        layers.remove(index);
+        if (undoManager != null) {
+            undoManager.clear();
+        }
+        if (layer == active) {
+            setActive(layers.get(Math.max(0, index - 1)));
+        } else {
+            invalidateComposites();
+        }
+        damageListener.accept(new Rectangle(0, 0, width, height));
+    }
+
+    public void setActive(Layer layer) {
+        if (layer == active) {
+            return;
+        }
+        active = layer;
+        if (undoManager != null) {
+            undoManager.setTarget(layer.getCanvas());
+        }
+        // Layers move between the caches, so both are rebuilt. What they show together is
+        // the same, so nothing drawn from them is damaged.
+        invalidateComposites();
+    }
+
+    public void setVisible(Layer layer, boolean visible) {
+        if (layer.isVisible() != visible) {
+            layer.setVisible(visible);
+            changed(layer, new Rectangle(0, 0, width, height));
+        }
+    }
+
+    // Clears every layer and empties their shape models
+    public void clear() {
+        for (Layer layer : layers) {
+            layer.getEngine().clear();
+        }
+    }
+
+    // Tile memory of the layers and of both composites
+    public long getAllocatedBytes() {
+        long bytes = below.getAllocatedBytes() + above.getAllocatedBytes();
+        for (Layer layer : layers) {
+            bytes += layer.getCanvas().getAllocatedBytes();
+        }
+        return bytes;
+    }
+
+    // Accounts for pixels of a canvas changed outside the engines, by undo or redo.
+    // Returns the layer the canvas belongs to, or null.
+    public Layer restored(TiledCanvas canvas, Rectangle region) {
+        for (Layer layer : layers) {
+            if (layer.getCanvas() == canvas) {
+                if (!region.isEmpty()) {
+                    changed(layer, region);
+                }
+                return layer;
+            }
+        }
+        return null;
+    }
+
+    private void changed(Layer layer, Rectangle region) {
+        layer.markDirty(region);
+        damageListener.accept(region);
+    }
+
+    private void invalidateComposites() {
+        Rectangle all = new Rectangle(0, 0, width, height);
+        belowDirty = new Rectangle(all);
+        aboveDirty = new Rectangle(all);
+    }
+
+    // Draws the composited layers intersecting a canvas region through g, which carries
+    // the canvas-to-device transform and a clip
+    public void drawTo(Graphics2D g, Rectangle region) {
+        refreshComposites();
+        below.drawTo(g, region);
+        if (active.isVisible()) {
+            active.getCanvas().drawTo(g, region);
+        }
+        above.drawTo(g, region);
+    }
+
+    // Takes every layer's changes into the cache holding it. Changes to the active layer
+    // need nothing, as it is drawn as it is.
+    private void refreshComposites() {
+        int activeIndex = layers.indexOf(active);
+        for (int i = 0; i < layers.size(); i++) {
+            Rectangle dirty = layers.get(i).takeDirty();
+            if (dirty == null || i == activeIndex) {
+                continue;
+            }
+            if (i < activeIndex) {
+                belowDirty = union(belowDirty, dirty);
+            } else {
+                aboveDirty = union(aboveDirty, dirty);
+            }
+        }
+        if (belowDirty != null) {
+            compose(below, visibleCanvases(0, activeIndex), belowDirty);
+            belowDirty = null;
+        }
+        if (aboveDirty != null) {
+            compose(above, visibleCanvases(activeIndex + 1, layers.size()), aboveDirty);
+            aboveDirty = null;
+        }
+    }
+
+    private TiledCanvas[] visibleCanvases(int from, int to) {
+        TiledCanvas[] canvases = new TiledCanvas[to - from];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (layers.get(i).isVisible()) {
+                canvases[count++] = layers.get(i).getCanvas();
+            }
+        }
+        return Arrays.copyOf(canvases, count);
+    }
+
+    // Read-only copies of the visible layers, bottom to top, for flattening on another thread
+    public TiledCanvas[] snapshotVisible() {
+        TiledCanvas[] canvases = visibleCanvases(0, layers.size());
+        for (int i = 0; i < canvases.length; i++) {
+            canvases[i] = canvases[i].snapshot();
+        }
+        return canvases;
+    }
+
+    // The visible layers over the background as one canvas, for export
+    public TiledCanvas flatten() {
+        return flatten(visibleCanvases(0, layers.size()), width, height, background);
+    }
+
+    public static TiledCanvas flatten(TiledCanvas[] layers, int width, int height, int background) {
+        TiledCanvas flat = new TiledCanvas(width, height, background);
+        compose(flat, layers, new Rectangle(0, 0, width, height));
+        return flat;
+    }
+
+    // Recomposes the tiles of target covering a region from the given layers over the
+    // target's background. Tiles no layer has drawn on are left blank.
+    private static void compose(TiledCanvas target, TiledCanvas[] layers, Rectangle region) {
+        Rectangle r = region.intersection(new Rectangle(0, 0, target.getWidth(), target.getHeight()));
+        if (r.isEmpty()) {
+            return;
+        }
+        for (int ty = r.y >> SHIFT; ty <= (r.y + r.height - 1) >> SHIFT; ty++) {
+            for (int tx = r.x >> SHIFT; tx <= (r.x + r.width - 1) >> SHIFT; tx++) {
+                int[] out = null;
+                for (TiledCanvas layer : layers) {
+                    int[] tile = layer.tile(tx, ty);
+                    if (tile == null) {
+                        continue;
+                    }
+                    if (out == null) {
+                        out = target.writableTile(tx, ty);
+                        KERNELS.fill(out, 0, out.length, target.getBackground());
+                    }
+                    KERNELS.blendOver(tile, 0, out, 0, tile.length);
+                }
+                if (out == null) {
+                    target.clearTile(tx, ty);
+                }
+            }
+        }
+    }
+
+    private static Rectangle union(Rectangle r, Rectangle region) {
+        if (r == null) {
+            return new Rectangle(region);
+        }
+        r.add(region);
+        return r;
+    }
+
+    // Shows a shape above the layers, in canvas coordinates, until cleared. The caller
+    // repaints the area it covers.
+    public void setPreview(Shape shape, Color color, Stroke stroke, Color fill) {
+        previewShape = shape;
+        previewColor = color;
+        previewStroke = stroke;
+        previewFill = fill;
+    }
+
+    public void clearPreview() {
+        previewShape = null;
+    }
+
+    public Shape getPreview() {
+        return previewShape;
+    }
+
+    // Shows text being typed above the layers, with a caret after it, until cleared. The
+    // caller repaints the area it covers.
+    public void setPreviewText(TextLabel label, Color color) {
+        previewText = label;
+        previewTextColor = color;
+    }
+
+    public void clearPreviewText() {
+        previewText = null;
+    }
+
+    // Whether there is anything to paint over the layers
+    public boolean hasPreview() {
+        return previewShape != null || previewText != null;
+    }
+
+    // Paints the overlay through g, which carries the canvas-to-device transform
+    public void paintPreview(Graphics2D g) {
+        if (previewText != null) {
+            g.setColor(previewTextColor);
+            previewText.paint(g);
+            g.fill(previewText.getCaret());
+        }
+        if (previewShape == null) {
+            return;
+        }
+        g.setColor(previewColor);
+        g.setStroke(previewStroke);
+        g.draw(previewShape);
+        if (previewFill != null && previewFill.getAlpha() > 0) {
+            g.setColor(previewFill);
+            g.fill(previewShape);
+        }
+    }
+
+    @Override
+    public void stroke(int argb, float width, float[] points, int count, boolean render) {
+        FreehandStroke stroke = new FreehandStroke(points, count);
+        if (render) {
+            getActiveEngine().drawStroke(stroke, new Color(argb, true), width);
+        } else {
+            active.getDisplayList().addStroke(stroke, new Color(argb, true), width);
+        }
+    }
+
+    @Override
+    public void erase(int size, int[] points, int count) {
+        for (int i = 0; i < count; i++) {
+            getActiveEngine().erase(points[2 * i], points[2 * i + 1], size);
+        }
+    }
+
+    @Override
+    public void shape(Shape shape, int strokeArgb, float width, int fillArgb, boolean render) {
+        Color stroke = new Color(strokeArgb, true);
+        Color fill = new Color(fillArgb, true);
+        if (render) {
+            getActiveEngine().drawShape(shape, stroke, width, fill);
+        } else {
+            active.getDisplayList().add(shape, stroke, width, fill);
+        }
+    }
+
+    @Override
+    public void fillShape(int id, int fillArgb, boolean render) {
+        DisplayList.Item item = active.getDisplayList().get(id);
+        if (render) {
+            getActiveEngine().fillShape(item, new Color(fillArgb, true));
+        } else {
+            item.setFill(new Color(fillArgb, true));
+        }
+    }
+
+    @Override
+    public void bucketFill(int x, int y, int tolerance, int argb) {
+        getActiveEngine().bucketFill(x, y, tolerance, new Color(argb, true));
+    }
+
+    @Override
+    public void text(TextLabel label, int argb, boolean render) {
+        Color color = new Color(argb, true);
+        if (render) {
+            getActiveEngine().drawText(label, color);
+        } else {
+            active.getDisplayList().addText(label, color);
+        }
+    }
+
+    @Override
+    public void clear(boolean render) {
+        if (render) {
+            clear();
+        } else {
+            for (Layer layer : layers) {
+                layer.getDisplayList().clear();
+            }
+        }
+    }
+
+    @Override
+    public void addLayer(int id, String name) {
+        insertLayer(id, name);
+    }
+
+    @Override
+    public void trimModel(int id, int size) {
+        Layer layer = getLayer(id);
+        if (layer != null) {
+            layer.getDisplayList().truncate(size);
+        }
+    }
+
+    @Override
+    public void removeLayer(int id) {
+        Layer layer = getLayer(id);
+        if (layer != null) {
+            removeLayer(layer);
+        }
+    }
+
+    @Override
+    public void selectLayer(int id) {
+        Layer layer = getLayer(id);
+        if (layer != null) {
+            setActive(layer);
+        }
+    }
+
+    @Override
+    public void showLayer(int id, boolean visible) {
+        Layer layer = getLayer(id);
+        if (layer != null) {
+            setVisible(layer, visible);
+        }
+    }
+
+    @Override
+    public boolean hasLayer(int id) {
+        return getLayer(id) != null;
+    }
+
+    @Override
+    public void patch(int layerId, int x, int y, int w, int h, int[] pixels) {
+        Layer layer = getLayer(layerId);
+        if (layer != null) {
+            layer.getCanvas().setRect(x, y, w, h, pixels, 0, w);
+            changed(layer, new Rectangle(x, y, w, h));
+        }
+    }
+}
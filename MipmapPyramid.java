@@ -0,0 +1,195 @@
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+// Halved copies of the composited layers, for drawing zoomed-out views without touching
+// every canvas pixel. Level k is 1/2^k of the canvas size, each pixel averaging a 2x2
+// block of the level below with colors weighted by alpha; level 1 is reduced from the
+// layers as the view shows them. Levels stop once they fit in a single tile.
+//
+// Levels are tiled canvases too. Edits only mark the tiles they cover stale on every
+// level; a stale tile is recomputed, from the tiles under it, when a view draws it. Tiles
+// with nothing under them stay blank without being computed, so a large, mostly empty
+// canvas costs little at any level.
+public class MipmapPyramid {
+    private static final int SHIFT = TiledCanvas.TILE_SHIFT;
+    private static final int SIZE = TiledCanvas.TILE_SIZE;
+    private static final int STRIDE = 2 * SIZE; // a level tile covers 2x2 tiles of the level below
+
+    private final LayerStack layers;
+    private final TiledCanvas[] levels; // levels[0] is unused; the layers are level 0
+    private final boolean[][] stale;
+    private final BufferedImage scratch = new BufferedImage(STRIDE, STRIDE, BufferedImage.TYPE_INT_ARGB);
+    private final int[] source = ((DataBufferInt) scratch.getRaster().getDataBuffer()).getData();
+    private final int[] reduced = new int[SIZE * SIZE];
+
+    public MipmapPyramid(LayerStack layers) {
+        this.layers = layers;
+        int count = 1;
+        while (Math.max(layers.getWidth(), layers.getHeight()) >> count > SIZE) {
+            count++;
+        }
+        levels = new TiledCanvas[count + 1];
+        stale = new boolean[count + 1][];
+        for (int k = 1; k <= count; k++) {
+            int w = (layers.getWidth() + (1 << k) - 1) >> k;
+            int h = (layers.getHeight() + (1 << k) - 1) >> k;
+            levels[k] = new TiledCanvas(w, h, layers.getBackground());
+            stale[k] = new boolean[levels[k].getColumns() * levels[k].getRows()];
+        }
+        markDirty(new Rectangle(0, 0, layers.getWidth(), layers.getHeight()));
+    }
+
+    public int getLevelCount() {
+        return levels.length - 1;
+    }
+
+    // Coarsest level that still has at least one pixel per view pixel at the zoom (view
+    // pixels per canvas pixel), or 0 for the layers themselves
+    public int levelFor(double zoom) {
+        int level = 0;
+        while (level < getLevelCount() && (2 << level) * zoom <= 1) {
+            level++;
+        }
+        return level;
+    }
+
+    // Marks a changed canvas region stale on every level
+    public void markDirty(Rectangle region) {
+        Rectangle r = region.intersection(new Rectangle(0, 0, layers.getWidth(), layers.getHeight()));
+        if (r.isEmpty()) {
+            return;
+        }
+        for (int k = 1; k < levels.length; k++) {
+            int columns = levels[k].getColumns();
+            for (int ty = (r.y >> k) >> SHIFT; ty <= ((r.y + r.height - 1) >> k) >> SHIFT; ty++) {
+                for (int tx = (r.x >> k) >> SHIFT; tx <= ((r.x + r.width - 1) >> k) >> SHIFT; tx++) {
+                    stale[k][ty * columns + tx] = true;
+                }
+            }
+        }
+    }
+
+    // Draws a canvas region from a level, bringing the level's tiles under it up to date.
+    // The graphics are in canvas coordinates.
+    public void drawTo(Graphics2D g, int level, Rectangle region) {
+        TiledCanvas canvas = levels[level];
+        Rectangle r = region.intersection(new Rectangle(0, 0, layers.getWidth(), layers.getHeight()));
+        if (r.isEmpty()) {
+            return;
+        }
+        Rectangle scaled = new Rectangle(r.x >> level, r.y >> level, ((r.x + r.width - 1) >> level) - (r.x >> level) + 1,
+                ((r.y + r.height - 1) >> level) - (r.y >> level) + 1);
+        for (int ty = scaled.y >> SHIFT; ty <= (scaled.y + scaled.height - 1) >> SHIFT; ty++) {
+            for (int tx = scaled.x >> SHIFT; tx <= (scaled.x + scaled.width - 1) >> SHIFT; tx++) {
+                refresh(level, tx, ty);
+            }
+        }
+        Graphics2D g2 = (Graphics2D) g.create();
+        g2.scale(1 << level, 1 << level);
+        canvas.drawTo(g2, scaled);
+        g2.dispose();
+    }
+
+    // Recomputes a stale tile, after the stale tiles under it
+    private void refresh(int level, int tx, int ty) {
+        TiledCanvas canvas = levels[level];
+        int index = ty * canvas.getColumns() + tx;
+        if (!stale[level][index]) {
+            return;
+        }
+        stale[level][index] = false;
+        // The part of the level below this tile covers
+        int belowWidth = level == 1 ? layers.getWidth() : levels[level - 1].getWidth();
+        int belowHeight = level == 1 ? layers.getHeight() : levels[level - 1].getHeight();
+        int x = tx * STRIDE;
+        int y = ty * STRIDE;
+        int w = Math.min(STRIDE, belowWidth - x);
+        int h = Math.min(STRIDE, belowHeight - y);
+        if (level > 1) {
+            for (int j = 0; j < 2; j++) {
+                for (int i = 0; i < 2; i++) {
+                    if ((2 * tx + i) * SIZE < belowWidth && (2 * ty + j) * SIZE < belowHeight) {
+                        refresh(level - 1, 2 * tx + i, 2 * ty + j);
+                    }
+                }
+            }
+        }
+        if (isBlankBelow(level, 2 * tx, 2 * ty)) {
+            canvas.clearTile(tx, ty);
+            return;
+        }
+        if (level == 1) {
+            Graphics2D g = scratch.createGraphics();
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(0, 0, STRIDE, STRIDE);
+            g.setComposite(AlphaComposite.SrcOver);
+            g.translate(-x, -y);
+            layers.drawTo(g, new Rectangle(x, y, w, h));
+            g.dispose();
+        } else {
+            levels[level - 1].getRect(x, y, w, h, source, 0, STRIDE);
+        }
+        int rw = (w + 1) / 2;
+        int rh = (h + 1) / 2;
+        reduce(source, w, h, reduced, rw, rh);
+        canvas.setRect(tx * SIZE, ty * SIZE, rw, rh, reduced, 0, rw);
+    }
+
+    // Whether the 2x2 tiles of the level below starting at tile (tx, ty) are all blank
+    private boolean isBlankBelow(int level, int tx, int ty) {
+        for (int j = 0; j < 2; j++) {
+            for (int i = 0; i < 2; i++) {
+                if (level == 1) {
+                    if ((tx + i) * SIZE >= layers.getWidth() || (ty + j) * SIZE >= layers.getHeight()) {
+                        continue;
+                    }
+                    for (Layer layer : layers.getLayers()) {
+                        if (layer.isVisible() && layer.getCanvas().tile(tx + i, ty + j) != null) {
+                            return false;
+                        }
+                    }
+                } else {
+                    TiledCanvas below = levels[level - 1];
+                    if (tx + i < below.getColumns() && ty + j < below.getRows() && below.tile(tx + i, ty + j) != null) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    // Averages each 2x2 block of the w x h source, rows STRIDE apart, into one pixel,
+    // weighting colors by alpha. Blocks on an odd edge average the pixels they have.
+    private static void reduce(int[] src, int w, int h, int[] dst, int dw, int dh) {
+        for (int y = 0; y < dh; y++) {
+            int y0 = 2 * y;
+            int y1 = Math.min(y0 + 2, h);
+            for (int x = 0; x < dw; x++) {
+                int x0 = 2 * x;
+                int x1 = Math.min(x0 + 2, w);
+                int a = 0;
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                int n = 0;
+                for (int sy = y0; sy < y1; sy++) {
+                    for (int sx = x0; sx < x1; sx++) {
+                        int p = src[sy * STRIDE + sx];
+                        int alpha = p >>> 24;
+                        a += alpha;
+                        r += ((p >> 16) & 0xFF) * alpha;
+                        g += ((p >> 8) & 0xFF) * alpha;
+                        b += (p & 0xFF) * alpha;
+                        n++;
+                    }
+                }
+                dst[y * dw + x] = a == 0 ? 0
+                        : (a + n / 2) / n << 24 | (r + a / 2) / a << 16 | (g + a / 2) / a << 8 | (b + a / 2) / a;
+            }
+        }
+    }
+}
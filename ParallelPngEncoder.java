@@ -0,0 +1,337 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// PNG writer that compresses bands of rows on all cores and stitches them into one valid
+// stream, the way pigz does for gzip. Each band is filtered and raw-deflated on its own,
+// primed with the last 32 KB of the previous band as a dictionary and ended with a sync
+// flush, so the concatenated bands form a single zlib stream. The Adler-32 checksums of
+// the bands are combined arithmetically. Only a bounded window of bands is in flight, so
+// memory does not grow with the image height.
+public class ParallelPngEncoder {
+    private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int BAND_ROWS = 64;
+    private static final int MAX_IDAT = 1 << 20;
+
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, "png-encoder");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final int level;
+
+    public ParallelPngEncoder() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public ParallelPngEncoder(int level) {
+        this.level = level;
+    }
+
+    // Writes the canvas as an 8-bit RGBA PNG. progress receives the number of rows written
+    // so far; returns false if cancelled before the image was complete.
+    public boolean encode(TiledCanvas canvas, OutputStream stream, IntConsumer progress, BooleanSupplier cancelled)
+            throws IOException {
+        int width = canvas.getWidth();
+        int height = canvas.getHeight();
+        DataOutputStream out = new DataOutputStream(stream);
+        out.write(SIGNATURE);
+
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8; // bit depth
+        header[9] = 6; // color type RGBA
+        writeChunk(out, "IHDR", header, 0, header.length);
+
+        int bands = (height + BAND_ROWS - 1) / BAND_ROWS;
+        int window = 2 * Runtime.getRuntime().availableProcessors();
+        ArrayDeque<Future<Band>> inFlight = new ArrayDeque<>();
+        int submitted = 0;
+        long adler = 1;
+        boolean first = true;
+        try {
+            while (submitted < bands || !inFlight.isEmpty()) {
+                while (submitted < bands && inFlight.size() < window) {
+                    int y = submitted * BAND_ROWS;
+                    int rows = Math.min(BAND_ROWS, height - y);
+                    boolean last = submitted == bands - 1;
+                    inFlight.add(WORKERS.submit(() -> compressBand(canvas, y, rows, last)));
+                    submitted++;
+                }
+                if (cancelled.getAsBoolean()) {
+                    for (Future<Band> pending : inFlight) {
+                        pending.cancel(true);
+                    }
+                    return false;
+                }
+                Band band = inFlight.poll().get();
+                byte[] data = band.compressed;
+                if (first) {
+                    // zlib header for a 32K window; the dictionaries are part of the stream itself
+                    byte[] zlib = Arrays.copyOf(new byte[] { 0x78, (byte) 0x9C }, 2 + data.length);
+                    System.arraycopy(data, 0, zlib, 2, data.length);
+                    data = zlib;
+                    first = false;
+                }
+                adler = combineAdler32(adler, band.adler, band.rawLength);
+                if (band.last) {
+                    data = Arrays.copyOf(data, data.length + 4);
+                    putInt(data, data.length - 4, (int) adler);
+                }
+                for (int offset = 0; offset < data.length; offset += MAX_IDAT) {
+                    writeChunk(out, "IDAT", data, offset, Math.min(MAX_IDAT, data.length - offset));
+                }
+                progress.accept(Math.min(height, band.y + BAND_ROWS));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("PNG export interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("PNG export failed", e.getCause());
+        }
+        writeChunk(out, "IEND", new byte[0], 0, 0);
+        out.flush();
+        return true;
+    }
+
+    private Band compressBand(TiledCanvas canvas, int y, int rows, boolean last) {
+        int width = canvas.getWidth();
+        int stride = 1 + 4 * width;
+        int[] argb = new int[width];
+        byte[] previous = new byte[stride];
+        byte[] current = new byte[stride];
+        byte[] raw = new byte[rows * stride];
+
+        // Filtering with Up/Paeth needs the row just above the band
+        if (y > 0) {
+            canvas.getRect(0, y - 1, width, 1, argb, 0, width);
+            toRgba(argb, previous);
+        }
+        for (int row = 0; row < rows; row++) {
+            canvas.getRect(0, y + row, width, 1, argb, 0, width);
+            toRgba(argb, current);
+            filterRow(current, previous, raw, row * stride, y + row == 0);
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        Adler32 checksum = new Adler32();
+        checksum.update(raw, 0, raw.length);
+
+        Deflater deflater = new Deflater(level, true);
+        if (y > 0) {
+            // The tail of the previous band, which the decoder has just produced
+            byte[] dictionary = previousBandTail(canvas, y, stride);
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(raw);
+        byte[] out = new byte[Math.max(1024, raw.length / 4)];
+        int length = 0;
+        if (last) {
+            deflater.finish();
+        }
+        while (true) {
+            if (length == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            if (last) {
+                length += deflater.deflate(out, length, out.length - length);
+                if (deflater.finished()) {
+                    break;
+                }
+            } else {
+                // A sync flush is complete once it no longer fills the output buffer
+                length += deflater.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+                if (length < out.length) {
+                    break;
+                }
+            }
+        }
+        deflater.end();
+
+        Band band = new Band();
+        band.y = y;
+        band.compressed = Arrays.copyOf(out, length);
+        band.adler = checksum.getValue();
+        band.rawLength = raw.length;
+        band.last = last;
+        return band;
+    }
+
+    // Rebuilds the filtered bytes at the end of the previous band for use as a dictionary
+    private byte[] previousBandTail(TiledCanvas canvas, int y, int stride) {
+        int width = canvas.getWidth();
+        int rows = Math.min(y, (DICTIONARY_SIZE + stride - 1) / stride);
+        int start = y - rows;
+        int[] argb = new int[width];
+        byte[] previous = new byte[stride];
+        byte[] current = new byte[stride];
+        byte[] raw = new byte[rows * stride];
+        if (start > 0) {
+            canvas.getRect(0, start - 1, width, 1, argb, 0, width);
+            toRgba(argb, previous);
+        }
+        for (int row = 0; row < rows; row++) {
+            canvas.getRect(0, start + row, width, 1, argb, 0, width);
+            toRgba(argb, current);
+            filterRow(current, previous, raw, row * stride, start + row == 0);
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        int length = Math.min(DICTIONARY_SIZE, raw.length);
+        return Arrays.copyOfRange(raw, raw.length - length, raw.length);
+    }
+
+    // Converts ARGB ints to RGBA bytes after the leading filter-type byte
+    private static void toRgba(int[] argb, byte[] row) {
+        for (int i = 0, p = 1; i < argb.length; i++, p += 4) {
+            int c = argb[i];
+            row[p] = (byte) (c >> 16);
+            row[p + 1] = (byte) (c >> 8);
+            row[p + 2] = (byte) c;
+            row[p + 3] = (byte) (c >>> 24);
+        }
+    }
+
+    // Picks the filter with the smallest sum of absolute residuals, as libpng does. The sums
+    // for all five filters are gathered in one pass over the row.
+    private static void filterRow(byte[] row, byte[] above, byte[] out, int offset, boolean firstRow) {
+        int length = row.length;
+        long none = 0, sub = 0, up = 0, average = 0, paeth = 0;
+        for (int i = 1; i < length; i++) {
+            int x = row[i] & 0xFF;
+            int a = i > 4 ? row[i - 4] & 0xFF : 0;
+            int b = above[i] & 0xFF;
+            int c = i > 4 ? above[i - 4] & 0xFF : 0;
+            none += Math.abs((byte) x);
+            sub += Math.abs((byte) (x - a));
+            up += Math.abs((byte) (x - b));
+            average += Math.abs((byte) (x - ((a + b) >> 1)));
+            paeth += Math.abs((byte) (x - paeth(a, b, c)));
+        }
+        int filter = 0;
+        long best = none;
+        if (sub < best) {
+            best = sub;
+            filter = 1;
+        }
+        if (!firstRow) {
+            // Nothing above the first row, so Up, Average and Paeth gain nothing there
+            if (up < best) {
+                best = up;
+                filter = 2;
+            }
+            if (average < best) {
+                best = average;
+                filter = 3;
+            }
+            if (paeth < best) {
+                filter = 4;
+            }
+        }
+        out[offset] = (byte) filter;
+        for (int i = 1; i < length; i++) {
+            int x = row[i] & 0xFF;
+            int a = i > 4 ? row[i - 4] & 0xFF : 0;
+            int b = above[i] & 0xFF;
+            int c = i > 4 ? above[i - 4] & 0xFF : 0;
+            int r;
+            switch (filter) {
+                case 1:
+                    r = x - a;
+                    break;
+                case 2:
+                    r = x - b;
+                    break;
+                case 3:
+                    r = x - ((a + b) >> 1);
+                    break;
+                case 4:
+                    r = x - paeth(a, b, c);
+                    break;
+                default:
+                    r = x;
+            }
+            out[offset + i] = (byte) r;
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    // Adler-32 of two concatenated blocks from the checksums of each (zlib's adler32_combine)
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= base << 1) {
+            sum2 -= base << 1;
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return (sum2 << 16) | sum1;
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int offset, int length)
+            throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, offset, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    private static class Band {
+        int y;
+        byte[] compressed;
+        long adler;
+        long rawLength;
+        boolean last;
+    }
+}
@@ -0,0 +1,166 @@
+import java.awt.EventQueue;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.function.Supplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Collects the pad's performance counters for the on-canvas HUD and for JMX monitoring
+// (any JMX client, e.g. jconsole, can read them under sketchpad:type=Performance). Frame
+// times and input latency come from the frame scheduler, memory from the layers and undo
+// history in use at the time of the reading, and the allocation rate from the JVM's
+// per-thread allocation counters.
+//
+// The frame scheduler and the layers are only touched on the event thread, so readings of
+// them made from another thread, such as a JMX connection's, are run on the event thread
+// and waited for. The undo history and the allocation rate are synchronized and read in
+// place.
+public class PerformanceMonitor implements PerformanceMonitorMBean {
+    // Shortest window the allocation rate is averaged over
+    private static final long RATE_WINDOW_NANOS = 500_000_000L;
+
+    private final FrameScheduler scheduler;
+    private final Supplier<LayerStack> layers;
+    private final Supplier<TileUndoManager> undoManager;
+    private final com.sun.management.ThreadMXBean threads;
+
+    private long rateStartNanos;
+    private long rateStartBytes;
+    private double allocationRate;
+
+    public PerformanceMonitor(FrameScheduler scheduler, Supplier<LayerStack> layers,
+            Supplier<TileUndoManager> undoManager) {
+        this.scheduler = scheduler;
+        this.layers = layers;
+        this.undoManager = undoManager;
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        this.threads = bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+                ? (com.sun.management.ThreadMXBean) bean
+                : null;
+        this.rateStartNanos = System.nanoTime();
+        this.rateStartBytes = allocatedBytes();
+    }
+
+    // Publishes the counters on the platform MBean server
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("sketchpad:type=Performance"));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public long getFrameCount() {
+        return onEventThread(scheduler::getFrames);
+    }
+
+    @Override
+    public double getFrameTimeP50() {
+        return onEventThread(() -> scheduler.getFrameTimePercentile(50));
+    }
+
+    @Override
+    public double getFrameTimeP95() {
+        return onEventThread(() -> scheduler.getFrameTimePercentile(95));
+    }
+
+    @Override
+    public double getFrameTimeMax() {
+        return onEventThread(scheduler::getMaxFrameTime);
+    }
+
+    @Override
+    public double getInputLatencyP50() {
+        return onEventThread(() -> scheduler.getLatencyPercentile(50));
+    }
+
+    @Override
+    public double getInputLatencyP95() {
+        return onEventThread(() -> scheduler.getLatencyPercentile(95));
+    }
+
+    @Override
+    public double getInputLatencyMax() {
+        return onEventThread(scheduler::getMaxLatency);
+    }
+
+    @Override
+    public long getUndoHistoryHeapBytes() {
+        TileUndoManager undo = undoManager.get();
+        return undo == null ? 0 : undo.getHeapBytes();
+    }
+
+    @Override
+    public long getUndoHistoryDiskBytes() {
+        TileUndoManager undo = undoManager.get();
+        return undo == null ? 0 : undo.getDiskBytes();
+    }
+
+    @Override
+    public long getCanvasBytes() {
+        return onEventThread(() -> {
+            LayerStack current = layers.get();
+            return current == null ? 0L : current.getAllocatedBytes();
+        });
+    }
+
+    @Override
+    public synchronized double getAllocationRate() {
+        long now = System.nanoTime();
+        if (now - rateStartNanos >= RATE_WINDOW_NANOS) {
+            long bytes = allocatedBytes();
+            // Threads that ended take their counts with them, so the sum can drop
+            allocationRate = Math.max(0, bytes - rateStartBytes) * 1e9 / (now - rateStartNanos);
+            rateStartNanos = now;
+            rateStartBytes = bytes;
+        }
+        return allocationRate;
+    }
+
+    // The counters as lines of text, as the HUD shows them
+    public String[] describe() {
+        return new String[] {
+                String.format("Frame      p50 %5.1f  p95 %5.1f  max %5.1f ms  (%.1f ms budget)", getFrameTimeP50(),
+                        getFrameTimeP95(), getFrameTimeMax(), scheduler.getFramePeriod()),
+                String.format("Input lag  p50 %5.1f  p95 %5.1f  max %5.1f ms", getInputLatencyP50(),
+                        getInputLatencyP95(), getInputLatencyMax()),
+                String.format("Undo       %.1f MB heap, %.1f MB disk", getUndoHistoryHeapBytes() / 1048576.0,
+                        getUndoHistoryDiskBytes() / 1048576.0),
+                String.format("Canvas     %.1f MB, %s pixel kernels", getCanvasBytes() / 1048576.0,
+                        PixelKernels.get().describe()),
+                String.format("Allocation %.1f MB/s", getAllocationRate() / 1048576.0) };
+    }
+
+    // Runs a reading on the event thread, or in place when already on it
+    private static <T> T onEventThread(Supplier<T> reading) {
+        if (EventQueue.isDispatchThread()) {
+            return reading.get();
+        }
+        ArrayList<T> result = new ArrayList<>(1);
+        try {
+            EventQueue.invokeAndWait(() -> result.add(reading.get()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading a counter", e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Could not read a counter", e.getCause());
+        }
+        return result.get(0);
+    }
+
+    // Bytes allocated so far by the live threads
+    private long allocatedBytes() {
+        if (threads == null) {
+            return 0;
+        }
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(0, bytes);
+        }
+        return total;
+    }
+}
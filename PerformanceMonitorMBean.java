@@ -0,0 +1,26 @@
+// The counters PerformanceMonitor publishes over JMX, as sketchpad:type=Performance.
+// Times are in milliseconds.
+public interface PerformanceMonitorMBean {
+    long getFrameCount();
+
+    double getFrameTimeP50();
+
+    double getFrameTimeP95();
+
+    double getFrameTimeMax();
+
+    double getInputLatencyP50();
+
+    double getInputLatencyP95();
+
+    double getInputLatencyMax();
+
+    long getUndoHistoryHeapBytes();
+
+    long getUndoHistoryDiskBytes();
+
+    long getCanvasBytes();
+
+    // Bytes allocated per second by all threads, averaged since the previous reading
+    double getAllocationRate();
+}
@@ -0,0 +1,146 @@
+import java.util.Arrays;
+
+// Loops over runs of ARGB pixels in the canvas's int[] tiles: the eraser's solid fill, the
+// bucket fill's color blend and tolerance test, layer compositing and the undo tile swap.
+// These are the scalar versions. When the JVM is started with
+// --add-modules jdk.incubator.vector, get() returns VectorPixelKernels instead, which does
+// the same work several pixels at a time with the incubating vector API.
+//
+// Both give exactly the same pixels. Sketchpads in a session replay each other's
+// operations, and they must end up with the same drawing whichever kernels they run.
+public class PixelKernels {
+    private static final PixelKernels INSTANCE = load();
+
+    // The kernels to use; -Dsketchpad.vector=false forces the scalar ones
+    public static PixelKernels get() {
+        return INSTANCE;
+    }
+
+    private static PixelKernels load() {
+        if (Boolean.parseBoolean(System.getProperty("sketchpad.vector", "true"))
+                && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                // Loaded by name, as this class must load without the module
+                PixelKernels kernels = (PixelKernels) Class.forName("VectorPixelKernels").getDeclaredConstructor()
+                        .newInstance();
+                // A vector of fewer lanes than this runs slower than the scalar loops
+                if (kernels.lanes() >= 4) {
+                    return kernels;
+                }
+            } catch (ReflectiveOperationException | LinkageError e) {
+                e.printStackTrace();
+            }
+        }
+        return new PixelKernels();
+    }
+
+    // Pixels handled at once
+    public int lanes() {
+        return 1;
+    }
+
+    public String describe() {
+        return lanes() == 1 ? "scalar" : "vector " + lanes() + "x32";
+    }
+
+    // Sets pixels [from, to) to a color
+    public void fill(int[] pixels, int from, int to, int argb) {
+        Arrays.fill(pixels, from, to, argb);
+    }
+
+    // Copies a run of pixels. System.arraycopy is already vectorized by the JIT, so both
+    // kernels use it.
+    public void copy(int[] src, int srcPos, int[] dst, int dstPos, int length) {
+        System.arraycopy(src, srcPos, dst, dstPos, length);
+    }
+
+    // Exchanges two runs of pixels
+    public void swap(int[] a, int aPos, int[] b, int bPos, int length) {
+        for (int i = 0; i < length; i++) {
+            int p = a[aPos + i];
+            a[aPos + i] = b[bPos + i];
+            b[bPos + i] = p;
+        }
+    }
+
+    // Blends a translucent color over pixels [from, to)
+    public void blend(int[] pixels, int from, int to, int argb) {
+        for (int i = from; i < to; i++) {
+            pixels[i] = blend(argb, pixels[i]);
+        }
+    }
+
+    // Source-over blending of a run of non-premultiplied ARGB pixels onto another, in place
+    public void blendOver(int[] src, int srcPos, int[] dst, int dstPos, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[dstPos + i] = blendOver(src[srcPos + i], dst[dstPos + i]);
+        }
+    }
+
+    // Index of the first pixel in [from, to) not within tolerance of the seed, or to
+    public int matchForward(int[] pixels, int from, int to, int seed, int tolerance) {
+        for (int i = from; i < to; i++) {
+            if (!matches(pixels[i], seed, tolerance)) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    // Start of the run of pixels within tolerance of the seed that ends at to, no further
+    // back than from
+    public int matchBackward(int[] pixels, int from, int to, int seed, int tolerance) {
+        for (int i = to - 1; i >= from; i--) {
+            if (!matches(pixels[i], seed, tolerance)) {
+                return i + 1;
+            }
+        }
+        return from;
+    }
+
+    // Whether every channel of the pixel is within tolerance (0-255) of the seed's
+    static boolean matches(int p, int seed, int tolerance) {
+        if (p == seed) {
+            return true;
+        }
+        if (tolerance == 0) {
+            return false;
+        }
+        return Math.abs((p >>> 24) - (seed >>> 24)) <= tolerance
+                && Math.abs(((p >> 16) & 0xFF) - ((seed >> 16) & 0xFF)) <= tolerance
+                && Math.abs(((p >> 8) & 0xFF) - ((seed >> 8) & 0xFF)) <= tolerance
+                && Math.abs((p & 0xFF) - (seed & 0xFF)) <= tolerance;
+    }
+
+    // Source-over composite of a translucent color onto an ARGB pixel
+    static int blend(int src, int dst) {
+        int sa = src >>> 24;
+        int inv = 255 - sa;
+        int da = dst >>> 24;
+        int outA = sa + da * inv / 255;
+        if (outA == 0) {
+            return 0;
+        }
+        int r = (((src >> 16) & 0xFF) * sa + ((dst >> 16) & 0xFF) * da * inv / 255) / outA;
+        int g = (((src >> 8) & 0xFF) * sa + ((dst >> 8) & 0xFF) * da * inv / 255) / outA;
+        int b = ((src & 0xFF) * sa + (dst & 0xFF) * da * inv / 255) / outA;
+        return (outA << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    // Source-over blending of one non-premultiplied ARGB pixel onto another
+    static int blendOver(int s, int d) {
+        int sa = s >>> 24;
+        if (sa == 0) {
+            return d;
+        }
+        if (sa == 255) {
+            return s;
+        }
+        int dw = ((d >>> 24) * (255 - sa) + 127) / 255; // weight left to the destination
+        int oa = sa + dw;
+        int r = (((s >> 16) & 0xFF) * sa + ((d >> 16) & 0xFF) * dw + oa / 2) / oa;
+        int g = (((s >> 8) & 0xFF) * sa + ((d >> 8) & 0xFF) * dw + oa / 2) / oa;
+        int b = ((s & 0xFF) * sa + (d & 0xFF) * dw + oa / 2) / oa;
+        return oa << 24 | r << 16 | g << 8 | b;
+    }
+}
@@ -0,0 +1,64 @@
+// Times the way from launching the JVM to the first paint of the canvas: until main() runs,
+// building the window, showing it and painting the canvas for the first time. With
+// -Dsketchpad.startupStats=true the times are printed once the canvas has been painted,
+// and they are always recorded as a Flight Recorder event.
+//
+// -Dsketchpad.exitAfterStartup=true exits right after the first paint, for scripted
+// measurements and for the build's class data sharing training run.
+public class StartupTimer {
+    private static final boolean LOG = Boolean.getBoolean("sketchpad.startupStats");
+    private static final boolean EXIT = Boolean.getBoolean("sketchpad.exitAfterStartup");
+
+    private static final DrawingEvents.Startup event = new DrawingEvents.Startup();
+    private static long launchMillis; // wall clock time the process started, or 0 if not known
+    private static long mainMillis;
+    private static long mainNanos;
+    private static long builtNanos;
+    private static long shownNanos;
+    private static boolean painted;
+
+    private StartupTimer() {
+    }
+
+    public static void mainStarted() {
+        mainNanos = System.nanoTime();
+        mainMillis = System.currentTimeMillis();
+        launchMillis = ProcessHandle.current().info().startInstant().map(i -> i.toEpochMilli()).orElse(0L);
+        event.begin();
+    }
+
+    public static void windowBuilt() {
+        builtNanos = System.nanoTime();
+    }
+
+    public static void windowShown() {
+        shownNanos = System.nanoTime();
+    }
+
+    // Called with every paint of the canvas; only the first one counts. Returns whether
+    // this was it.
+    public static boolean painted() {
+        if (painted || mainNanos == 0) {
+            return false;
+        }
+        painted = true;
+        long now = System.nanoTime();
+        event.jvm = launchMillis == 0 ? 0 : (mainMillis - launchMillis) * 1_000_000;
+        event.window = builtNanos - mainNanos;
+        event.shown = shownNanos - builtNanos;
+        event.firstPaint = now - shownNanos;
+        event.commit();
+        if (LOG) {
+            System.err.printf("Startup: JVM %s, window built in %.1f ms, shown in %.1f ms, first paint %.1f ms "
+                    + "later; %s from launch%n",
+                    launchMillis == 0 ? "start not known" : (mainMillis - launchMillis) + " ms to main",
+                    event.window / 1e6, event.shown / 1e6, event.firstPaint / 1e6,
+                    launchMillis == 0 ? String.format("%.1f ms from main", (now - mainNanos) / 1e6)
+                            : String.format("%.1f ms", event.jvm / 1e6 + (now - mainNanos) / 1e6));
+        }
+        if (EXIT) {
+            System.exit(0);
+        }
+        return true;
+    }
+}
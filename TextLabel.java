@@ -0,0 +1,63 @@
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+
+// A line of text in the shape model: the string, its font and where its baseline starts.
+// The layout comes from the glyph cache, so labels with the same text and font share one.
+public class TextLabel {
+    private final String text;
+    private final Font font;
+    private final int x;
+    private final int y;
+    private final GlyphCache.Glyphs glyphs;
+
+    public TextLabel(String text, Font font, int x, int y) {
+        this.text = text;
+        this.font = font;
+        this.x = x;
+        this.y = y;
+        this.glyphs = GlyphCache.glyphs(font, text);
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public Font getFont() {
+        return font;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    // Canvas area the text covers
+    public Rectangle getBounds() {
+        Rectangle bounds = glyphs.getBounds();
+        bounds.translate(x, y);
+        return bounds;
+    }
+
+    // Where a caret after the last character goes, from the top of the line to its bottom
+    public Rectangle getCaret() {
+        return new Rectangle(x + Math.round(glyphs.getAdvance()), y - Math.round(glyphs.getAscent()), 1,
+                Math.round(glyphs.getAscent() + glyphs.getDescent()));
+    }
+
+    // Glyph outlines in canvas coordinates
+    public Shape getOutline() {
+        return AffineTransform.getTranslateInstance(x, y).createTransformedShape(glyphs.getOutline());
+    }
+
+    // Draws in the current color
+    public void paint(Graphics2D g) {
+        g.setFont(font);
+        glyphs.draw(g, x, y);
+    }
+}
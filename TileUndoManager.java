@@ -0,0 +1,734 @@
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Undo engine that keeps only the tiles an edit touched instead of full canvas copies.
+// Before an edit draws into a region, snapshot() copies the tiles covering it, so the
+// memory held by the history grows with the area that was changed, not the canvas size.
+// Undo and redo swap the saved tiles with the live ones in place: after an undo the
+// entry holds the "after" pixels and can be moved to the redo stack without copying.
+// Tiles that lie in still-blank areas of the canvas are saved as null rather than copied.
+// Tiles are saved for the whole region an edit is about to draw in, which for the outline
+// of a large shape is mostly pixels it leaves alone, so once the edit has drawn the saved
+// tiles that still match the canvas are dropped: when a transaction is committed, or for
+// a region snapshot() took on its own, when the next edit begins or the history is used.
+//
+// The history is kept within a byte budget. The newest few entries stay as raw tiles so
+// undo is instant; older ones are deflated on a background thread. Once the heap held
+// by the history passes the spill threshold, the oldest compressed entries are moved to
+// a memory-mapped scratch file, and when either the heap or the scratch file is full the
+// oldest entries are evicted.
+//
+// One history can serve several canvases of the same size, such as the layers of a
+// drawing: edits are taken from the current target canvas, and each entry remembers the
+// canvas it came from so undo and redo restore it there whatever the target is by then.
+//
+// An edit can also carry changes to state kept beside the pixels, such as a layer's shape
+// model. They are undone after the tiles, newest first, and redone in the order they were
+// made.
+public class TileUndoManager {
+    public static final int TILE_SIZE = 64;
+
+    // A change made with an edit that is not in its tiles
+    public interface Change {
+        void undo();
+
+        void redo();
+    }
+
+    // Entries closest to the top of each stack that are never compressed
+    private static final int RAW_ENTRIES = 4;
+    // Rough per-entry object overhead used for accounting
+    private static final int ENTRY_OVERHEAD = 64;
+    // The scratch file is mapped in windows of this size, as one mapping cannot pass 2 GB
+    private static final int SCRATCH_WINDOW = 1 << 28;
+
+    private enum State { RAW, COMPRESSED, SPILLED, EVICTED }
+
+    private TiledCanvas target; // canvas new edits are taken from
+    private TiledCanvas changedCanvas; // canvas the last undo or redo restored
+    private List<Change> changedModel = Collections.emptyList(); // changes it undid or redid
+    private final int width;
+    private final int height;
+    private final int cols;
+    private final int rows;
+    private final ArrayList<TileEdit> undoStack = new ArrayList<>();
+    private final ArrayList<TileEdit> redoStack = new ArrayList<>();
+
+    // Open transaction, and the serial of the transaction that last captured each tile
+    private TileEdit pending;
+    private TileEdit undrawn; // pushed by snapshot() before its region was drawn
+    private final int[] tileStamp;
+    private int editSerial;
+
+    private final long memoryBudget;
+    private final long spillThreshold;
+    private final long diskBudget;
+    private long heapBytes;
+
+    // Spilled entries are always the oldest ones, so the scratch file is used as a ring:
+    // spilling appends at the tail, undo reads back from the tail and eviction drops the head.
+    private MappedByteBuffer[] scratch;
+    private boolean spillDisabled;
+    private long diskHead;
+    private long diskUsed;
+    private int spilledCount;
+
+    private final ExecutorService compressor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "undo-compressor");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    // Compressor thread only
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] deflateBytes = new byte[1 + TILE_SIZE * TILE_SIZE * 4];
+    // Guarded by this
+    private final Inflater inflater = new Inflater();
+    private final byte[] inflateBytes = new byte[1 + TILE_SIZE * TILE_SIZE * 4];
+    // Guarded by this
+    private final int[] liveTile = new int[TILE_SIZE * TILE_SIZE];
+
+    public TileUndoManager(TiledCanvas canvas) {
+        this(canvas, 256L << 20, 1024L << 20);
+    }
+
+    // memoryBudget caps the heap used by the history; entries start spilling to disk at
+    // half of it. diskBudget caps the scratch file, or disables spilling when zero.
+    public TileUndoManager(TiledCanvas canvas, long memoryBudget, long diskBudget) {
+        this(canvas.getWidth(), canvas.getHeight(), memoryBudget, diskBudget);
+        this.target = canvas;
+    }
+
+    // A history for canvases of the given size; setTarget() picks the first one
+    public TileUndoManager(int width, int height, long memoryBudget, long diskBudget) {
+        if (TiledCanvas.TILE_SIZE % TILE_SIZE != 0) {
+            throw new IllegalArgumentException("Undo tiles must subdivide canvas tiles");
+        }
+        this.width = width;
+        this.height = height;
+        this.cols = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.tileStamp = new int[cols * rows];
+        this.memoryBudget = memoryBudget;
+        this.spillThreshold = memoryBudget / 2;
+        this.diskBudget = diskBudget;
+        this.spillDisabled = diskBudget <= 0;
+    }
+
+    // Makes later edits come from another canvas of the same size, closing the open
+    // transaction first
+    public synchronized void setTarget(TiledCanvas canvas) {
+        if (canvas.getWidth() != width || canvas.getHeight() != height) {
+            throw new IllegalArgumentException("Canvas size does not match the history");
+        }
+        if (canvas != target) {
+            commitEdit();
+            target = canvas;
+        }
+    }
+
+    // Canvas changed by the last undo or redo
+    public synchronized TiledCanvas getChangedCanvas() {
+        return changedCanvas;
+    }
+
+    // Changes the last undo or redo undid or redid, in the order they were made
+    public synchronized List<Change> getChanges() {
+        return Collections.unmodifiableList(changedModel);
+    }
+
+    // Opens a transaction: every region touched until commitEdit() becomes a single undo
+    // step, and each tile is copied only the first time the transaction touches it.
+    public synchronized void beginEdit() {
+        commitEdit();
+        dropUndrawn();
+        pending = new TileEdit(target, 16);
+        editSerial++;
+    }
+
+    // Saves the tiles under a region that is about to be modified. Tiles already captured
+    // by the open transaction are skipped, so repeated touches of the same area are free.
+    public synchronized void touch(int x, int y, int w, int h) {
+        int x0 = Math.max(x, 0);
+        int y0 = Math.max(y, 0);
+        int x1 = Math.min(x + w, width) - 1;
+        int y1 = Math.min(y + h, height) - 1;
+        if (pending == null || x1 < x0 || y1 < y0) {
+            return;
+        }
+        DrawingEvents.UndoSnapshot event = new DrawingEvents.UndoSnapshot();
+        event.begin();
+        int copied = 0;
+        for (int ty = y0 / TILE_SIZE; ty <= y1 / TILE_SIZE; ty++) {
+            for (int tx = x0 / TILE_SIZE; tx <= x1 / TILE_SIZE; tx++) {
+                int tile = ty * cols + tx;
+                if (tileStamp[tile] != editSerial) {
+                    tileStamp[tile] = editSerial;
+                    pending.add(tile, copyTile(tx, ty));
+                    copied++;
+                }
+            }
+        }
+        if (copied > 0 && event.shouldCommit()) {
+            event.tiles = copied;
+            event.historyBytes = heapBytes;
+            event.commit();
+        }
+    }
+
+    // Closes the open transaction and pushes it as one undo step if it touched anything.
+    public synchronized void commitEdit() {
+        commit(true);
+    }
+
+    // Pushes the open transaction. Before it has drawn, the tiles it left unchanged cannot
+    // be told apart yet and are dropped by dropUndrawn() later.
+    private void commit(boolean drawn) {
+        TileEdit edit = pending;
+        pending = null;
+        if (edit == null) {
+            return;
+        }
+        if (drawn) {
+            dropUnchanged(edit);
+        }
+        if (edit.count == 0 && edit.changes.isEmpty()) {
+            return;
+        }
+        edit.trim();
+        // Clear redo stack on new action
+        for (TileEdit redone : redoStack) {
+            discard(redone);
+        }
+        redoStack.clear();
+        heapBytes += edit.heapBytes();
+        push(undoStack, edit);
+        if (!drawn) {
+            undrawn = edit;
+        }
+    }
+
+    public synchronized boolean isEditOpen() {
+        return pending != null;
+    }
+
+    // Records the tiles intersecting the region before it is modified. Joins the open
+    // transaction if there is one, otherwise becomes an undo step of its own.
+    public synchronized void snapshot(Rectangle region) {
+        snapshot(region, null);
+    }
+
+    // Records the tiles as snapshot() does, with a change that is made along with them
+    public synchronized void snapshot(Rectangle region, Change change) {
+        boolean open = pending != null;
+        if (!open) {
+            beginEdit();
+        }
+        touch(region.x, region.y, region.width, region.height);
+        if (change != null) {
+            pending.changes.add(change);
+        }
+        if (!open) {
+            commit(false);
+        }
+    }
+
+    // Restores the tiles of the last edit and undoes its changes. Returns the canvas region
+    // that changed, empty if only the changes did, or null if there was nothing to undo.
+    public synchronized Rectangle undo() {
+        commitEdit();
+        dropUndrawn();
+        if (undoStack.isEmpty()) {
+            return null;
+        }
+        TileEdit edit = undoStack.remove(undoStack.size() - 1);
+        Rectangle changed = swap(edit);
+        for (int i = edit.changes.size() - 1; i >= 0; i--) {
+            edit.changes.get(i).undo();
+        }
+        changedModel = edit.changes;
+        push(redoStack, edit);
+        return changed;
+    }
+
+    public synchronized Rectangle redo() {
+        commitEdit();
+        dropUndrawn();
+        if (redoStack.isEmpty()) {
+            return null;
+        }
+        TileEdit edit = redoStack.remove(redoStack.size() - 1);
+        Rectangle changed = swap(edit);
+        for (Change change : edit.changes) {
+            change.redo();
+        }
+        changedModel = edit.changes;
+        push(undoStack, edit);
+        return changed;
+    }
+
+    public synchronized boolean canUndo() {
+        return !undoStack.isEmpty();
+    }
+
+    public synchronized boolean canRedo() {
+        return !redoStack.isEmpty();
+    }
+
+    public synchronized void clear() {
+        pending = null;
+        undrawn = null;
+        for (TileEdit edit : undoStack) {
+            discard(edit);
+        }
+        for (TileEdit edit : redoStack) {
+            discard(edit);
+        }
+        undoStack.clear();
+        redoStack.clear();
+        changedModel = Collections.emptyList();
+        heapBytes = 0;
+        diskHead = 0;
+        diskUsed = 0;
+        spilledCount = 0;
+    }
+
+    // Drops the history and stops the compressor thread; the manager is not used afterwards
+    public synchronized void close() {
+        clear();
+        compressor.shutdownNow();
+    }
+
+    // Heap currently held by undo and redo entries, in bytes
+    public synchronized long getHeapBytes() {
+        return heapBytes;
+    }
+
+    // Bytes of the scratch file occupied by spilled entries
+    public synchronized long getDiskBytes() {
+        return diskUsed;
+    }
+
+    public synchronized int getEntryCount() {
+        return undoStack.size() + redoStack.size();
+    }
+
+    public synchronized String describeFootprint() {
+        return String.format("%d undo / %d redo entries, %.1f MB heap (budget %.1f MB), %.1f MB on disk (%d entries)",
+                undoStack.size(), redoStack.size(), heapBytes / 1048576.0, memoryBudget / 1048576.0,
+                diskUsed / 1048576.0, spilledCount);
+    }
+
+    private void push(ArrayList<TileEdit> stack, TileEdit edit) {
+        if (edit.state != State.RAW) {
+            restore(edit);
+        }
+        stack.add(edit);
+        scheduleCompression(undoStack);
+        scheduleCompression(redoStack);
+        enforceBudget();
+    }
+
+    // Copy of a tile's pixels, or null if it lies in a blank area of the canvas
+    private int[] copyTile(int tx, int ty) {
+        int x = tx * TILE_SIZE;
+        int y = ty * TILE_SIZE;
+        if (isBlank(target, x, y)) {
+            return null;
+        }
+        int w = Math.min(TILE_SIZE, width - x);
+        int h = Math.min(TILE_SIZE, height - y);
+        int[] tile = new int[w * h];
+        target.getRect(x, y, w, h, tile, 0, w);
+        return tile;
+    }
+
+    // Drops the unchanged tiles of the edit snapshot() pushed last, now that it has drawn.
+    // It is still the newest entry and raw unless it has been undone or evicted since.
+    private void dropUndrawn() {
+        TileEdit edit = undrawn;
+        undrawn = null;
+        if (edit == null || undoStack.isEmpty() || undoStack.get(undoStack.size() - 1) != edit
+                || edit.state != State.RAW || edit.compressing) {
+            return;
+        }
+        heapBytes -= edit.heapBytes();
+        dropUnchanged(edit);
+        if (edit.count == 0 && edit.changes.isEmpty()) {
+            undoStack.remove(undoStack.size() - 1);
+            return;
+        }
+        edit.trim();
+        heapBytes += edit.heapBytes();
+    }
+
+    // Removes the saved tiles of an edit whose pixels it did not change
+    private void dropUnchanged(TileEdit edit) {
+        int kept = 0;
+        for (int i = 0; i < edit.count; i++) {
+            if (!unchanged(edit.canvas, edit.tiles[i], edit.data[i])) {
+                edit.tiles[kept] = edit.tiles[i];
+                edit.data[kept] = edit.data[i];
+                kept++;
+            }
+        }
+        Arrays.fill(edit.data, kept, edit.count, null);
+        edit.count = kept;
+    }
+
+    private boolean unchanged(TiledCanvas canvas, int tile, int[] saved) {
+        int x = tile % cols * TILE_SIZE;
+        int y = tile / cols * TILE_SIZE;
+        boolean blank = isBlank(canvas, x, y);
+        if (saved == null || blank) {
+            return saved == null && blank;
+        }
+        int w = Math.min(TILE_SIZE, width - x);
+        int h = Math.min(TILE_SIZE, height - y);
+        canvas.getRect(x, y, w, h, liveTile, 0, w);
+        return Arrays.equals(saved, 0, w * h, liveTile, 0, w * h);
+    }
+
+    private static boolean isBlank(TiledCanvas canvas, int x, int y) {
+        return canvas.tile(x >> TiledCanvas.TILE_SHIFT, y >> TiledCanvas.TILE_SHIFT) == null;
+    }
+
+    private int tileLength(int tile) {
+        int x = tile % cols * TILE_SIZE;
+        int y = tile / cols * TILE_SIZE;
+        return Math.min(TILE_SIZE, width - x) * Math.min(TILE_SIZE, height - y);
+    }
+
+    // Exchanges the saved tile contents with the live canvas pixels. An edit that only
+    // changed state beside the pixels changes an empty region.
+    private Rectangle swap(TileEdit edit) {
+        if (edit.state != State.RAW) {
+            restore(edit);
+        }
+        edit.version++;
+        TiledCanvas canvas = edit.canvas;
+        changedCanvas = canvas;
+        Rectangle changed = new Rectangle();
+        for (int i = 0; i < edit.count; i++) {
+            int tx = edit.tiles[i] % cols;
+            int ty = edit.tiles[i] / cols;
+            int x = tx * TILE_SIZE;
+            int y = ty * TILE_SIZE;
+            int w = Math.min(TILE_SIZE, width - x);
+            int h = Math.min(TILE_SIZE, height - y);
+            int[] saved = edit.data[i];
+            boolean blank = isBlank(canvas, x, y);
+            if (saved == null && !blank) {
+                // Back to blank: keep what is there now for redo
+                saved = new int[w * h];
+                canvas.getRect(x, y, w, h, saved, 0, w);
+                canvas.fillRect(x, y, w, h, canvas.getBackground());
+                edit.data[i] = saved;
+            } else if (saved != null && blank) {
+                canvas.setRect(x, y, w, h, saved, 0, w);
+                edit.data[i] = null;
+            } else if (saved != null) {
+                canvas.swapRect(x, y, w, h, saved, 0, w);
+            }
+            Rectangle tileBounds = new Rectangle(x, y, w, h);
+            changed = changed.isEmpty() ? tileBounds : changed.union(tileBounds);
+        }
+        return changed;
+    }
+
+    // Queues the entries below the newest RAW_ENTRIES of a stack for background compression.
+    private void scheduleCompression(ArrayList<TileEdit> stack) {
+        for (int i = stack.size() - RAW_ENTRIES - 1; i >= 0; i--) {
+            TileEdit edit = stack.get(i);
+            if (edit.state != State.RAW) {
+                break; // everything older has already been handled
+            }
+            if (!edit.compressing) {
+                edit.compressing = true;
+                compressor.execute(() -> compress(edit));
+            }
+        }
+    }
+
+    // Runs on the compressor thread. The tiles are read without holding the lock; if an
+    // undo or redo swapped them in the meantime the version changes and the result is dropped.
+    private void compress(TileEdit edit) {
+        int version;
+        int[][] data;
+        synchronized (this) {
+            if (edit.state != State.RAW) {
+                edit.compressing = false;
+                return;
+            }
+            version = edit.version;
+            data = edit.data;
+        }
+
+        byte[] packed = deflate(edit, data);
+
+        synchronized (this) {
+            edit.compressing = false;
+            if (edit.state == State.RAW && edit.version == version) {
+                heapBytes -= edit.heapBytes();
+                edit.data = null;
+                edit.packed = packed;
+                edit.state = State.COMPRESSED;
+                heapBytes += edit.heapBytes();
+                enforceBudget();
+            }
+        }
+    }
+
+    private byte[] deflate(TileEdit edit, int[][] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(deflateBytes);
+        byte[] out = new byte[4096];
+        int length = 0;
+        deflater.reset();
+        for (int i = 0; i < edit.count; i++) {
+            // Each tile starts with a flag byte telling whether it was blank
+            int[] tile = data[i];
+            buffer.clear();
+            buffer.put((byte) (tile == null ? 0 : 1));
+            if (tile != null) {
+                buffer.asIntBuffer().put(tile);
+            }
+            deflater.setInput(deflateBytes, 0, tile == null ? 1 : 1 + tile.length * 4);
+            while (!deflater.needsInput()) {
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                length += deflater.deflate(out, length, out.length - length);
+            }
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (length == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        return Arrays.copyOf(out, length);
+    }
+
+    // Brings a compressed or spilled entry back to raw tiles.
+    private void restore(TileEdit edit) {
+        byte[] packed;
+        if (edit.state == State.SPILLED) {
+            packed = new byte[edit.diskLength];
+            readScratch(edit.diskPosition, packed);
+            // Only the newest spilled entry is ever restored, so the ring shrinks from the tail
+            diskUsed -= edit.diskLength;
+            spilledCount--;
+        } else {
+            packed = edit.packed;
+        }
+        heapBytes -= edit.heapBytes();
+
+        int[][] data = new int[edit.count][];
+        inflater.reset();
+        inflater.setInput(packed);
+        try {
+            for (int i = 0; i < edit.count; i++) {
+                inflateFully(1);
+                if (inflateBytes[0] == 0) {
+                    continue;
+                }
+                int[] tile = new int[tileLength(edit.tiles[i])];
+                inflateFully(tile.length * 4);
+                ByteBuffer.wrap(inflateBytes, 0, tile.length * 4).asIntBuffer().get(tile);
+                data[i] = tile;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt undo history entry", e);
+        }
+        edit.data = data;
+        edit.packed = null;
+        edit.state = State.RAW;
+        heapBytes += edit.heapBytes();
+    }
+
+    private void inflateFully(int length) throws DataFormatException {
+        int filled = 0;
+        while (filled < length) {
+            int n = inflater.inflate(inflateBytes, filled, length - filled);
+            if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                throw new DataFormatException("Truncated undo history entry");
+            }
+            filled += n;
+        }
+    }
+
+    private void enforceBudget() {
+        // Move the oldest compressed entries out of the heap
+        while (heapBytes > spillThreshold && !spillDisabled && spilledCount < undoStack.size()) {
+            TileEdit oldest = undoStack.get(spilledCount);
+            if (oldest.state != State.COMPRESSED) {
+                break; // wait for the compressor to get to it
+            }
+            if (oldest.packed.length > diskBudget) {
+                evictOldest();
+                continue;
+            }
+            while (diskUsed + oldest.packed.length > diskBudget) {
+                evictOldest();
+            }
+            if (!spill(oldest)) {
+                break;
+            }
+        }
+        // Still over budget: drop history oldest-first
+        while (heapBytes > memoryBudget && undoStack.size() + redoStack.size() > 1) {
+            if (undoStack.isEmpty()) {
+                discard(redoStack.remove(0));
+            } else {
+                evictOldest();
+            }
+        }
+    }
+
+    private void evictOldest() {
+        TileEdit oldest = undoStack.remove(0);
+        if (oldest.state == State.SPILLED) {
+            diskHead = (diskHead + oldest.diskLength) % diskBudget;
+            diskUsed -= oldest.diskLength;
+            spilledCount--;
+        }
+        discard(oldest);
+    }
+
+    private void discard(TileEdit edit) {
+        if (edit.state != State.SPILLED) {
+            heapBytes -= edit.heapBytes();
+        }
+        edit.state = State.EVICTED;
+        edit.data = null;
+        edit.packed = null;
+    }
+
+    private boolean spill(TileEdit edit) {
+        if (scratch == null) {
+            try {
+                File file = File.createTempFile("sketchpad-undo", ".swap");
+                file.deleteOnExit();
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    FileChannel channel = raf.getChannel();
+                    MappedByteBuffer[] windows = new MappedByteBuffer[(int) ((diskBudget - 1) / SCRATCH_WINDOW + 1)];
+                    for (int i = 0; i < windows.length; i++) {
+                        long start = (long) i * SCRATCH_WINDOW;
+                        windows[i] = channel.map(FileChannel.MapMode.READ_WRITE, start,
+                                Math.min(SCRATCH_WINDOW, diskBudget - start));
+                    }
+                    scratch = windows;
+                }
+            } catch (IOException | RuntimeException e) {
+                // Out of address space or disk, or no temporary directory: keep the
+                // history on the heap
+                e.printStackTrace();
+                spillDisabled = true;
+                return false;
+            }
+        }
+        long position = (diskHead + diskUsed) % diskBudget;
+        writeScratch(position, edit.packed);
+        heapBytes -= edit.heapBytes();
+        edit.diskPosition = position;
+        edit.diskLength = edit.packed.length;
+        edit.packed = null;
+        edit.state = State.SPILLED;
+        heapBytes += edit.heapBytes();
+        diskUsed += edit.diskLength;
+        spilledCount++;
+        return true;
+    }
+
+    private void writeScratch(long position, byte[] bytes) {
+        int done = 0;
+        while (done < bytes.length) {
+            int n = scratchRun(position, bytes.length - done);
+            scratch[(int) (position / SCRATCH_WINDOW)].put((int) (position % SCRATCH_WINDOW), bytes, done, n);
+            done += n;
+            position = (position + n) % diskBudget;
+        }
+    }
+
+    private void readScratch(long position, byte[] bytes) {
+        int done = 0;
+        while (done < bytes.length) {
+            int n = scratchRun(position, bytes.length - done);
+            scratch[(int) (position / SCRATCH_WINDOW)].get((int) (position % SCRATCH_WINDOW), bytes, done, n);
+            done += n;
+            position = (position + n) % diskBudget;
+        }
+    }
+
+    // Bytes from a position of the ring that lie in one window, up to length
+    private int scratchRun(long position, int length) {
+        long windowEnd = Math.min((position / SCRATCH_WINDOW + 1) * SCRATCH_WINDOW, diskBudget);
+        return (int) Math.min(length, windowEnd - position);
+    }
+
+    // One undo step: the tile indices it covers and their saved pixels, which are held
+    // raw, deflated in memory, or deflated in the scratch file depending on its state.
+    private static class TileEdit {
+        final TiledCanvas canvas;
+        int[] tiles;
+        int count;
+        State state = State.RAW;
+        int[][] data;
+        final ArrayList<Change> changes = new ArrayList<>(1);
+        byte[] packed;
+        long diskPosition;
+        int diskLength;
+        int version;
+        boolean compressing;
+
+        TileEdit(TiledCanvas canvas, int capacity) {
+            this.canvas = canvas;
+            tiles = new int[capacity];
+            data = new int[capacity][];
+        }
+
+        void add(int tile, int[] pixels) {
+            if (count == tiles.length) {
+                tiles = Arrays.copyOf(tiles, count * 2);
+                data = Arrays.copyOf(data, count * 2);
+            }
+            tiles[count] = tile;
+            data[count] = pixels;
+            count++;
+        }
+
+        void trim() {
+            tiles = Arrays.copyOf(tiles, count);
+            data = Arrays.copyOf(data, count);
+        }
+
+        long heapBytes() {
+            long bytes = ENTRY_OVERHEAD + tiles.length * 4L;
+            if (state == State.RAW) {
+                for (int i = 0; i < count; i++) {
+                    if (data[i] != null) {
+                        bytes += data[i].length * 4L;
+                    }
+                }
+            } else if (state == State.COMPRESSED) {
+                bytes += packed.length;
+            }
+            return bytes;
+        }
+    }
+}
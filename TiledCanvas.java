@@ -0,0 +1,384 @@
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+// Sparse ARGB canvas split into square tiles that are allocated only when first drawn into.
+// Untouched tiles all share one read-only blank tile filled with the background color, so a
+// very large drawing costs memory in proportion to the area that has actually been drawn.
+// Each allocated tile is an int[] wrapped in a BufferedImage, which lets the tools keep
+// using Graphics2D. draw() copies the region it is given into a scratch image, runs the
+// painter there once and copies the result back, so a shape is stroked once however many
+// tiles it crosses and its curves do not depend on where the tile edges fall. Regions too
+// large for the scratch image are painted once per tile instead, translated so that the
+// painter can use canvas coordinates throughout; see configureRenderer(). Either way only
+// the tiles whose pixels the painter changed are written back, so the outline of a huge
+// shape allocates the tiles along the outline and not the ones it encloses.
+//
+// snapshot() returns a read-only copy that shares the current tiles. Shared tiles are
+// copied on the next write, so a snapshot costs one reference per tile to take and can be
+// read from another thread while drawing continues.
+//
+// Every tile handed out for writing is stamped with a running modification count, so
+// callers that persist the canvas can find the tiles changed since they last looked.
+public class TiledCanvas {
+    public static final int TILE_SHIFT = 8;
+    public static final int TILE_SIZE = 1 << TILE_SHIFT;
+    private static final int TILE_MASK = TILE_SIZE - 1;
+    private static final PixelKernels KERNELS = PixelKernels.get();
+
+    // Regions up to this many pixels are drawn in one pass through a scratch image
+    private static final int SCRATCH_PIXELS = 1 << 20;
+    private static final ThreadLocal<int[]> SCRATCH = new ThreadLocal<>();
+
+    private static final DirectColorModel ARGB = new DirectColorModel(32, 0x00FF0000, 0x0000FF00, 0x000000FF,
+            0xFF000000);
+
+    private final int width;
+    private final int height;
+    private final int cols;
+    private final int rows;
+    private final int background;
+    private final int[][] tiles;
+    private final BufferedImage[] tileImages;
+    private final int[] blank;
+    private final BufferedImage blankImage;
+    private final boolean[] shared; // tiles also referenced by a snapshot
+    private final long[] modifiedAt; // modification count when each tile was last written
+    private long modCount;
+    private int allocatedTiles;
+
+    public TiledCanvas(int width, int height, int background) {
+        this.width = width;
+        this.height = height;
+        this.cols = (width + TILE_SIZE - 1) >> TILE_SHIFT;
+        this.rows = (height + TILE_SIZE - 1) >> TILE_SHIFT;
+        this.background = background;
+        this.tiles = new int[cols * rows][];
+        this.tileImages = new BufferedImage[cols * rows];
+        this.blank = new int[TILE_SIZE * TILE_SIZE];
+        Arrays.fill(blank, background);
+        this.blankImage = wrap(blank);
+        this.shared = new boolean[cols * rows];
+        this.modifiedAt = new long[cols * rows];
+    }
+
+    private TiledCanvas(TiledCanvas source) {
+        this.width = source.width;
+        this.height = source.height;
+        this.cols = source.cols;
+        this.rows = source.rows;
+        this.background = source.background;
+        this.tiles = source.tiles.clone();
+        this.tileImages = source.tileImages.clone();
+        this.blank = source.blank;
+        this.blankImage = source.blankImage;
+        this.shared = new boolean[cols * rows];
+        Arrays.fill(shared, true); // a snapshot is never written to
+        this.modifiedAt = source.modifiedAt.clone();
+        this.modCount = source.modCount;
+        this.allocatedTiles = source.allocatedTiles;
+    }
+
+    // Read-only copy of the current contents that shares tiles with this canvas
+    public synchronized TiledCanvas snapshot() {
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] != null) {
+                shared[i] = true;
+            }
+        }
+        return new TiledCanvas(this);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBackground() {
+        return background;
+    }
+
+    public int getColumns() {
+        return cols;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getAllocatedTiles() {
+        return allocatedTiles;
+    }
+
+    // Heap held by allocated tile pixels, in bytes
+    public long getAllocatedBytes() {
+        return (long) allocatedTiles * TILE_SIZE * TILE_SIZE * 4;
+    }
+
+    // Increases whenever a tile is written; compare against isModifiedSince()
+    public long getModificationCount() {
+        return modCount;
+    }
+
+    // Whether the tile has been handed out for writing after the given modification count
+    public boolean isModifiedSince(int tx, int ty, long count) {
+        return modifiedAt[ty * cols + tx] > count;
+    }
+
+    public int getPixel(int x, int y) {
+        int[] tile = tiles[(y >> TILE_SHIFT) * cols + (x >> TILE_SHIFT)];
+        return tile == null ? background : tile[((y & TILE_MASK) << TILE_SHIFT) | (x & TILE_MASK)];
+    }
+
+    // Pixels of a tile, or null while it is still blank. Rows are TILE_SIZE ints apart.
+    public int[] tile(int tx, int ty) {
+        return tiles[ty * cols + tx];
+    }
+
+    // Pixels of a tile, allocating it from the background on first use and copying it
+    // if a snapshot still refers to it
+    public int[] writableTile(int tx, int ty) {
+        int index = ty * cols + tx;
+        modifiedAt[index] = ++modCount;
+        int[] tile = tiles[index];
+        if (tile == null || shared[index]) {
+            synchronized (this) {
+                tile = tiles[index];
+                if (tile == null) {
+                    tile = new int[TILE_SIZE * TILE_SIZE];
+                    Arrays.fill(tile, background);
+                    allocatedTiles++;
+                } else if (shared[index]) {
+                    tile = tile.clone();
+                    shared[index] = false;
+                } else {
+                    return tile;
+                }
+                tileImages[index] = wrap(tile);
+                tiles[index] = tile;
+            }
+        }
+        return tile;
+    }
+
+    // Image of a tile for reading; blank tiles return the shared blank image
+    public BufferedImage tileImage(int tx, int ty) {
+        BufferedImage image = tileImages[ty * cols + tx];
+        return image == null ? blankImage : image;
+    }
+
+    // Marlin clips paths to the clip before stroking, which shifts curve subdivision by a
+    // pixel here and there depending on the clip. Regions drawn a tile at a time would show
+    // this as seams on curves crossing tile edges, so launchers call this before anything
+    // is drawn to turn the clipping off. It changes a JVM-wide renderer setting, so the
+    // canvas leaves it to them; a -Dsun.java2d.renderer.clip given on the command line wins.
+    public static void configureRenderer() {
+        if (System.getProperty("sun.java2d.renderer.clip") == null) {
+            System.setProperty("sun.java2d.renderer.clip", "false");
+        }
+    }
+
+    // Runs the painter over the pixels within the bounds. The painter draws in canvas
+    // coordinates and must not depend on being called only once.
+    public void draw(Rectangle bounds, Consumer<Graphics2D> painter) {
+        Rectangle r = bounds.intersection(new Rectangle(0, 0, width, height));
+        if (r.isEmpty()) {
+            return;
+        }
+        if ((long) r.width * r.height <= SCRATCH_PIXELS) {
+            drawThrough(r, painter);
+            return;
+        }
+        for (int ty = r.y >> TILE_SHIFT; ty <= (r.y + r.height - 1) >> TILE_SHIFT; ty++) {
+            for (int tx = r.x >> TILE_SHIFT; tx <= (r.x + r.width - 1) >> TILE_SHIFT; tx++) {
+                drawThrough(r.intersection(new Rectangle(tx << TILE_SHIFT, ty << TILE_SHIFT, TILE_SIZE, TILE_SIZE)),
+                        painter);
+            }
+        }
+    }
+
+    // Paints a region in the scratch image and writes back the tiles it changed
+    private void drawThrough(Rectangle r, Consumer<Graphics2D> painter) {
+        int[] pixels = SCRATCH.get();
+        if (pixels == null || pixels.length < r.width * r.height) {
+            pixels = new int[Math.max(r.width * r.height, TILE_SIZE * TILE_SIZE)];
+            SCRATCH.set(pixels);
+        }
+        getRect(r.x, r.y, r.width, r.height, pixels, 0, r.width);
+        Graphics2D g = wrap(pixels, r.width, r.height).createGraphics();
+        g.translate(-r.x, -r.y);
+        painter.accept(g);
+        g.dispose();
+        for (int ty = r.y >> TILE_SHIFT; ty <= (r.y + r.height - 1) >> TILE_SHIFT; ty++) {
+            int y0 = Math.max(r.y, ty << TILE_SHIFT);
+            int y1 = Math.min(r.y + r.height, (ty + 1) << TILE_SHIFT);
+            for (int tx = r.x >> TILE_SHIFT; tx <= (r.x + r.width - 1) >> TILE_SHIFT; tx++) {
+                int x0 = Math.max(r.x, tx << TILE_SHIFT);
+                int x1 = Math.min(r.x + r.width, (tx + 1) << TILE_SHIFT);
+                int offset = (y0 - r.y) * r.width + x0 - r.x;
+                if (differs(tx, ty, x0, y0, x1 - x0, y1 - y0, pixels, offset, r.width)) {
+                    setRect(x0, y0, x1 - x0, y1 - y0, pixels, offset, r.width);
+                }
+            }
+        }
+    }
+
+    // Whether pixels within one tile differ from the ones in src, which has the given
+    // offset and row stride
+    private boolean differs(int tx, int ty, int x, int y, int w, int h, int[] src, int offset, int scan) {
+        int[] tile = tiles[ty * cols + tx];
+        int[] current = tile == null ? blank : tile;
+        for (int row = 0; row < h; row++) {
+            int t = (((y + row) & TILE_MASK) << TILE_SHIFT) + (x & TILE_MASK);
+            int s = offset + row * scan;
+            if (Arrays.mismatch(src, s, s + w, current, t, t + w) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void fillRect(int x, int y, int w, int h, int argb) {
+        int x0 = Math.max(x, 0);
+        int y0 = Math.max(y, 0);
+        int x1 = Math.min(x + w, width);
+        int y1 = Math.min(y + h, height);
+        for (int row = y0; row < y1; row++) {
+            int ty = row >> TILE_SHIFT;
+            int rowOffset = (row & TILE_MASK) << TILE_SHIFT;
+            int col = x0;
+            while (col < x1) {
+                int tx = col >> TILE_SHIFT;
+                int end = Math.min(x1, (tx + 1) << TILE_SHIFT);
+                int tileX = tx << TILE_SHIFT;
+                KERNELS.fill(writableTile(tx, ty), rowOffset + col - tileX, rowOffset + end - tileX, argb);
+                col = end;
+            }
+        }
+    }
+
+    // Copies a rectangle of pixels into dst, which has the given offset and row stride
+    public void getRect(int x, int y, int w, int h, int[] dst, int offset, int scan) {
+        for (int row = 0; row < h; row++) {
+            int cy = y + row;
+            int ty = cy >> TILE_SHIFT;
+            int rowOffset = (cy & TILE_MASK) << TILE_SHIFT;
+            int col = 0;
+            while (col < w) {
+                int cx = x + col;
+                int tx = cx >> TILE_SHIFT;
+                int n = Math.min(w - col, TILE_SIZE - (cx & TILE_MASK));
+                int[] tile = tiles[ty * cols + tx];
+                int d = offset + row * scan + col;
+                if (tile == null) {
+                    KERNELS.fill(dst, d, d + n, background);
+                } else {
+                    KERNELS.copy(tile, rowOffset + (cx & TILE_MASK), dst, d, n);
+                }
+                col += n;
+            }
+        }
+    }
+
+    // Writes a rectangle of pixels from src, which has the given offset and row stride
+    public void setRect(int x, int y, int w, int h, int[] src, int offset, int scan) {
+        for (int row = 0; row < h; row++) {
+            int cy = y + row;
+            int ty = cy >> TILE_SHIFT;
+            int rowOffset = (cy & TILE_MASK) << TILE_SHIFT;
+            int col = 0;
+            while (col < w) {
+                int cx = x + col;
+                int tx = cx >> TILE_SHIFT;
+                int n = Math.min(w - col, TILE_SIZE - (cx & TILE_MASK));
+                KERNELS.copy(src, offset + row * scan + col, writableTile(tx, ty), rowOffset + (cx & TILE_MASK), n);
+                col += n;
+            }
+        }
+    }
+
+    // Exchanges a rectangle of pixels with the ones in buffer, which has the given offset
+    // and row stride
+    public void swapRect(int x, int y, int w, int h, int[] buffer, int offset, int scan) {
+        for (int row = 0; row < h; row++) {
+            int cy = y + row;
+            int ty = cy >> TILE_SHIFT;
+            int rowOffset = (cy & TILE_MASK) << TILE_SHIFT;
+            int col = 0;
+            while (col < w) {
+                int cx = x + col;
+                int tx = cx >> TILE_SHIFT;
+                int n = Math.min(w - col, TILE_SIZE - (cx & TILE_MASK));
+                KERNELS.swap(writableTile(tx, ty), rowOffset + (cx & TILE_MASK), buffer, offset + row * scan + col, n);
+                col += n;
+            }
+        }
+    }
+
+    // Draws the tiles intersecting a canvas region through g, which is expected to carry
+    // the canvas-to-device transform and a clip. Blank tiles of a transparent canvas are
+    // skipped.
+    public void drawTo(Graphics2D g, Rectangle region) {
+        Rectangle r = region.intersection(new Rectangle(0, 0, width, height));
+        if (r.isEmpty()) {
+            return;
+        }
+        boolean transparent = background >>> 24 == 0;
+        for (int ty = r.y >> TILE_SHIFT; ty <= (r.y + r.height - 1) >> TILE_SHIFT; ty++) {
+            for (int tx = r.x >> TILE_SHIFT; tx <= (r.x + r.width - 1) >> TILE_SHIFT; tx++) {
+                BufferedImage image = tileImages[ty * cols + tx];
+                if (image != null || !transparent) {
+                    g.drawImage(image != null ? image : blankImage, tx << TILE_SHIFT, ty << TILE_SHIFT, null);
+                }
+            }
+        }
+    }
+
+    // Dense copy of a region, for export
+    public BufferedImage toImage(Rectangle region) {
+        BufferedImage image = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_ARGB);
+        int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        getRect(region.x, region.y, region.width, region.height, data, 0, region.width);
+        return image;
+    }
+
+    // Returns one tile to the background, dropping its pixels
+    public synchronized void clearTile(int tx, int ty) {
+        int index = ty * cols + tx;
+        modifiedAt[index] = ++modCount;
+        if (tiles[index] != null) {
+            tiles[index] = null;
+            tileImages[index] = null;
+            shared[index] = false;
+            allocatedTiles--;
+        }
+    }
+
+    // Drops every tile, returning the canvas to the background
+    public synchronized void clear() {
+        Arrays.fill(tiles, null);
+        Arrays.fill(tileImages, null);
+        Arrays.fill(shared, false);
+        Arrays.fill(modifiedAt, ++modCount);
+        allocatedTiles = 0;
+    }
+
+    private static BufferedImage wrap(int[] pixels) {
+        return wrap(pixels, TILE_SIZE, TILE_SIZE);
+    }
+
+    private static BufferedImage wrap(int[] pixels, int w, int h) {
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, w * h), w, h, w,
+                ARGB.getMasks(), null);
+        return new BufferedImage(ARGB, raster, false, null);
+    }
+}
@@ -0,0 +1,391 @@
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Shape;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import java.util.zip.GZIPOutputStream;
+
+// Writes the shape model of the visible layers as SVG, so the drawing can be printed or
+// scaled at any resolution and the file grows with what was drawn rather than with the
+// canvas. Lines, rectangles and ovals become their SVG elements, freehand strokes paths
+// of their fitted curves and text <text> elements; each layer is a group, over a rectangle
+// of the background color. Path data uses relative coordinates with at most two decimals,
+// and a file named .svgz is gzipped as it is written.
+//
+// With -Dsketchpad.svg.textAsPaths=true text is written as filled paths of its glyph
+// outlines instead, so it looks the same where the font is not installed. The outlines
+// come from the glyph cache, so labels sharing a string and font are outlined once.
+//
+// Erasing, bucket fills and imported images only change pixels, so they are not in the
+// shape model and not in the export. Undo and redo change the model with the pixels: an
+// undone shape is not written, and a fill undone is written as it was before.
+//
+// The constructor takes the items to write on the event thread, which costs a reference
+// and a fill color per item; write() may then run on any thread while drawing goes on. It
+// streams each element to a buffered writer as it goes, so the document is never held as
+// text.
+public class VectorExporter {
+    public static final String EXTENSION = "svg";
+    public static final String COMPRESSED_EXTENSION = "svgz";
+
+    // Items between progress reports and checks for cancellation
+    private static final int REPORT_INTERVAL = 4096;
+    private static final boolean TEXT_AS_PATHS = Boolean.getBoolean("sketchpad.svg.textAsPaths");
+
+    private final int width;
+    private final int height;
+    private final Color background;
+    private final boolean textAsPaths;
+    private final List<DisplayList.Item[]> layers = new ArrayList<>();
+    private final List<Color[]> fills = new ArrayList<>(); // as they were when taken
+    private int itemCount;
+
+    private final StringBuilder line = new StringBuilder(256); // the element being written
+    private char[] chars = new char[256];
+    private long lastX; // end of the path data written so far, in hundredths
+    private long lastY;
+
+    public VectorExporter(LayerStack stack) {
+        this(stack, TEXT_AS_PATHS);
+    }
+
+    public VectorExporter(LayerStack stack, boolean textAsPaths) {
+        this.textAsPaths = textAsPaths;
+        width = stack.getWidth();
+        height = stack.getHeight();
+        background = new Color(stack.getBackground(), true);
+        for (Layer layer : stack.getLayers()) {
+            if (!layer.isVisible()) {
+                continue;
+            }
+            DisplayList.Item[] items = layer.getDisplayList().getItems();
+            Color[] itemFills = new Color[items.length];
+            for (int i = 0; i < items.length; i++) {
+                itemFills[i] = items[i].getFill();
+            }
+            layers.add(items);
+            fills.add(itemFills);
+            itemCount += items.length;
+        }
+    }
+
+    // Items that will be written, for progress
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    // Writes to the file, gzipped if it is named .svgz. Reports the items written so far;
+    // returns false, leaving the file incomplete, once cancelled.
+    public boolean write(File file, IntConsumer progress, BooleanSupplier cancelled) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        if (file.getName().endsWith("." + COMPRESSED_EXTENSION)) {
+            out = new GZIPOutputStream(out, 1 << 16);
+        }
+        try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            return write(writer, progress, cancelled);
+        }
+    }
+
+    public boolean write(Writer out, IntConsumer progress, BooleanSupplier cancelled) throws IOException {
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        line.setLength(0);
+        line.append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"").append(width).append("\" height=\"")
+                .append(height).append("\" viewBox=\"0 0 ").append(width).append(' ').append(height).append("\">\n");
+        // Shapes are stroked with square caps and mitered joins, freehand strokes with
+        // round ones, as on the canvas
+        line.append("<style>.s{fill:none;stroke-linecap:square;stroke-miterlimit:10}")
+                .append(".f{fill:none;stroke-linecap:round;stroke-linejoin:round}</style>\n");
+        if (background.getAlpha() > 0) {
+            line.append("<rect width=\"100%\" height=\"100%\"");
+            paint("fill", background);
+            line.append("/>\n");
+        }
+        flush(out);
+
+        int written = 0;
+        for (int l = 0; l < layers.size(); l++) {
+            DisplayList.Item[] items = layers.get(l);
+            Color[] itemFills = fills.get(l);
+            out.write("<g>\n");
+            for (int i = 0; i < items.length; i++) {
+                if (++written % REPORT_INTERVAL == 0) {
+                    if (cancelled.getAsBoolean()) {
+                        return false;
+                    }
+                    progress.accept(written);
+                }
+                line.setLength(0);
+                element(items[i], itemFills[i]);
+                flush(out);
+            }
+            out.write("</g>\n");
+        }
+        out.write("</svg>\n");
+        progress.accept(written);
+        return true;
+    }
+
+    // Writes the line out without making a string of it
+    private void flush(Writer out) throws IOException {
+        int length = line.length();
+        if (chars.length < length) {
+            chars = new char[Math.max(length, 2 * chars.length)];
+        }
+        line.getChars(0, length, chars, 0);
+        out.write(chars, 0, length);
+    }
+
+    // Appends one item as an element, ending the line
+    private void element(DisplayList.Item item, Color fill) {
+        if (item.getText() != null && textAsPaths) {
+            line.append("<path d=\"");
+            path(item.getText().getOutline());
+            line.append('"');
+            paint("fill", item.getStrokeColor());
+            line.append("/>\n");
+            return;
+        }
+        if (item.getText() != null) {
+            text(item.getText(), item.getStrokeColor());
+            return;
+        }
+        Shape shape = item.getShape();
+        if (item.getStroke() != null) {
+            line.append("<path class=\"f\" d=\"");
+            path(shape);
+            line.append('"');
+        } else if (shape instanceof Line2D) {
+            Line2D l = (Line2D) shape;
+            line.append("<line class=\"s\"");
+            attribute("x1", l.getX1());
+            attribute("y1", l.getY1());
+            attribute("x2", l.getX2());
+            attribute("y2", l.getY2());
+        } else if (shape instanceof Rectangle2D) {
+            Rectangle2D r = (Rectangle2D) shape;
+            line.append("<rect class=\"s\"");
+            attribute("x", r.getX());
+            attribute("y", r.getY());
+            attribute("width", r.getWidth());
+            attribute("height", r.getHeight());
+        } else if (shape instanceof Ellipse2D) {
+            Ellipse2D e = (Ellipse2D) shape;
+            line.append("<ellipse class=\"s\"");
+            attribute("cx", e.getCenterX());
+            attribute("cy", e.getCenterY());
+            attribute("rx", e.getWidth() / 2);
+            attribute("ry", e.getHeight() / 2);
+        } else {
+            line.append("<path class=\"s\" d=\"");
+            path(shape);
+            line.append('"');
+        }
+        if (item.getStroke() == null && fill != null && fill.getAlpha() > 0) {
+            paint("fill", fill);
+        }
+        paint("stroke", item.getStrokeColor());
+        attribute("stroke-width", item.getStrokeWidth());
+        line.append("/>\n");
+    }
+
+    private void text(TextLabel label, Color color) {
+        Font font = label.getFont();
+        line.append("<text xml:space=\"preserve\"");
+        attribute("x", label.getX());
+        attribute("y", label.getY());
+        line.append(" font-family=\"");
+        family(font);
+        line.append('"');
+        attribute("font-size", font.getSize2D());
+        if (font.isBold()) {
+            line.append(" font-weight=\"bold\"");
+        }
+        if (font.isItalic()) {
+            line.append(" font-style=\"italic\"");
+        }
+        paint("fill", color);
+        line.append('>');
+        escape(label.getText());
+        line.append("</text>\n");
+    }
+
+    // The font asked for, with the generic family it falls back to
+    private void family(Font font) {
+        switch (font.getName()) {
+            case Font.SERIF:
+                line.append("serif");
+                break;
+            case Font.MONOSPACED:
+            case Font.DIALOG_INPUT:
+                line.append("monospace");
+                break;
+            case Font.SANS_SERIF:
+            case Font.DIALOG:
+                line.append("sans-serif");
+                break;
+            default:
+                line.append('\'');
+                escape(font.getName());
+                line.append("',sans-serif");
+        }
+    }
+
+    // Path data with a leading absolute move and relative segments after it
+    private void path(Shape shape) {
+        PathIterator it = shape.getPathIterator(null);
+        double[] c = new double[6];
+        boolean drawn = false; // the path has a segment after its first move
+        boolean first = true;
+        long startX = 0; // where the current subpath began, which closing it returns to
+        long startY = 0;
+        while (!it.isDone()) {
+            switch (it.currentSegment(c)) {
+                case PathIterator.SEG_MOVETO:
+                    if (first) {
+                        lastX = hundredths(c[0]);
+                        lastY = hundredths(c[1]);
+                        line.append('M');
+                        fixed(lastX);
+                        line.append(' ');
+                        fixed(lastY);
+                        first = false;
+                    } else {
+                        line.append('m');
+                        points(c, 1);
+                    }
+                    startX = lastX;
+                    startY = lastY;
+                    break;
+                case PathIterator.SEG_LINETO:
+                    line.append('l');
+                    points(c, 1);
+                    drawn = true;
+                    break;
+                case PathIterator.SEG_QUADTO:
+                    line.append('q');
+                    points(c, 2);
+                    drawn = true;
+                    break;
+                case PathIterator.SEG_CUBICTO:
+                    line.append('c');
+                    points(c, 3);
+                    drawn = true;
+                    break;
+                case PathIterator.SEG_CLOSE:
+                    line.append('z');
+                    lastX = startX;
+                    lastY = startY;
+                    break;
+            }
+            it.next();
+        }
+        if (!first && !drawn) {
+            // A lone point, which the canvas draws as a dot of the stroke width
+            line.append("l0 0");
+        }
+    }
+
+    // Appends the points of a segment relative to where it starts, which the last one
+    // then becomes. Deltas are taken between rounded positions, so they do not drift.
+    private void points(double[] c, int count) {
+        long startX = lastX;
+        long startY = lastY;
+        for (int i = 0; i < count; i++) {
+            long x = hundredths(c[2 * i]);
+            long y = hundredths(c[2 * i + 1]);
+            if (i > 0) {
+                line.append(' ');
+            }
+            fixed(x - startX);
+            if (y - startY >= 0) {
+                line.append(' ');
+            }
+            fixed(y - startY);
+            lastX = x;
+            lastY = y;
+        }
+    }
+
+    private void attribute(String name, double value) {
+        line.append(' ').append(name).append("=\"");
+        fixed(hundredths(value));
+        line.append('"');
+    }
+
+    private void paint(String name, Color color) {
+        line.append(' ').append(name).append("=\"#");
+        int rgb = color.getRGB();
+        for (int shift = 20; shift >= 0; shift -= 4) {
+            line.append(Character.forDigit((rgb >> shift) & 0xF, 16));
+        }
+        line.append('"');
+        if (color.getAlpha() < 255) {
+            line.append(' ').append(name).append("-opacity=\"");
+            fixed(Math.round(color.getAlpha() * 100 / 255.0));
+            line.append('"');
+        }
+    }
+
+    // Text content or an attribute value, with the characters XML reserves escaped and
+    // those it cannot hold dropped
+    private void escape(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            switch (ch) {
+                case '&':
+                    line.append("&amp;");
+                    break;
+                case '<':
+                    line.append("&lt;");
+                    break;
+                case '>':
+                    line.append("&gt;");
+                    break;
+                case '"':
+                    line.append("&quot;");
+                    break;
+                case '\'':
+                    line.append("&apos;");
+                    break;
+                default:
+                    if (ch >= 0x20 || ch == '\t') {
+                        line.append(ch);
+                    }
+            }
+        }
+    }
+
+    private static long hundredths(double value) {
+        return Math.round(value * 100);
+    }
+
+    // Appends a number given in hundredths, without trailing zeros
+    private void fixed(long hundredths) {
+        if (hundredths < 0) {
+            line.append('-');
+            hundredths = -hundredths;
+        }
+        line.append(hundredths / 100);
+        int fraction = (int) (hundredths % 100);
+        if (fraction != 0) {
+            line.append('.').append(fraction / 10);
+            if (fraction % 10 != 0) {
+                line.append(fraction % 10);
+            }
+        }
+    }
+}
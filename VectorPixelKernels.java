@@ -0,0 +1,164 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// The pixel kernels on the vector API, as many pixels at a time as the CPU's widest
+// registers hold. Each lane does the scalar kernel's integer arithmetic, quotients
+// included (see divide()), so the pixels come out the same. Runs shorter than a vector,
+// and the ends of longer ones, use the scalar kernels.
+//
+// Only loaded, by name, when the jdk.incubator.vector module is present.
+public class VectorPixelKernels extends PixelKernels {
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final float TWO_23 = 1 << 23;
+
+    @Override
+    public int lanes() {
+        return INTS.length();
+    }
+
+    @Override
+    public void fill(int[] pixels, int from, int to, int argb) {
+        IntVector color = IntVector.broadcast(INTS, argb);
+        int i = from;
+        for (int end = from + INTS.loopBound(to - from); i < end; i += INTS.length()) {
+            color.intoArray(pixels, i);
+        }
+        super.fill(pixels, i, to, argb);
+    }
+
+    @Override
+    public void swap(int[] a, int aPos, int[] b, int bPos, int length) {
+        int i = 0;
+        for (int end = INTS.loopBound(length); i < end; i += INTS.length()) {
+            IntVector va = IntVector.fromArray(INTS, a, aPos + i);
+            IntVector vb = IntVector.fromArray(INTS, b, bPos + i);
+            vb.intoArray(a, aPos + i);
+            va.intoArray(b, bPos + i);
+        }
+        super.swap(a, aPos + i, b, bPos + i, length - i);
+    }
+
+    @Override
+    public void blend(int[] pixels, int from, int to, int argb) {
+        int sa = argb >>> 24;
+        int inv = 255 - sa;
+        int r = ((argb >> 16) & 0xFF) * sa;
+        int g = ((argb >> 8) & 0xFF) * sa;
+        int b = (argb & 0xFF) * sa;
+        int i = from;
+        for (int end = from + INTS.loopBound(to - from); i < end; i += INTS.length()) {
+            IntVector d = IntVector.fromArray(INTS, pixels, i);
+            IntVector weight = d.lanewise(VectorOperators.LSHR, 24).mul(inv); // da * inv
+            IntVector outA = divide255(weight).add(sa);
+            // Where outA is 0, so are the color sums, and the pixel comes out 0 as it should
+            IntVector divisor = outA.max(1);
+            IntVector outR = divide(divide255(channel(d, 16).mul(weight)).add(r), divisor);
+            IntVector outG = divide(divide255(channel(d, 8).mul(weight)).add(g), divisor);
+            IntVector outB = divide(divide255(channel(d, 0).mul(weight)).add(b), divisor);
+            pack(outA, outR, outG, outB).intoArray(pixels, i);
+        }
+        super.blend(pixels, i, to, argb);
+    }
+
+    @Override
+    public void blendOver(int[] src, int srcPos, int[] dst, int dstPos, int length) {
+        int i = 0;
+        for (int end = INTS.loopBound(length); i < end; i += INTS.length()) {
+            IntVector s = IntVector.fromArray(INTS, src, srcPos + i);
+            IntVector sa = s.lanewise(VectorOperators.LSHR, 24);
+            // Runs of clear or opaque pixels are common on layers and take no arithmetic
+            if (sa.eq(0).allTrue()) {
+                continue;
+            }
+            if (sa.eq(255).allTrue()) {
+                s.intoArray(dst, dstPos + i);
+                continue;
+            }
+            IntVector d = IntVector.fromArray(INTS, dst, dstPos + i);
+            IntVector dw = divide255(d.lanewise(VectorOperators.LSHR, 24).mul(sa.neg().add(255)).add(127));
+            IntVector oa = sa.add(dw);
+            IntVector half = oa.lanewise(VectorOperators.LSHR, 1);
+            IntVector divisor = oa.max(1);
+            IntVector r = divide(channel(s, 16).mul(sa).add(channel(d, 16).mul(dw)).add(half), divisor);
+            IntVector g = divide(channel(s, 8).mul(sa).add(channel(d, 8).mul(dw)).add(half), divisor);
+            IntVector b = divide(channel(s, 0).mul(sa).add(channel(d, 0).mul(dw)).add(half), divisor);
+            // Opaque sources come out of the arithmetic as they are, and so do clear ones
+            // over anything but clear pixels. The destination is kept wherever the source
+            // is clear, selected with a mask of all ones in those lanes.
+            IntVector keep = sa.sub(1).lanewise(VectorOperators.ASHR, 31);
+            d.and(keep).or(pack(oa, r, g, b).and(keep.not())).intoArray(dst, dstPos + i);
+        }
+        super.blendOver(src, srcPos + i, dst, dstPos + i, length - i);
+    }
+
+    @Override
+    public int matchForward(int[] pixels, int from, int to, int seed, int tolerance) {
+        int i = from;
+        for (int end = from + INTS.loopBound(to - from); i < end; i += INTS.length()) {
+            VectorMask<Integer> match = matches(IntVector.fromArray(INTS, pixels, i), seed, tolerance);
+            if (!match.allTrue()) {
+                return i + match.not().firstTrue();
+            }
+        }
+        return super.matchForward(pixels, i, to, seed, tolerance);
+    }
+
+    @Override
+    public int matchBackward(int[] pixels, int from, int to, int seed, int tolerance) {
+        int i = to;
+        for (int end = to - INTS.loopBound(to - from); i > end; i -= INTS.length()) {
+            VectorMask<Integer> match = matches(IntVector.fromArray(INTS, pixels, i - INTS.length()), seed, tolerance);
+            if (!match.allTrue()) {
+                return i - INTS.length() + match.not().lastTrue() + 1;
+            }
+        }
+        return super.matchBackward(pixels, from, i, seed, tolerance);
+    }
+
+    private static VectorMask<Integer> matches(IntVector p, int seed, int tolerance) {
+        if (tolerance == 0) {
+            return p.eq(seed);
+        }
+        return p.lanewise(VectorOperators.LSHR, 24).sub(seed >>> 24).abs().compare(VectorOperators.LE, tolerance)
+                .and(channel(p, 16).sub((seed >> 16) & 0xFF).abs().compare(VectorOperators.LE, tolerance))
+                .and(channel(p, 8).sub((seed >> 8) & 0xFF).abs().compare(VectorOperators.LE, tolerance))
+                .and(channel(p, 0).sub(seed & 0xFF).abs().compare(VectorOperators.LE, tolerance));
+    }
+
+    private static IntVector channel(IntVector p, int shift) {
+        return p.lanewise(VectorOperators.LSHR, shift).and(0xFF);
+    }
+
+    private static IntVector pack(IntVector a, IntVector r, IntVector g, IntVector b) {
+        return a.lanewise(VectorOperators.LSHL, 24).or(r.lanewise(VectorOperators.LSHL, 16))
+                .or(g.lanewise(VectorOperators.LSHL, 8)).or(b);
+    }
+
+    // Exact integer division of 0 <= n < 2^23 by 1 <= divisor < 2^23. There is no integer
+    // division across lanes, and converting to floats and back is not compiled to vector
+    // instructions yet, so the ints are turned into floats through their bits. The float
+    // quotient, rounded, is at most one off, which the remainder then corrects.
+    private static IntVector divide(IntVector n, IntVector divisor) {
+        IntVector q = toFloat(n).div(toFloat(divisor)).add(TWO_23).reinterpretAsInts().and(0x7FFFFF);
+        IntVector remainder = n.sub(q.mul(divisor));
+        // Minus one where the remainder is negative, plus one where it is the divisor or more
+        return q.add(remainder.lanewise(VectorOperators.ASHR, 31))
+                .sub(divisor.sub(1).sub(remainder).lanewise(VectorOperators.ASHR, 31));
+    }
+
+    // 0 <= n < 2^23 as floats: placed in the mantissa of 2^23, which is then taken off
+    private static FloatVector toFloat(IntVector n) {
+        return n.or(0x4B000000).reinterpretAsFloats().sub(TWO_23);
+    }
+
+    // Exact n / 255 for 0 <= n < 2^24: n/256 + n/65536 + n/2^24 is at most one short, and
+    // the remainder is then below 510
+    private static IntVector divide255(IntVector n) {
+        IntVector q = n.add(n.lanewise(VectorOperators.LSHR, 8)).add(n.lanewise(VectorOperators.LSHR, 16))
+                .lanewise(VectorOperators.LSHR, 8);
+        return q.add(n.sub(q.mul(255)).add(1).lanewise(VectorOperators.LSHR, 8));
+    }
+}
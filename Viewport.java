@@ -0,0 +1,137 @@
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+
+// Maps between panel and canvas coordinates: the panel shows the canvas scaled by the
+// zoom, with the canvas point at the origin in the panel's top left corner. The view stays
+// fitted to the panel, whatever its size, until it is zoomed or panned.
+public class Viewport {
+    public static final double MIN_ZOOM = 1.0 / 64;
+    public static final double MAX_ZOOM = 32;
+
+    private double zoom = 1; // panel pixels per canvas pixel
+    private double originX;
+    private double originY;
+    private boolean fitted = true;
+    private int panelWidth = 1;
+    private int panelHeight = 1;
+    private int canvasWidth = 1;
+    private int canvasHeight = 1;
+
+    public double getZoom() {
+        return zoom;
+    }
+
+    public boolean isFitted() {
+        return fitted;
+    }
+
+    public double getOriginX() {
+        return originX;
+    }
+
+    public double getOriginY() {
+        return originY;
+    }
+
+    // Shows the view as it was at a zoom and origin, as when a recorded trace is replayed
+    public void show(double zoom, double originX, double originY) {
+        this.zoom = zoom;
+        this.originX = originX;
+        this.originY = originY;
+        fitted = false;
+    }
+
+    // Updates the sizes, refitting a fitted view. Returns whether the mapping changed.
+    public boolean resize(int panelWidth, int panelHeight, int canvasWidth, int canvasHeight) {
+        if (panelWidth == this.panelWidth && panelHeight == this.panelHeight && canvasWidth == this.canvasWidth
+                && canvasHeight == this.canvasHeight) {
+            return false;
+        }
+        this.panelWidth = Math.max(1, panelWidth);
+        this.panelHeight = Math.max(1, panelHeight);
+        this.canvasWidth = canvasWidth;
+        this.canvasHeight = canvasHeight;
+        if (fitted) {
+            fit();
+        } else {
+            clampOrigin();
+        }
+        return true;
+    }
+
+    // Shows the whole canvas, centred
+    public void fit() {
+        zoom = Math.min((double) panelWidth / canvasWidth, (double) panelHeight / canvasHeight);
+        originX = (canvasWidth - panelWidth / zoom) / 2;
+        originY = (canvasHeight - panelHeight / zoom) / 2;
+        fitted = true;
+    }
+
+    // Scales the view by a factor, keeping the canvas point under the panel point in place
+    public void zoomAt(double factor, int panelX, int panelY) {
+        double x = originX + panelX / zoom;
+        double y = originY + panelY / zoom;
+        zoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom * factor));
+        originX = x - panelX / zoom;
+        originY = y - panelY / zoom;
+        fitted = false;
+        clampOrigin();
+    }
+
+    // Moves the canvas by whole panel pixels. Returns the distance actually moved, which
+    // is less where it would take the canvas out of view.
+    public int[] panBy(int dx, int dy) {
+        double oldX = originX;
+        double oldY = originY;
+        originX -= dx / zoom;
+        originY -= dy / zoom;
+        fitted = false;
+        clampOrigin();
+        // Moves cut short by the clamp are rounded to whole pixels so the panel can scroll
+        int movedX = (int) Math.round((oldX - originX) * zoom);
+        int movedY = (int) Math.round((oldY - originY) * zoom);
+        originX = oldX - movedX / zoom;
+        originY = oldY - movedY / zoom;
+        return new int[] { movedX, movedY };
+    }
+
+    // Keeps at least half the panel over the canvas
+    private void clampOrigin() {
+        double viewWidth = panelWidth / zoom;
+        double viewHeight = panelHeight / zoom;
+        originX = Math.max(-viewWidth / 2, Math.min(canvasWidth - viewWidth / 2, originX));
+        originY = Math.max(-viewHeight / 2, Math.min(canvasHeight - viewHeight / 2, originY));
+    }
+
+    public int toCanvasX(int panelX) {
+        return (int) Math.floor(originX + panelX / zoom);
+    }
+
+    public int toCanvasY(int panelY) {
+        return (int) Math.floor(originY + panelY / zoom);
+    }
+
+    // Makes graphics in panel coordinates draw in canvas coordinates
+    public void apply(Graphics2D g) {
+        g.scale(zoom, zoom);
+        g.translate(-originX, -originY);
+    }
+
+    // Panel pixels covering a canvas region, with one pixel of slack for scaling
+    public Rectangle toPanel(Rectangle r) {
+        int x0 = (int) Math.floor((r.x - originX) * zoom);
+        int y0 = (int) Math.floor((r.y - originY) * zoom);
+        int x1 = (int) Math.ceil((r.x + r.width - originX) * zoom);
+        int y1 = (int) Math.ceil((r.y + r.height - originY) * zoom);
+        return new Rectangle(x0 - 1, y0 - 1, x1 - x0 + 2, y1 - y0 + 2);
+    }
+
+    // Canvas pixels covered by a panel region
+    public Rectangle toCanvas(Rectangle r) {
+        int x0 = (int) Math.floor(originX + r.x / zoom);
+        int y0 = (int) Math.floor(originY + r.y / zoom);
+        int x1 = (int) Math.ceil(originX + (r.x + r.width) / zoom);
+        int y1 = (int) Math.ceil(originY + (r.y + r.height) / zoom);
+        return new Rectangle(x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+    }
+}
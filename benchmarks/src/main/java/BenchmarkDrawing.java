@@ -0,0 +1,188 @@
+import bench.Workload;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+// The hot paths the benchmarks time, against a drawing with random shapes on it. The
+// engine has no undo manager, so the drawing operations time rendering alone; undo is
+// measured on its own through undoManager. Positions come from a fixed random walk over
+// the canvas, the way a pointer moves, so runs are repeatable. Fills alternate between two
+// colors so every fill repaints the same pixels.
+public class BenchmarkDrawing implements Workload {
+    private static final int WALK_POINTS = 8192;
+    private static final int STROKE_POINTS = 256;
+    private static final Color NO_FILL = new Color(0, true);
+    private static final Color[] FILLS = { Color.RED, Color.GREEN };
+
+    private int width;
+    private int height;
+    private TiledCanvas canvas;
+    private DrawingEngine engine;
+    private TileUndoManager undoManager;
+    private BufferedImage viewBuffer;
+    private int[] walk; // x, y pairs
+    private int next;
+    private int flip;
+
+    @Override
+    public void setUp(int width, int height, int shapeCount) {
+        this.width = width;
+        this.height = height;
+        canvas = new TiledCanvas(width, height, Color.WHITE.getRGB());
+        engine = new DrawingEngine(canvas, null);
+        undoManager = new TileUndoManager(canvas);
+        viewBuffer = new BufferedImage(1600, 900, BufferedImage.TYPE_INT_RGB);
+
+        Random random = new Random(42);
+        for (int i = 0; i < shapeCount; i++) {
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            int w = 10 + random.nextInt(190);
+            int h = 10 + random.nextInt(190);
+            Color stroke = new Color(random.nextInt(0x1000000));
+            Color fill = i % 4 == 0 ? new Color(random.nextInt(0x1000000)) : NO_FILL;
+            switch (i % 3) {
+                case 0:
+                    engine.drawShape(new Line2D.Double(x, y, x + w, y + h), stroke, 2, NO_FILL);
+                    break;
+                case 1:
+                    engine.drawShape(new Rectangle(x, y, w, h), stroke, 2, fill);
+                    break;
+                default:
+                    engine.drawShape(new Ellipse2D.Double(x, y, w, h), stroke, 2, fill);
+            }
+        }
+        // fillShape's target, on top of everything in the middle
+        engine.drawShape(new Rectangle(width / 2 - 100, height / 2 - 100, 200, 200), Color.BLACK, 2, Color.YELLOW);
+
+        // One undoable edit covering a quarter of the canvas
+        Rectangle quarter = new Rectangle(width / 4, height / 4, width / 2, height / 2);
+        undoManager.beginEdit();
+        undoManager.snapshot(quarter);
+        canvas.fillRect(quarter.x, quarter.y, quarter.width, quarter.height, Color.LIGHT_GRAY.getRGB());
+        undoManager.commitEdit();
+
+        walk = new int[2 * WALK_POINTS];
+        int x = width / 2, y = height / 2;
+        for (int i = 0; i < WALK_POINTS; i++) {
+            x = Math.max(0, Math.min(width - 1, x + random.nextInt(17) - 8));
+            y = Math.max(0, Math.min(height - 1, y + random.nextInt(17) - 8));
+            walk[2 * i] = x;
+            walk[2 * i + 1] = y;
+        }
+    }
+
+    @Override
+    public void tearDown() {
+        undoManager.close();
+    }
+
+    @Override
+    public void freehandSegment() {
+        int i = nextPoint();
+        engine.drawLine(walk[2 * i], walk[2 * i + 1], walk[2 * i + 2], walk[2 * i + 3], Color.BLACK, 2);
+    }
+
+    @Override
+    public Object freehandStroke() {
+        FreehandStroke stroke = new FreehandStroke();
+        for (int n = 0; n < STROKE_POINTS; n++) {
+            int i = nextPoint();
+            stroke.add(walk[2 * i], walk[2 * i + 1]);
+        }
+        stroke.finish();
+        return engine.drawStroke(stroke, Color.BLACK, 2);
+    }
+
+    @Override
+    public Object drawLine() {
+        int i = nextPoint();
+        int x = walk[2 * i], y = walk[2 * i + 1];
+        return engine.drawShape(new Line2D.Double(x, y, x + 150, y + 100), Color.BLUE, 2, NO_FILL);
+    }
+
+    @Override
+    public Object drawRectangle() {
+        int i = nextPoint();
+        return engine.drawShape(new Rectangle(walk[2 * i], walk[2 * i + 1], 150, 100), Color.BLUE, 2, NO_FILL);
+    }
+
+    @Override
+    public Object drawOval() {
+        int i = nextPoint();
+        return engine.drawShape(new Ellipse2D.Double(walk[2 * i], walk[2 * i + 1], 150, 100), Color.BLUE, 2, NO_FILL);
+    }
+
+    @Override
+    public void erase() {
+        int i = nextPoint();
+        engine.erase(walk[2 * i], walk[2 * i + 1], 20);
+    }
+
+    @Override
+    public void snapshot() {
+        int i = nextPoint();
+        undoManager.snapshot(new Rectangle(walk[2 * i] - 100, walk[2 * i + 1] - 100, 200, 200));
+    }
+
+    @Override
+    public Object undoRedo() {
+        undoManager.undo();
+        return undoManager.redo();
+    }
+
+    @Override
+    public Object fillShape() {
+        DisplayList.Item hit = engine.getDisplayList().hitTest(width / 2, height / 2);
+        engine.fillShape(hit, FILLS[flip ^= 1]);
+        return hit;
+    }
+
+    @Override
+    public boolean bucketFill() {
+        return engine.bucketFill(0, 0, 0, FILLS[flip ^= 1]);
+    }
+
+    @Override
+    public Object blitFull() {
+        return blit(new Rectangle(0, 0, width, height));
+    }
+
+    @Override
+    public Object blitDamage() {
+        int i = nextPoint();
+        return blit(new Rectangle(walk[2 * i] - 32, walk[2 * i + 1] - 32, 64, 64));
+    }
+
+    @Override
+    public boolean pngSave() throws IOException {
+        return new ParallelPngEncoder().encode(canvas, OutputStream.nullOutputStream(), rows -> {
+        }, () -> false);
+    }
+
+    // As updateViewBuffer does it
+    private BufferedImage blit(Rectangle region) {
+        double sx = (double) viewBuffer.getWidth() / width;
+        double sy = (double) viewBuffer.getHeight() / height;
+        Graphics2D g2 = viewBuffer.createGraphics();
+        g2.clip(new Rectangle((int) (region.x * sx), (int) (region.y * sy), (int) Math.ceil(region.width * sx) + 1,
+                (int) Math.ceil(region.height * sy) + 1));
+        g2.scale(sx, sy);
+        canvas.drawTo(g2, region);
+        g2.dispose();
+        return viewBuffer;
+    }
+
+    // Index of the next walk point; the one after it is always valid too
+    private int nextPoint() {
+        int index = next;
+        next = next + 2 == WALK_POINTS ? 0 : next + 1;
+        return index;
+    }
+}
@@ -0,0 +1,33 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// The drawing every benchmark runs against, rebuilt before each iteration so benchmarks
+// that add to it do not slow down later iterations
+@State(Scope.Thread)
+public class CanvasState {
+    @Param({ "1024x768", "1920x1080", "3840x2160" })
+    public String canvasSize;
+
+    @Param({ "0", "1000", "10000" })
+    public int shapeCount;
+
+    public Workload drawing;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        String[] size = canvasSize.split("x");
+        drawing = Workload.create();
+        drawing.setUp(Integer.parseInt(size[0]), Integer.parseInt(size[1]), shapeCount);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        drawing.tearDown();
+    }
+}
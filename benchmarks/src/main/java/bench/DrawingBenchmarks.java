@@ -0,0 +1,50 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The tools' rendering: a freehand segment as it is drawn while dragging, a whole
+// freehand stroke (simplify, fit and rasterize), each shape type and one eraser dab
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "--add-modules=jdk.incubator.vector",
+        "-Dsun.java2d.renderer.clip=false" })
+public class DrawingBenchmarks {
+    @Benchmark
+    public void freehandSegment(CanvasState state) {
+        state.drawing.freehandSegment();
+    }
+
+    @Benchmark
+    public Object freehandStroke(CanvasState state) {
+        return state.drawing.freehandStroke();
+    }
+
+    @Benchmark
+    public Object drawLine(CanvasState state) {
+        return state.drawing.drawLine();
+    }
+
+    @Benchmark
+    public Object drawRectangle(CanvasState state) {
+        return state.drawing.drawRectangle();
+    }
+
+    @Benchmark
+    public Object drawOval(CanvasState state) {
+        return state.drawing.drawOval();
+    }
+
+    @Benchmark
+    public void erase(CanvasState state) {
+        state.drawing.erase();
+    }
+}
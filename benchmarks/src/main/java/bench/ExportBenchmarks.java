@@ -0,0 +1,37 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Getting pixels out: the scaled copy paintComponent makes into the panel-sized view
+// buffer, for the whole canvas (after a resize) and for a small damaged region, and
+// encoding the canvas as a PNG
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "--add-modules=jdk.incubator.vector",
+        "-Dsun.java2d.renderer.clip=false" })
+public class ExportBenchmarks {
+    @Benchmark
+    public Object blitFull(CanvasState state) {
+        return state.drawing.blitFull();
+    }
+
+    @Benchmark
+    public Object blitDamage(CanvasState state) {
+        return state.drawing.blitDamage();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public boolean pngSave(CanvasState state) throws Exception {
+        return state.drawing.pngSave();
+    }
+}
@@ -0,0 +1,30 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Both halves of fillShapeOrBackground: hit testing and refilling a shape, and bucket
+// filling the background around the shapes
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "--add-modules=jdk.incubator.vector",
+        "-Dsun.java2d.renderer.clip=false" })
+public class FillBenchmarks {
+    @Benchmark
+    public Object fillShape(CanvasState state) {
+        return state.drawing.fillShape();
+    }
+
+    @Benchmark
+    public boolean bucketFill(CanvasState state) {
+        return state.drawing.bucketFill();
+    }
+}
@@ -0,0 +1,31 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+// What the old saveStateToUndoStack did on every edit, now the tile snapshot taken before
+// a 200x200 change, and an undo followed by a redo of an edit covering a quarter of the
+// canvas
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "--add-modules=jdk.incubator.vector",
+        "-Dsun.java2d.renderer.clip=false" })
+public class UndoBenchmarks {
+    @Benchmark
+    public void snapshot(CanvasState state) {
+        state.drawing.snapshot();
+    }
+
+    @Benchmark
+    public Object undoRedo(CanvasState state) {
+        return state.drawing.undoRedo();
+    }
+}
@@ -0,0 +1,52 @@
+package bench;
+
+// The application's hot paths as the benchmarks see them. The application lives in the
+// default package, which classes in a named package cannot refer to, so BenchmarkDrawing
+// implements this from there and the benchmarks load it by name.
+public interface Workload {
+    // A width x height drawing with shapeCount random shapes on it and one undoable edit
+    void setUp(int width, int height, int shapeCount);
+
+    void tearDown();
+
+    // One segment of a freehand drag
+    void freehandSegment();
+
+    // A whole freehand stroke: gathered, simplified, fitted and rasterized
+    Object freehandStroke();
+
+    Object drawLine();
+
+    Object drawRectangle();
+
+    Object drawOval();
+
+    void erase();
+
+    // The tiles saved before a 200x200 change
+    void snapshot();
+
+    Object undoRedo();
+
+    // Hit test and refill of the shape in the middle of the canvas
+    Object fillShape();
+
+    // Bucket fill of the background at the top left corner
+    boolean bucketFill();
+
+    // Scaled copy of the whole canvas into a panel-sized view buffer
+    Object blitFull();
+
+    // Scaled copy of a 64x64 damaged region into the view buffer
+    Object blitDamage();
+
+    boolean pngSave() throws Exception;
+
+    static Workload create() {
+        try {
+            return (Workload) Class.forName("BenchmarkDrawing").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import org.junit.jupiter.api.Test;
+
+class CollabRelayTest {
+
+    @Test
+    void relaysBatchesToEverySketchpad() throws Exception {
+        CollabRelay relay = new CollabRelay(0);
+        relay.start();
+        CountDownLatch arrived = new CountDownLatch(2);
+        CollabSession first = new CollabSession("localhost", relay.getPort(), 100, 80, -1, arrived::countDown);
+        CollabSession second = new CollabSession("localhost", relay.getPort(), 300, 300, 0, arrived::countDown);
+        try {
+            assertEquals(100, second.getWidth());
+            first.send(new byte[] { 0, 0, 0, 1, 7 });
+            assertTrue(arrived.await(5, TimeUnit.SECONDS));
+        } finally {
+            first.close();
+            second.close();
+            relay.close();
+        }
+    }
+
+    // A negative or oversized length drops the connection instead of the relay allocating it
+    @Test
+    void dropsClientsSendingBadLengths() throws Exception {
+        CollabRelay relay = new CollabRelay(0);
+        relay.start();
+        try {
+            for (int length : new int[] { -1, 0, CollabRelay.MAX_BATCH + 1 }) {
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), relay.getPort())) {
+                    DataOutputStream out = new DataOutputStream(
+                            new DeflaterOutputStream(socket.getOutputStream(), new Deflater(), 512, true));
+                    out.writeByte(CollabRelay.HELLO);
+                    out.writeInt(100);
+                    out.writeInt(100);
+                    out.writeInt(-1);
+                    out.writeByte(CollabRelay.BATCH);
+                    out.writeInt(length);
+                    out.flush();
+
+                    // The relay closes the connection, whatever it had sent by then
+                    socket.setSoTimeout(5000);
+                    byte[] buffer = new byte[1024];
+                    while (socket.getInputStream().read(buffer) >= 0) {
+                        // Drained
+                    }
+                }
+            }
+        } finally {
+            relay.close();
+        }
+    }
+
+    // A sketchpad whose relay sends a bad length ends the session rather than losing its
+    // receiving thread
+    @Test
+    void endsTheSessionOnBadLengths() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Thread fake = new Thread(() -> {
+                try (Socket socket = server.accept()) {
+                    DataOutputStream out = new DataOutputStream(
+                            new DeflaterOutputStream(socket.getOutputStream(), new Deflater(), 512, true));
+                    out.writeByte(CollabRelay.WELCOME);
+                    out.writeInt(1);
+                    out.writeInt(100);
+                    out.writeInt(100);
+                    out.writeInt(-1);
+                    out.writeByte(CollabRelay.BATCH);
+                    out.writeInt(1);
+                    out.writeLong(1);
+                    out.writeInt(-5);
+                    out.flush();
+                    socket.getInputStream().read(new byte[1024]);
+                    Thread.sleep(5000);
+                } catch (IOException | InterruptedException e) {
+                    // Done
+                }
+            });
+            fake.setDaemon(true);
+            fake.start();
+
+            CountDownLatch dropped = new CountDownLatch(1);
+            CollabSession session = new CollabSession("localhost", server.getLocalPort(), 100, 100, -1,
+                    dropped::countDown);
+            try {
+                assertTrue(dropped.await(5, TimeUnit.SECONDS));
+                assertFalse(session.isConnected());
+            } finally {
+                session.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Rectangle;
+import java.awt.geom.Ellipse2D;
+import org.junit.jupiter.api.Test;
+
+class DisplayListTest {
+
+    // The topmost closed shape under the point, from whichever cell of the grid it is in
+    @Test
+    void hitTestsTheTopmostShape() {
+        DisplayList list = new DisplayList(1000, 800);
+        DisplayList.Item big = list.add(new Rectangle(100, 100, 600, 500), Color.BLACK, 2, null);
+        DisplayList.Item oval = list.add(new Ellipse2D.Double(300, 300, 200, 100), Color.BLACK, 2, null);
+
+        assertSame(big, list.hitTest(110, 110));
+        assertSame(big, list.hitTest(690, 590));
+        assertSame(oval, list.hitTest(400, 350));
+        // Inside the oval's bounds but outside the oval
+        assertSame(big, list.hitTest(302, 302));
+        assertNull(list.hitTest(50, 50));
+        assertNull(list.hitTest(-1, 10));
+        assertNull(list.hitTest(10, 5000));
+    }
+
+    // Freehand strokes and text are never filled, so hit tests pass through them
+    @Test
+    void hitTestsSkipStrokesAndText() {
+        DisplayList list = new DisplayList(400, 400);
+        DisplayList.Item shape = list.add(new Rectangle(0, 0, 400, 400), Color.BLACK, 1, null);
+        FreehandStroke stroke = new FreehandStroke();
+        stroke.add(10, 200);
+        stroke.add(390, 200);
+        stroke.finish();
+        list.addStroke(stroke, Color.RED, 20);
+        list.addText(new TextLabel("Label", new Font(Font.SANS_SERIF, Font.PLAIN, 40), 150, 200), Color.BLUE);
+
+        assertSame(shape, list.hitTest(200, 200));
+    }
+
+    // Shapes reaching past the top left edge are indexed in the first cells, and removing
+    // them leaves those cells as they were
+    @Test
+    void clampsShapesOutsideTheCanvas() {
+        DisplayList list = new DisplayList(500, 500);
+        DisplayList.Item outside = list.add(new Rectangle(-300, -300, 400, 400), Color.BLACK, 2, null);
+        assertSame(outside, list.hitTest(50, 50));
+
+        DisplayList.Change.added(list, outside).undo();
+        assertEquals(0, list.size());
+        assertNull(list.hitTest(50, 50));
+
+        DisplayList.Item inside = list.add(new Rectangle(20, 20, 60, 60), Color.BLACK, 2, null);
+        assertEquals(0, inside.getId());
+        assertSame(inside, list.hitTest(50, 50));
+    }
+
+    // Undone items come off the end of every cell they cover, and are redone in order
+    @Test
+    void truncatesAndRedoesAcrossCells() {
+        DisplayList list = new DisplayList(1000, 1000);
+        DisplayList.Item first = list.add(new Rectangle(50, 50, 800, 800), Color.BLACK, 2, null);
+        DisplayList.Item second = list.add(new Rectangle(100, 100, 300, 300), Color.BLACK, 2, null);
+        DisplayList.Item third = list.add(new Rectangle(200, 200, 500, 500), Color.BLACK, 2, null);
+        DisplayList.Change addedSecond = DisplayList.Change.added(list, second);
+        DisplayList.Change addedThird = DisplayList.Change.added(list, third);
+
+        addedThird.undo();
+        addedSecond.undo();
+        assertEquals(1, list.size());
+        assertSame(first, list.hitTest(250, 250));
+        assertSame(first, list.hitTest(600, 600));
+
+        // Only the next item in paint order can come back
+        assertThrows(IllegalStateException.class, addedThird::redo);
+        addedSecond.redo();
+        addedThird.redo();
+        assertEquals(3, list.size());
+        assertSame(third, list.hitTest(250, 250));
+        assertSame(second, list.hitTest(150, 150));
+        assertSame(third, list.hitTest(600, 600));
+    }
+
+    @Test
+    void undoesAndRedoesFills() {
+        DisplayList list = new DisplayList(200, 200);
+        DisplayList.Item item = list.add(new Rectangle(10, 10, 100, 100), Color.BLACK, 2, null);
+        DisplayList.Change filled = DisplayList.Change.filled(item, null, Color.RED);
+        item.setFill(Color.RED);
+
+        filled.undo();
+        assertNull(item.getFill());
+        filled.redo();
+        assertEquals(Color.RED, item.getFill());
+    }
+}
@@ -0,0 +1,240 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DocumentJournalTest {
+    private static final int WIDTH = 600;
+    private static final int HEIGHT = 400;
+
+    @TempDir
+    File dir;
+
+    private TileUndoManager undoManager;
+    private LayerStack layers;
+    private DocumentJournal journal;
+    private DrawingTools tools;
+
+    @BeforeEach
+    void setUp() {
+        undoManager = new TileUndoManager(WIDTH, HEIGHT, 64 << 20, 0);
+        layers = new LayerStack(WIDTH, HEIGHT, 0xFFFFFFFF, undoManager);
+        layers.addLayer();
+        journal = new DocumentJournal(WIDTH, HEIGHT, 0xFFFFFFFF);
+        tools = new DrawingTools(() -> {
+        });
+        tools.setDocument(layers, undoManager, journal);
+    }
+
+    @Test
+    void reopensWithTheSamePixelsAndModel() throws Exception {
+        drawEverything();
+        File file = new File(dir, "drawing.skj");
+        save(file);
+
+        LayerStack reopened = open(file);
+        assertSameDrawing(layers, reopened);
+    }
+
+    // Appended saves, with and without checkpoints, reopen the same as one fresh save
+    @Test
+    void reopensAfterAppendedSaves() throws Exception {
+        File file = new File(dir, "drawing.skj");
+        for (int i = 0; i < 5; i++) {
+            drag("Rectangle", 20 + 30 * i, 20, 80 + 30 * i, 90);
+            drag("Freehand", 10, 200 + 20 * i, 500, 220 + 20 * i);
+            save(file);
+        }
+        click("Fill Color", 40, 40);
+        tools.undo();
+        save(file);
+
+        assertSameDrawing(layers, open(file));
+    }
+
+    @Test
+    void undoTakesShapesOutOfTheModel() throws Exception {
+        drag("Rectangle", 50, 50, 150, 150);
+        DisplayList shapes = layers.getActive().getDisplayList();
+        Color drawn = shapes.get(0).getFill();
+        tools.setFillColor(Color.RED);
+        click("Fill Color", 100, 100);
+
+        tools.undo();
+        assertEquals(drawn, shapes.get(0).getFill());
+        tools.undo();
+        assertEquals(0, shapes.size());
+        assertNull(shapes.hitTest(100, 100));
+
+        // A fill where the rectangle was bucket fills the background instead of bringing
+        // the rectangle back
+        tools.setFillColor(Color.BLUE);
+        click("Fill Color", 100, 100);
+        tools.undo();
+        assertEquals(0, shapes.size());
+
+        File file = new File(dir, "undone.skj");
+        save(file);
+        assertSameDrawing(layers, open(file));
+    }
+
+    @Test
+    void redoPutsShapesBack() throws Exception {
+        drag("Oval", 50, 50, 150, 150);
+        tools.setFillColor(Color.RED);
+        click("Fill Color", 100, 100);
+        File file = new File(dir, "redone.skj");
+        save(file);
+
+        tools.undo();
+        tools.undo();
+        save(file);
+        tools.redo();
+        tools.redo();
+        save(file);
+
+        DisplayList shapes = layers.getActive().getDisplayList();
+        assertEquals(1, shapes.size());
+        assertEquals(Color.RED, shapes.get(0).getFill());
+        assertSameDrawing(layers, open(file));
+    }
+
+    // An undo restores the layer it was drawn on, whichever is active by then
+    @Test
+    void undoesOnTheLayerItWasDrawnOn() throws Exception {
+        drag("Rectangle", 50, 50, 150, 150);
+        Layer first = layers.getActive();
+        tools.addLayer();
+        tools.undo();
+        assertEquals(0, first.getDisplayList().size());
+
+        File file = new File(dir, "layers.skj");
+        save(file);
+        assertSameDrawing(layers, open(file));
+    }
+
+    // A record cut short by an interrupted save ends the document, and the next save
+    // writes over it
+    @Test
+    void ignoresARecordCutShort() throws Exception {
+        File file = new File(dir, "cut.skj");
+        drag("Rectangle", 50, 50, 150, 150);
+        save(file);
+        drag("Oval", 300, 50, 400, 150);
+        save(file);
+        LayerStack saved = open(file);
+        long complete = file.length();
+        tools.setFillColor(Color.RED);
+        click("Fill Color", 100, 100);
+        save(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(complete + 3);
+        }
+
+        journal = DocumentJournal.open(file);
+        undoManager = new TileUndoManager(WIDTH, HEIGHT, 64 << 20, 0);
+        layers = new LayerStack(WIDTH, HEIGHT, 0xFFFFFFFF, undoManager);
+        journal.replay(layers);
+        assertSameDrawing(saved, layers);
+
+        tools.setDocument(layers, undoManager, journal);
+        click("Fill Color", 350, 100);
+        save(file);
+        assertSameDrawing(layers, open(file));
+    }
+
+    @Test
+    void rejectsFilesThatAreNotDocuments() throws Exception {
+        File file = new File(dir, "notes.skj");
+        Files.writeString(file.toPath(), "not a sketch document");
+
+        assertThrows(IOException.class, () -> DocumentJournal.open(file));
+    }
+
+    private void drawEverything() {
+        tools.setColor(Color.BLUE);
+        drag("Line", 10, 10, 300, 200);
+        drag("Rectangle", 50, 50, 200, 150);
+        drag("Oval", 250, 100, 400, 300);
+        drag("Freehand", 20, 300, 580, 380);
+        tools.setFillColor(new Color(0x8000FF00, true));
+        click("Fill Color", 100, 100);
+        click("Fill Color", 500, 50);
+        tools.setAction("Text");
+        tools.press(300, 30);
+        tools.type("Sketch");
+        tools.commitText();
+        tools.setAction("Erase");
+        tools.setEraserSize(20);
+        tools.press(60, 60);
+        tools.drag(120, 60);
+        tools.applyQueuedDrags();
+        tools.release(120, 60);
+        tools.addLayer();
+        drag("Rectangle", 100, 250, 350, 350);
+    }
+
+    private void drag(String action, int x1, int y1, int x2, int y2) {
+        tools.setAction(action);
+        tools.press(x1, y1);
+        for (int i = 1; i <= 8; i++) {
+            tools.drag(x1 + (x2 - x1) * i / 8, y1 + (y2 - y1) * i / 8 + (i % 2) * 5);
+            tools.applyQueuedDrags();
+        }
+        tools.release(x2, y2);
+    }
+
+    private void click(String action, int x, int y) {
+        tools.setAction(action);
+        tools.click(x, y);
+    }
+
+    private void save(File file) throws Exception {
+        DocumentJournal.Save save = journal.prepareSave(file, layers);
+        save.write();
+        journal.saved(save);
+    }
+
+    private static LayerStack open(File file) throws Exception {
+        DocumentJournal opened = DocumentJournal.open(file);
+        LayerStack stack = new LayerStack(opened.getWidth(), opened.getHeight(), opened.getBackground(), null);
+        opened.replay(stack);
+        return stack;
+    }
+
+    private static void assertSameDrawing(LayerStack expected, LayerStack actual) {
+        List<Layer> a = expected.getLayers();
+        List<Layer> b = actual.getLayers();
+        assertEquals(a.size(), b.size());
+        for (int l = 0; l < a.size(); l++) {
+            TiledCanvas ca = a.get(l).getCanvas();
+            TiledCanvas cb = b.get(l).getCanvas();
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    if (ca.getPixel(x, y) != cb.getPixel(x, y)) {
+                        assertEquals(ca.getPixel(x, y), cb.getPixel(x, y), "layer " + l + " pixel " + x + "," + y);
+                    }
+                }
+            }
+            DisplayList da = a.get(l).getDisplayList();
+            DisplayList db = b.get(l).getDisplayList();
+            assertEquals(da.size(), db.size(), "shapes on layer " + l);
+            for (int i = 0; i < da.size(); i++) {
+                assertEquals(da.get(i).getBounds(), db.get(i).getBounds());
+                Color fa = da.get(i).getFill();
+                Color fb = db.get(i).getFill();
+                assertEquals(fa == null ? 0 : fa.getRGB(), fb == null ? 0 : fb.getRGB());
+            }
+        }
+        assertEquals(expected.getActive().getId(), actual.getActive().getId());
+    }
+}
@@ -0,0 +1,55 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Rectangle;
+import org.junit.jupiter.api.Test;
+
+class FloodFillTest {
+    private static final int WHITE = 0xFFFFFFFF;
+    private static final int RED = 0xFFFF0000;
+
+    // A fill inside an outlined rectangle stops at the outline, across canvas tiles
+    @Test
+    void fillsTheEnclosedRegion() {
+        TiledCanvas canvas = new TiledCanvas(700, 600, WHITE);
+        canvas.draw(new Rectangle(0, 0, 700, 600), g -> {
+            g.setColor(Color.BLACK);
+            g.setStroke(new BasicStroke(1));
+            g.drawRect(100, 100, 400, 300);
+        });
+        FloodFill fill = new FloodFill(canvas);
+
+        Rectangle region = fill.findRegion(300, 250, 0);
+        fill.paint(RED);
+
+        assertEquals(new Rectangle(101, 101, 399, 299), region);
+        assertEquals(399L * 299, fill.getFilledPixels());
+        assertEquals(RED, canvas.getPixel(101, 101));
+        assertEquals(RED, canvas.getPixel(499, 399));
+        assertEquals(0xFF000000, canvas.getPixel(100, 100));
+        assertEquals(WHITE, canvas.getPixel(50, 50));
+    }
+
+    // Pixels within the tolerance join the region, others bound it
+    @Test
+    void honoursTheTolerance() {
+        TiledCanvas canvas = new TiledCanvas(100, 10, WHITE);
+        canvas.fillRect(50, 0, 10, 10, 0xFFF0F0F0);
+        canvas.fillRect(60, 0, 10, 10, 0xFF808080);
+        FloodFill fill = new FloodFill(canvas);
+
+        assertEquals(new Rectangle(0, 0, 50, 10), fill.findRegion(0, 0, 0));
+        assertEquals(new Rectangle(0, 0, 60, 10), fill.findRegion(0, 0, 16));
+        assertEquals(new Rectangle(0, 0, 100, 10), fill.findRegion(0, 0, 128));
+    }
+
+    @Test
+    void ignoresSeedsOutsideTheCanvas() {
+        FloodFill fill = new FloodFill(new TiledCanvas(10, 10, WHITE));
+
+        assertNull(fill.findRegion(-1, 5, 0));
+        assertNull(fill.findRegion(5, 10, 0));
+    }
+}
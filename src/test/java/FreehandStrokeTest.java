@@ -0,0 +1,72 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.geom.PathIterator;
+import org.junit.jupiter.api.Test;
+
+class FreehandStrokeTest {
+
+    // Points along a straight line are dropped down to its ends
+    @Test
+    void simplifiesStraightInputToItsEnds() {
+        FreehandStroke stroke = new FreehandStroke();
+        for (int i = 0; i <= 100; i++) {
+            stroke.add(i, 2 * i + (i % 2) * 0.3f);
+        }
+        stroke.finish();
+
+        assertEquals(2, stroke.getPointCount());
+        float[] points = stroke.getPoints();
+        assertEquals(0, points[0]);
+        assertEquals(0, points[1]);
+        assertEquals(100, points[2]);
+        assertEquals(200, points[3]);
+    }
+
+    // No input point lies further than the tolerance from the simplified stroke, and the
+    // corners of a zigzag are kept
+    @Test
+    void keepsInputWithinTolerance() {
+        FreehandStroke stroke = new FreehandStroke();
+        float[] input = new float[2 * 400];
+        for (int i = 0; i < 400; i++) {
+            input[2 * i] = i;
+            input[2 * i + 1] = (float) (40 * Math.sin(i / 15.0));
+            stroke.add(input[2 * i], input[2 * i + 1]);
+        }
+        stroke.finish();
+
+        assertTrue(stroke.getPointCount() < 100, "kept " + stroke.getPointCount());
+        for (int i = 0; i < 400; i++) {
+            assertTrue(stroke.distanceTo(input[2 * i], input[2 * i + 1]) <= FreehandStroke.SIMPLIFY_TOLERANCE + 1e-4);
+        }
+    }
+
+    // The fitted curve is one cubic per segment and passes through every kept point
+    @Test
+    void fitsACurveThroughThePoints() {
+        float[] points = { 0, 0, 50, 80, 100, 0, 150, 80 };
+        FreehandStroke stroke = new FreehandStroke(points, 4);
+
+        PathIterator it = stroke.getPath().getPathIterator(null);
+        float[] c = new float[6];
+        assertEquals(PathIterator.SEG_MOVETO, it.currentSegment(c));
+        assertEquals(0, c[0]);
+        for (int i = 1; i < 4; i++) {
+            it.next();
+            assertEquals(PathIterator.SEG_CUBICTO, it.currentSegment(c));
+            assertEquals(points[2 * i], c[4]);
+            assertEquals(points[2 * i + 1], c[5]);
+        }
+        it.next();
+        assertTrue(it.isDone());
+    }
+
+    @Test
+    void aSinglePointIsADot() {
+        FreehandStroke stroke = new FreehandStroke(new float[] { 10, 20 }, 1);
+
+        assertEquals(5, stroke.distanceTo(13, 24), 1e-9);
+        assertTrue(stroke.getBounds(4).contains(10, 20));
+    }
+}
@@ -0,0 +1,87 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ImageImporterTest {
+    @TempDir
+    File dir;
+
+    // A large image is subsampled by the smallest whole factor that fits it, keeping every
+    // n-th pixel, and centered in the area
+    @Test
+    void subsamplesImagesLargerThanTheArea() throws Exception {
+        BufferedImage source = pattern(1200, 800);
+        File file = write(source);
+        int[] last = new int[1];
+
+        ImageImporter.Imported imported = ImageImporter.read(file, new Rectangle(100, 50, 320, 240), 1000, 600,
+                percent -> last[0] = percent, () -> false);
+
+        assertEquals(4, imported.getSubsampling());
+        assertEquals(new Rectangle(110, 70, 300, 200), imported.getBounds());
+        assertEquals(100, last[0]);
+        TiledCanvas pixels = imported.getPixels();
+        for (int y = 0; y < 200; y++) {
+            for (int x = 0; x < 300; x++) {
+                assertEquals(source.getRGB(4 * x, 4 * y), pixels.getPixel(110 + x, 70 + y), "pixel " + x + "," + y);
+            }
+        }
+        assertEquals(0, pixels.getPixel(109, 70));
+        assertEquals(0, pixels.getPixel(410, 269));
+    }
+
+    @Test
+    void readsImagesThatFitAsTheyAre() throws Exception {
+        BufferedImage source = pattern(50, 30);
+
+        ImageImporter.Imported imported = ImageImporter.read(write(source), new Rectangle(0, 0, 200, 100), 200, 100,
+                percent -> {
+                }, () -> false);
+
+        assertEquals(1, imported.getSubsampling());
+        assertEquals(new Rectangle(75, 35, 50, 30), imported.getBounds());
+        assertEquals(source.getRGB(49, 29), imported.getPixels().getPixel(124, 64));
+    }
+
+    @Test
+    void returnsNothingWhenCancelled() throws Exception {
+        assertNull(ImageImporter.read(write(pattern(400, 400)), new Rectangle(0, 0, 100, 100), 100, 100,
+                percent -> {
+                }, () -> true));
+    }
+
+    @Test
+    void rejectsFilesThatAreNotImages() throws Exception {
+        File file = new File(dir, "notes.png");
+        Files.writeString(file.toPath(), "not an image");
+
+        assertThrows(IOException.class, () -> ImageImporter.read(file, new Rectangle(0, 0, 100, 100), 100, 100,
+                percent -> {
+                }, () -> false));
+    }
+
+    private File write(BufferedImage image) throws IOException {
+        File file = new File(dir, "image" + image.getWidth() + ".png");
+        ImageIO.write(image, "png", file);
+        return file;
+    }
+
+    private static BufferedImage pattern(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, 0xFF000000 | (x * 7 & 0xFF) << 16 | (y * 5 & 0xFF) << 8 | (x + y) & 0xFF);
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,91 @@
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.io.File;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// A recorded trace replayed headless ends with the drawing it was recorded with, and a
+// trace whose checksum does not match is reported
+class InputReplayTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    @TempDir
+    File dir;
+
+    private LayerStack layers;
+    private DrawingTools tools;
+
+    @BeforeEach
+    void setUp() {
+        TileUndoManager undoManager = new TileUndoManager(WIDTH, HEIGHT, 64 << 20, 0);
+        layers = new LayerStack(WIDTH, HEIGHT, 0xFFFFFFFF, undoManager);
+        layers.addLayer();
+        tools = new DrawingTools(() -> {
+        });
+        tools.setDocument(layers, undoManager, new DocumentJournal(WIDTH, HEIGHT, 0xFFFFFFFF));
+    }
+
+    @Test
+    void replaysToTheRecordedDrawing() throws Exception {
+        File file = record(0);
+        InputReplay replay = new InputReplay(InputTrace.read(file), false);
+
+        String report = replay.run();
+        assertTrue(replay.matched(), report);
+        assertTrue(report.endsWith("matches"), report);
+    }
+
+    @Test
+    void reportsADifferentDrawing() throws Exception {
+        File file = record(1);
+        InputReplay replay = new InputReplay(InputTrace.read(file), false);
+
+        String report = replay.run();
+        assertFalse(replay.matched(), report);
+        assertTrue(report.contains("DIFFERS"), report);
+    }
+
+    // Records a drawing made with most tools, ending with its checksum changed by the flip
+    private File record(long flip) throws Exception {
+        File file = new File(dir, "session." + InputTrace.EXTENSION);
+        InputTrace.Recorder recorder = new InputTrace.Recorder(file, WIDTH, HEIGHT, 0xFFFFFFFF, tools);
+        tools.setRecorder(recorder);
+
+        tools.setColor(Color.BLUE);
+        drag("Rectangle", 40, 40, 200, 160);
+        drag("Freehand", 20, 300, 600, 420);
+        drag("Oval", 300, 50, 500, 250);
+        tools.setFillColor(Color.ORANGE);
+        tools.setAction("Fill Color");
+        tools.click(100, 100);
+        tools.click(600, 20);
+        tools.undo();
+        tools.redo();
+        tools.setAction("Text");
+        tools.press(250, 300);
+        tools.release(250, 300);
+        tools.text("Replay");
+        tools.addLayer();
+        tools.setEraserSize(16);
+        drag("Line", 0, 0, 639, 479);
+        drag("Erase", 100, 50, 400, 50);
+
+        tools.setRecorder(null);
+        recorder.finish(InputTrace.checksum(layers) ^ flip);
+        return file;
+    }
+
+    private void drag(String action, int x1, int y1, int x2, int y2) {
+        tools.setAction(action);
+        tools.press(x1, y1);
+        for (int i = 1; i <= 6; i++) {
+            tools.drag(x1 + (x2 - x1) * i / 6, y1 + (y2 - y1) * i / 6);
+            tools.applyQueuedDrags();
+        }
+        tools.release(x2, y2);
+    }
+}
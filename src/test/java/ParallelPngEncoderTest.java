@@ -0,0 +1,73 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.zip.Adler32;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+
+class ParallelPngEncoderTest {
+
+    // Several bands, a partial last tile and blank tiles, read back by ImageIO
+    @Test
+    void roundTripsThroughImageIO() throws Exception {
+        TiledCanvas canvas = new TiledCanvas(700, 300, 0xFFFFFFFF);
+        Random random = new Random(1);
+        int[] noise = new int[200 * 150];
+        for (int i = 0; i < noise.length; i++) {
+            noise[i] = random.nextInt();
+        }
+        canvas.setRect(420, 100, 200, 150, noise, 0, 200);
+        canvas.draw(new Rectangle(0, 0, 300, 300), g -> {
+            g.setColor(new Color(0x80FF0000, true));
+            g.fillOval(20, 20, 250, 250);
+        });
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(new ParallelPngEncoder().encode(canvas, out, rows -> {
+        }, () -> false));
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(700, image.getWidth());
+        assertEquals(300, image.getHeight());
+        for (int y = 0; y < 300; y++) {
+            for (int x = 0; x < 700; x++) {
+                assertEquals(canvas.getPixel(x, y), image.getRGB(x, y), "pixel " + x + "," + y);
+            }
+        }
+    }
+
+    @Test
+    void stopsWhenCancelled() throws Exception {
+        TiledCanvas canvas = new TiledCanvas(64, 1024, 0xFF000000);
+        assertFalse(new ParallelPngEncoder().encode(canvas, new ByteArrayOutputStream(), rows -> {
+        }, () -> true));
+    }
+
+    @Test
+    void combinesAdler32OfConcatenatedBlocks() {
+        Random random = new Random(2);
+        for (int length : new int[] { 0, 1, 5552, 65521, 100000 }) {
+            byte[] first = new byte[1 + random.nextInt(70000)];
+            byte[] second = new byte[length];
+            random.nextBytes(first);
+            random.nextBytes(second);
+
+            Adler32 a = new Adler32();
+            a.update(first);
+            Adler32 b = new Adler32();
+            b.update(second);
+            Adler32 whole = new Adler32();
+            whole.update(first);
+            whole.update(second);
+
+            assertEquals(whole.getValue(), ParallelPngEncoder.combineAdler32(a.getValue(), b.getValue(), length));
+        }
+    }
+}
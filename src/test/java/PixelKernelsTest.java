@@ -0,0 +1,103 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+// The vector kernels must give the scalar kernels' pixels exactly, over runs shorter and
+// longer than a vector and at every alignment
+class PixelKernelsTest {
+    private static final int[] LENGTHS = { 0, 1, 3, 7, 8, 15, 16, 17, 63, 64, 65, 256, 1000 };
+
+    private final PixelKernels scalar = new PixelKernels();
+    private final PixelKernels vector = new VectorPixelKernels();
+    private final Random random = new Random(3);
+
+    @Test
+    void vectorKernelsAreLoaded() {
+        assertTrue(vector.lanes() > 1);
+    }
+
+    @Test
+    void fill() {
+        for (int length : LENGTHS) {
+            int[] a = pixels(length + 8);
+            int[] b = a.clone();
+            int argb = random.nextInt();
+            scalar.fill(a, 3, 3 + length, argb);
+            vector.fill(b, 3, 3 + length, argb);
+            assertArrayEquals(a, b);
+        }
+    }
+
+    @Test
+    void swap() {
+        for (int length : LENGTHS) {
+            int[] a1 = pixels(length + 8);
+            int[] b1 = pixels(length + 8);
+            int[] a2 = a1.clone();
+            int[] b2 = b1.clone();
+            scalar.swap(a1, 1, b1, 5, length);
+            vector.swap(a2, 1, b2, 5, length);
+            assertArrayEquals(a1, a2);
+            assertArrayEquals(b1, b2);
+        }
+    }
+
+    @Test
+    void blend() {
+        for (int length : LENGTHS) {
+            for (int alpha : new int[] { 0, 1, 127, 128, 254, 255 }) {
+                int[] a = pixels(length + 8);
+                int[] b = a.clone();
+                int argb = alpha << 24 | random.nextInt(1 << 24);
+                scalar.blend(a, 2, 2 + length, argb);
+                vector.blend(b, 2, 2 + length, argb);
+                assertArrayEquals(a, b, "alpha " + alpha + ", length " + length);
+            }
+        }
+    }
+
+    @Test
+    void blendOver() {
+        for (int length : LENGTHS) {
+            int[] src = pixels(length + 8);
+            // Opaque and clear sources take their own paths
+            for (int i = 0; i < src.length; i += 3) {
+                src[i] = i % 2 == 0 ? src[i] | 0xFF000000 : src[i] & 0x00FFFFFF;
+            }
+            int[] a = pixels(length + 8);
+            int[] b = a.clone();
+            scalar.blendOver(src, 4, a, 1, length);
+            vector.blendOver(src, 4, b, 1, length);
+            assertArrayEquals(a, b, "length " + length);
+        }
+    }
+
+    @Test
+    void match() {
+        for (int length : LENGTHS) {
+            for (int tolerance : new int[] { 0, 10, 128, 255 }) {
+                int seed = random.nextInt();
+                int[] a = new int[length + 8];
+                for (int i = 0; i < a.length; i++) {
+                    // Mostly close to the seed, so runs are long enough to take vector steps
+                    a[i] = random.nextInt(8) == 0 ? random.nextInt() : seed ^ random.nextInt(16) * 0x01010101;
+                }
+                assertEquals(scalar.matchForward(a, 2, 2 + length, seed, tolerance),
+                        vector.matchForward(a, 2, 2 + length, seed, tolerance));
+                assertEquals(scalar.matchBackward(a, 2, 2 + length, seed, tolerance),
+                        vector.matchBackward(a, 2, 2 + length, seed, tolerance));
+            }
+        }
+    }
+
+    private int[] pixels(int length) {
+        int[] pixels = new int[length];
+        for (int i = 0; i < length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        return pixels;
+    }
+}
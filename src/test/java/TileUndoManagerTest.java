@@ -0,0 +1,104 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class TileUndoManagerTest {
+
+    @Test
+    void undoAndRedoRestoreThePixels() {
+        TiledCanvas canvas = new TiledCanvas(300, 200, 0xFFFFFFFF);
+        TileUndoManager undo = new TileUndoManager(canvas, 16 << 20, 0);
+        int[] blank = pixels(canvas);
+
+        undo.snapshot(new Rectangle(10, 10, 100, 50));
+        canvas.fillRect(10, 10, 100, 50, 0xFFFF0000);
+        int[] drawn = pixels(canvas);
+
+        assertEquals(new Rectangle(0, 0, 128, 64), undo.undo());
+        assertArrayEquals(blank, pixels(canvas));
+        undo.redo();
+        assertArrayEquals(drawn, pixels(canvas));
+        undo.close();
+    }
+
+    // An outline drawn over a large painted region keeps only the tiles it changed
+    @Test
+    void keepsOnlyTheTilesAnEditChanged() {
+        TiledCanvas canvas = new TiledCanvas(2000, 2000, 0xFFFFFFFF);
+        canvas.fillRect(0, 0, 2000, 2000, 0xFF336699);
+        TileUndoManager undo = new TileUndoManager(canvas, 256 << 20, 0);
+        int[] painted = pixels(canvas);
+
+        Rectangle bounds = new Rectangle(20, 20, 1900, 1900);
+        int perSide = 1900 / TileUndoManager.TILE_SIZE + 2;
+        long tileBytes = TileUndoManager.TILE_SIZE * TileUndoManager.TILE_SIZE * 4L;
+
+        // As a transaction, dropped when it is committed
+        undo.beginEdit();
+        undo.snapshot(bounds);
+        outline(canvas, 21, Color.BLACK);
+        undo.commitEdit();
+        assertTrue(undo.getHeapBytes() < 4 * perSide * tileBytes, undo.describeFootprint());
+        int[] first = pixels(canvas);
+
+        // On its own, dropped once the history is used after it has drawn
+        undo.snapshot(bounds);
+        outline(canvas, 40, Color.RED);
+        undo.undo();
+        assertTrue(undo.getHeapBytes() < 8 * perSide * tileBytes, undo.describeFootprint());
+        assertArrayEquals(first, pixels(canvas));
+        undo.undo();
+        assertArrayEquals(painted, pixels(canvas));
+        undo.close();
+    }
+
+    private static void outline(TiledCanvas canvas, int inset, Color color) {
+        canvas.draw(new Rectangle(20, 20, 1900, 1900), g -> {
+            g.setColor(color);
+            g.drawRect(inset, inset, 1938 - 2 * inset, 1938 - 2 * inset);
+        });
+    }
+
+    // A scratch file past 2 GB is mapped in windows; entries spilled to it come back intact
+    @Test
+    void spillsToAScratchFileLargerThanOneMapping() throws Exception {
+        TiledCanvas canvas = new TiledCanvas(512, 512, 0xFFFFFFFF);
+        TileUndoManager undo = new TileUndoManager(canvas, 1 << 20, 3L << 30);
+        Random random = new Random(4);
+        int[] noise = new int[64 * 64];
+        int[][] states = new int[41][];
+        states[0] = pixels(canvas);
+        for (int i = 1; i < states.length; i++) {
+            int x = random.nextInt(448);
+            int y = random.nextInt(448);
+            for (int p = 0; p < noise.length; p++) {
+                noise[p] = random.nextInt();
+            }
+            undo.snapshot(new Rectangle(x, y, 64, 64));
+            canvas.setRect(x, y, 64, 64, noise, 0, 64);
+            states[i] = pixels(canvas);
+        }
+        // Compression runs in the background; spilling follows it
+        for (int wait = 0; wait < 200 && undo.getDiskBytes() == 0; wait++) {
+            Thread.sleep(10);
+        }
+        assertTrue(undo.getDiskBytes() > 0, undo.describeFootprint());
+
+        for (int i = states.length - 1; i > 0 && undo.canUndo(); i--) {
+            undo.undo();
+            assertArrayEquals(states[i - 1], pixels(canvas), "undo to " + (i - 1));
+        }
+        undo.close();
+    }
+
+    private static int[] pixels(TiledCanvas canvas) {
+        int[] pixels = new int[canvas.getWidth() * canvas.getHeight()];
+        canvas.getRect(0, 0, canvas.getWidth(), canvas.getHeight(), pixels, 0, canvas.getWidth());
+        return pixels;
+    }
+}
@@ -0,0 +1,101 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+
+class TiledCanvasTest {
+    private static final int WHITE = 0xFFFFFFFF;
+
+    // A shape crossing tile edges comes out as it would on one image, with no seams
+    @Test
+    void drawsAcrossTilesAsOnOneImage() {
+        Consumer<Graphics2D> painter = g -> {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setColor(new Color(0x800000FF, true));
+            g.fill(new Ellipse2D.Double(100.5, 130.25, 600, 380));
+            g.setColor(Color.BLACK);
+            g.setStroke(new BasicStroke(7));
+            g.draw(new Ellipse2D.Double(100.5, 130.25, 600, 380));
+        };
+        TiledCanvas canvas = new TiledCanvas(800, 600, WHITE);
+        canvas.draw(new Rectangle(90, 120, 620, 400), painter);
+
+        BufferedImage expected = new BufferedImage(800, 600, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = expected.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 800, 600);
+        painter.accept(g);
+        g.dispose();
+
+        for (int y = 0; y < 600; y++) {
+            for (int x = 0; x < 800; x++) {
+                if (expected.getRGB(x, y) != canvas.getPixel(x, y)) {
+                    assertEquals(expected.getRGB(x, y), canvas.getPixel(x, y), "pixel " + x + "," + y);
+                }
+            }
+        }
+    }
+
+    // Only the region given is changed, and tiles outside it stay blank
+    @Test
+    void drawsOnlyWithinTheBounds() {
+        TiledCanvas canvas = new TiledCanvas(1024, 1024, WHITE);
+        canvas.draw(new Rectangle(10, 10, 100, 100), g -> {
+            g.setColor(Color.RED);
+            g.fillRect(0, 0, 1024, 1024);
+        });
+
+        assertEquals(0xFFFF0000, canvas.getPixel(10, 10));
+        assertEquals(0xFFFF0000, canvas.getPixel(109, 109));
+        assertEquals(WHITE, canvas.getPixel(110, 50));
+        assertEquals(1, canvas.getAllocatedTiles());
+    }
+
+    // Regions too large for one pass are painted tile by tile, with the same result
+    @Test
+    void drawsLargeRegionsTileByTile() {
+        TiledCanvas canvas = new TiledCanvas(2048, 1024, WHITE);
+        canvas.draw(new Rectangle(0, 0, 2048, 1024), g -> {
+            g.setColor(Color.GREEN);
+            g.fillRect(300, 200, 1500, 700);
+        });
+
+        assertEquals(0xFF00FF00, canvas.getPixel(300, 200));
+        assertEquals(0xFF00FF00, canvas.getPixel(1799, 899));
+        assertEquals(WHITE, canvas.getPixel(1800, 899));
+        assertEquals(WHITE, canvas.getPixel(299, 500));
+    }
+
+    // The outline of a shape larger than the scratch image allocates only the tiles it
+    // crosses, not the ones it encloses
+    @Test
+    void allocatesOnlyTheTilesAnOutlineCrosses() {
+        TiledCanvas canvas = new TiledCanvas(10000, 10000, WHITE);
+        canvas.draw(new Rectangle(0, 0, 10000, 10000), g -> {
+            g.setColor(Color.BLACK);
+            g.setStroke(new BasicStroke(2));
+            g.drawRect(10, 10, 9500, 9500);
+        });
+
+        int perSide = 9500 / TiledCanvas.TILE_SIZE + 2;
+        assertTrue(canvas.getAllocatedTiles() <= 4 * perSide, canvas.getAllocatedTiles() + " tiles");
+        assertEquals(0xFF000000, canvas.getPixel(10, 5000));
+        assertNull(canvas.tile(20, 20));
+
+        // A small region drawn with pixels it already has leaves its tile blank
+        canvas.draw(new Rectangle(5000, 5000, 100, 100), g -> {
+            g.setColor(Color.WHITE);
+            g.fillRect(5000, 5000, 100, 100);
+        });
+        assertNull(canvas.tile(5000 >> TiledCanvas.TILE_SHIFT, 5000 >> TiledCanvas.TILE_SHIFT));
+    }
+}
@@ -0,0 +1,187 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Rectangle;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+class VectorExporterTest {
+    private TileUndoManager undoManager;
+    private LayerStack layers;
+    private DrawingTools tools;
+
+    @BeforeEach
+    void setUp() {
+        undoManager = new TileUndoManager(400, 300, 16 << 20, 0);
+        layers = new LayerStack(400, 300, 0xFFFFFFFF, undoManager);
+        layers.addLayer();
+        tools = new DrawingTools(() -> {
+        });
+        tools.setDocument(layers, undoManager, new DocumentJournal(400, 300, 0xFFFFFFFF));
+    }
+
+    @Test
+    void writesEachKindOfItem() throws Exception {
+        DrawingEngine engine = layers.getActiveEngine();
+        engine.drawShape(new Line2D.Double(1, 2, 30.5, 40.25), Color.RED, 2, null);
+        engine.drawShape(new Rectangle(10, 20, 30, 40), Color.BLACK, 3, new Color(0x8000FF00, true));
+        engine.drawShape(new Ellipse2D.Double(100, 100, 50, 20), Color.BLUE, 1, null);
+        engine.drawStroke(new FreehandStroke(new float[] { 0, 0, 10, 10, 20, 0 }, 3), Color.BLACK, 4);
+        engine.drawText(new TextLabel("a < b & \"c\"", new Font(Font.SERIF, Font.BOLD, 12), 5, 50), Color.BLACK);
+
+        Document svg = export();
+
+        Element line = (Element) svg.getElementsByTagName("line").item(0);
+        assertEquals("30.5", line.getAttribute("x2"));
+        assertEquals("40.25", line.getAttribute("y2"));
+        assertEquals("#ff0000", line.getAttribute("stroke"));
+        Element rect = (Element) svg.getElementsByTagName("rect").item(1);
+        assertEquals("30", rect.getAttribute("width"));
+        assertEquals("#00ff00", rect.getAttribute("fill"));
+        assertEquals("0.5", rect.getAttribute("fill-opacity"));
+        Element ellipse = (Element) svg.getElementsByTagName("ellipse").item(0);
+        assertEquals("125", ellipse.getAttribute("cx"));
+        assertEquals("10", ellipse.getAttribute("ry"));
+        Element path = (Element) svg.getElementsByTagName("path").item(0);
+        assertTrue(path.getAttribute("d").startsWith("M0 0c"), path.getAttribute("d"));
+        Element text = (Element) svg.getElementsByTagName("text").item(0);
+        assertEquals("a < b & \"c\"", text.getTextContent());
+        assertEquals("serif", text.getAttribute("font-family"));
+        assertEquals("bold", text.getAttribute("font-weight"));
+    }
+
+    // An undone shape is not exported, and an undone fill is exported as it was before
+    @Test
+    void leavesOutWhatWasUndone() throws Exception {
+        tools.setFillColor(new Color(0, true));
+        drag("Rectangle", 50, 50, 150, 150);
+        drag("Oval", 200, 50, 300, 150);
+        tools.setAction("Fill Color");
+        tools.setFillColor(Color.RED);
+        tools.click(100, 100);
+
+        tools.undo();
+        tools.undo();
+        Document svg = export();
+
+        assertEquals(0, svg.getElementsByTagName("ellipse").getLength());
+        Element rect = (Element) svg.getElementsByTagName("rect").item(1);
+        assertEquals("100", rect.getAttribute("width"));
+        assertFalse(rect.hasAttribute("fill"));
+
+        tools.redo();
+        tools.redo();
+        svg = export();
+        assertEquals(1, svg.getElementsByTagName("ellipse").getLength());
+        assertEquals("#ff0000", ((Element) svg.getElementsByTagName("rect").item(1)).getAttribute("fill"));
+    }
+
+    // Text as paths comes out as the outline of its glyphs, where they are on the canvas
+    @Test
+    void writesTextAsGlyphOutlines() throws Exception {
+        TextLabel label = new TextLabel("Bold 80%", new Font(Font.SANS_SERIF, Font.BOLD, 40), 20, 100);
+        layers.getActiveEngine().drawText(label, Color.BLUE);
+
+        Document svg = export(true);
+
+        assertEquals(0, svg.getElementsByTagName("text").getLength());
+        Element path = (Element) svg.getElementsByTagName("path").item(0);
+        assertEquals("#0000ff", path.getAttribute("fill"));
+        Rectangle2D expected = label.getOutline().getBounds2D();
+        Rectangle2D written = bounds(path.getAttribute("d"));
+        assertEquals(expected.getMinX(), written.getMinX(), 0.05);
+        assertEquals(expected.getMinY(), written.getMinY(), 0.05);
+        assertEquals(expected.getMaxX(), written.getMaxX(), 0.05);
+        assertEquals(expected.getMaxY(), written.getMaxY(), 0.05);
+    }
+
+    @Test
+    void leavesOutHiddenLayers() throws Exception {
+        drag("Rectangle", 50, 50, 150, 150);
+        tools.toggleLayer();
+
+        assertEquals(1, export().getElementsByTagName("rect").getLength()); // the background
+    }
+
+    private void drag(String action, int x1, int y1, int x2, int y2) {
+        tools.setAction(action);
+        tools.press(x1, y1);
+        tools.drag(x2, y2);
+        tools.applyQueuedDrags();
+        tools.release(x2, y2);
+    }
+
+    // Bounds of the end points of path data in the commands the exporter writes
+    private static Rectangle2D bounds(String d) {
+        Matcher tokens = Pattern.compile("[Mmlqcz]|-?[0-9.]+").matcher(d);
+        Rectangle2D bounds = null;
+        double x = 0;
+        double y = 0;
+        double startX = 0;
+        double startY = 0;
+        char command = 'M';
+        while (tokens.find()) {
+            String token = tokens.group();
+            if (Character.isLetter(token.charAt(0))) {
+                command = token.charAt(0);
+                if (command == 'z') {
+                    x = startX;
+                    y = startY;
+                }
+                continue;
+            }
+            int pairs = command == 'q' ? 2 : command == 'c' ? 3 : 1;
+            double endX = 0;
+            double endY = 0;
+            for (int i = 0; i < pairs; i++) {
+                double px = Double.parseDouble(i == 0 ? token : next(tokens));
+                double py = Double.parseDouble(next(tokens));
+                endX = command == 'M' ? px : x + px;
+                endY = command == 'M' ? py : y + py;
+            }
+            x = endX;
+            y = endY;
+            if (command == 'M' || command == 'm') {
+                startX = x;
+                startY = y;
+            }
+            if (bounds == null) {
+                bounds = new Rectangle2D.Double(x, y, 0, 0);
+            } else {
+                bounds.add(x, y);
+            }
+        }
+        return bounds;
+    }
+
+    private static String next(Matcher tokens) {
+        tokens.find();
+        return tokens.group();
+    }
+
+    private Document export() throws Exception {
+        return export(false);
+    }
+
+    private Document export(boolean textAsPaths) throws Exception {
+        StringWriter out = new StringWriter();
+        assertTrue(new VectorExporter(layers, textAsPaths).write(out, written -> {
+        }, () -> false));
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(out.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+}
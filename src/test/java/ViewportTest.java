@@ -0,0 +1,68 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Rectangle;
+import org.junit.jupiter.api.Test;
+
+class ViewportTest {
+
+    @Test
+    void fitsTheCanvasCentred() {
+        Viewport view = new Viewport();
+        view.resize(800, 600, 1600, 600);
+
+        assertTrue(view.isFitted());
+        assertEquals(0.5, view.getZoom());
+        assertEquals(0, view.toCanvasX(0));
+        assertEquals(-300, view.toCanvasY(0));
+        assertEquals(1598, view.toCanvasX(799));
+    }
+
+    // The canvas point under the pointer stays there as the view zooms
+    @Test
+    void zoomsAroundThePointer() {
+        Viewport view = new Viewport();
+        view.resize(800, 600, 800, 600);
+        int x = view.toCanvasX(200);
+        int y = view.toCanvasY(150);
+
+        view.zoomAt(4, 200, 150);
+
+        assertFalse(view.isFitted());
+        assertEquals(4, view.getZoom());
+        assertEquals(x, view.toCanvasX(200));
+        assertEquals(y, view.toCanvasY(150));
+        view.zoomAt(1000, 0, 0);
+        assertEquals(Viewport.MAX_ZOOM, view.getZoom());
+    }
+
+    // Panning moves whole panel pixels and stops with half the panel still over the canvas
+    @Test
+    void pansWithinBounds() {
+        Viewport view = new Viewport();
+        view.resize(400, 300, 400, 300);
+        view.zoomAt(2, 0, 0);
+
+        assertArrayEquals(new int[] { -100, -50 }, view.panBy(-100, -50));
+        assertEquals(50, view.getOriginX(), 1e-9);
+        assertEquals(25, view.getOriginY(), 1e-9);
+        assertArrayEquals(new int[] { -500, 0 }, view.panBy(-10000, 0));
+        assertEquals(300, view.getOriginX(), 1e-9);
+    }
+
+    // A canvas region mapped to the panel and back covers at least the region
+    @Test
+    void mapsRegionsBothWays() {
+        Viewport view = new Viewport();
+        view.resize(1000, 800, 2000, 1600);
+        view.zoomAt(3, 123, 456);
+        Rectangle region = new Rectangle(700, 500, 37, 21);
+
+        Rectangle back = view.toCanvas(view.toPanel(region));
+
+        assertTrue(back.contains(region), back.toString());
+        assertTrue(back.width <= region.width + 3 && back.height <= region.height + 3, back.toString());
+    }
+}
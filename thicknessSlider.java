@@ -1,9 +0,0 @@
-
-public class thicknessSlider {
-
-    public static int getValue() {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException("Unimplemented method 'getValue'");
-    }
-
-}